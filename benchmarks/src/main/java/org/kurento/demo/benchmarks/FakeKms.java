@@ -0,0 +1,88 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.demo.benchmarks;
+
+import org.kurento.jsonrpc.internal.server.config.JsonRpcConfiguration;
+import org.kurento.jsonrpc.server.JsonRpcConfigurer;
+import org.kurento.jsonrpc.server.JsonRpcHandlerRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.Banner;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.web.socket.server.standard.ServletServerContainerFactoryBean;
+
+/**
+ * Kurento Java Demo - Stand-in for Kurento Media Server, for load tests.
+ *
+ * Serves a StubKms on "ws://localhost:8888/kurento", same as a real KMS, so
+ * a demo can be started against it with "-Dkms.url=..." and driven by the
+ * LoadDriver. Properties are read from "fakekms.properties".
+ *
+ * Run with:
+ * java -cp target/benchmarks.jar org.kurento.demo.benchmarks.FakeKms
+ */
+@Configuration
+@EnableAutoConfiguration
+@Import(JsonRpcConfiguration.class)
+public class FakeKms implements JsonRpcConfigurer
+{
+  // The Transaction of a join in a big room doesn't fit in the default
+  // WebSocket buffer of 8 KiB; KMS accepts much larger messages
+  private static final int MAX_MESSAGE_BYTES = 4 * 1024 * 1024;
+
+  @Value("${fakekms.latency:0}")
+  private long latencyMs;
+
+  @Value("${fakekms.ice-candidates:2}")
+  private int candidateCount;
+
+  @Value("${fakekms.gathering-time:0}")
+  private long gatheringMs;
+
+  @Bean(destroyMethod = "close")
+  public StubKms stubKms()
+  {
+    return new StubKms(latencyMs, candidateCount, gatheringMs);
+  }
+
+  @Bean
+  public ServletServerContainerFactoryBean webSocketContainer()
+  {
+    final ServletServerContainerFactoryBean container =
+        new ServletServerContainerFactoryBean();
+    container.setMaxTextMessageBufferSize(MAX_MESSAGE_BYTES);
+    return container;
+  }
+
+  @Override
+  public void registerJsonRpcHandlers(JsonRpcHandlerRegistry registry)
+  {
+    registry.addHandler(stubKms(), "/kurento");
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    // Don't pick up the application.properties and banner of the demo
+    new SpringApplicationBuilder(FakeKms.class)
+        .bannerMode(Banner.Mode.OFF)
+        .properties("spring.config.name=fakekms")
+        .run(args);
+  }
+}
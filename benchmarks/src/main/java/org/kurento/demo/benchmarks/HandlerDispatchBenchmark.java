@@ -0,0 +1,170 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.demo.benchmarks;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.kurento.demo.Handler;
+import org.kurento.demo.SignalingCodec;
+import org.kurento.demo.SignalingMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+
+/**
+ * Kurento Java Demo - Handling of incoming messages, from the WebSocket
+ * entry point of the Handler down to the calls to a StubKms.
+ *
+ * Messages are dispatched INLINE, so each operation covers the whole work
+ * done for a message, in the calling thread. Each benchmark thread is a user
+ * in a room of its own; run with "-t N" to add concurrent users.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+public class HandlerDispatchBenchmark
+{
+  private static final long REPLY_TIMEOUT_MS = 5000;
+
+  @State(Scope.Benchmark)
+  public static class Server
+  {
+    AnnotationConfigApplicationContext context;
+    Handler handler;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+      context = StubContext.start(
+          Collections.singletonMap("demo.dispatch.mode", "INLINE"));
+      handler = context.getBean(Handler.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+      context.close();
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Client
+  {
+    StubWebSocketSession session;
+    TextMessage addIceCandidate;
+    TextMessage addIceCandidates;
+    TextMessage processSdpAnswer;
+
+    // Joins and leaves with its own session, to not disturb the others
+    StubWebSocketSession startStopSession;
+    TextMessage start;
+    TextMessage stop;
+
+    @Setup(Level.Trial)
+    public void setup(Server server) throws Exception
+    {
+      session = new StubWebSocketSession();
+      session.setKeepSent(true);
+      server.handler.afterConnectionEstablished(session);
+      server.handler.handleMessage(session,
+          new TextMessage(Payloads.start(session.getId())));
+
+      // The talker is created first; wait for its SDP Offer
+      final String webRtcEpId = waitForTalker(session);
+      session.setKeepSent(false);
+
+      addIceCandidate = new TextMessage(
+          Payloads.addIceCandidate(webRtcEpId));
+      addIceCandidates = new TextMessage(
+          Payloads.addIceCandidates(webRtcEpId, 8));
+      processSdpAnswer = new TextMessage(
+          Payloads.processSdpAnswer(webRtcEpId));
+
+      startStopSession = new StubWebSocketSession();
+      server.handler.afterConnectionEstablished(startStopSession);
+      start = new TextMessage(Payloads.start(startStopSession.getId()));
+      stop = new TextMessage(Payloads.stop());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown(Server server) throws Exception
+    {
+      server.handler.afterConnectionClosed(session, CloseStatus.NORMAL);
+      server.handler.afterConnectionClosed(startStopSession,
+          CloseStatus.NORMAL);
+    }
+
+    private static String waitForTalker(StubWebSocketSession session)
+        throws Exception
+    {
+      while (true) {
+        final String sent = session.pollSent(REPLY_TIMEOUT_MS);
+        if (sent == null) {
+          throw new IllegalStateException("No MAKE_TALKER from the Handler");
+        }
+        final SignalingMessage message = SignalingCodec.decode(sent);
+        if ("MAKE_TALKER".equals(message.getId())) {
+          return message.getWebRtcEpId();
+        }
+      }
+    }
+  }
+
+  @Benchmark
+  public void addIceCandidate(Server server, Client client) throws Exception
+  {
+    server.handler.handleMessage(client.session, client.addIceCandidate);
+  }
+
+  @Benchmark
+  public void addIceCandidates(Server server, Client client) throws Exception
+  {
+    server.handler.handleMessage(client.session, client.addIceCandidates);
+  }
+
+  @Benchmark
+  public void processSdpAnswer(Server server, Client client) throws Exception
+  {
+    server.handler.handleMessage(client.session, client.processSdpAnswer);
+  }
+
+  /**
+   * A user joins an empty room and leaves it; this creates and releases the
+   * Media Pipeline of the room, and the talker of the user.
+   */
+  @Benchmark
+  public void startStop(Server server, Client client) throws Exception
+  {
+    server.handler.handleMessage(client.startStopSession, client.start);
+    server.handler.handleMessage(client.startStopSession, client.stop);
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.demo.benchmarks;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.kurento.client.IceCandidate;
+import org.kurento.demo.SignalingCodec;
+import org.kurento.jsonrpc.JsonUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Kurento Java Demo - Construction of the ICE candidate messages that the
+ * IceCandidateFoundEvent listener of each WebRtcEndpoint sends.
+ *
+ * Compares SignalingCodec with the JsonObject tree and JsonUtils conversion
+ * that the Handler used before, for a single candidate and for a batch.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+@State(Scope.Thread)
+public class IceCandidateEncodeBenchmark
+{
+  private static final String WEBRTCEP_ID =
+      "5ba3a8d5-ae21-4a5a-b9d3-1f8f4b07dc10_kurento.MediaPipeline/"
+      + "4de1e9c4-8b28-43e0-a3e2-6d9c1bd7a210_kurento.WebRtcEndpoint";
+
+  @Param({ "1", "8" })
+  public int candidateCount;
+
+  private final List<IceCandidate> candidates = new ArrayList<>();
+
+  @Setup
+  public void setup()
+  {
+    for (int i = 0; i < candidateCount; i++) {
+      candidates.add(Payloads.CANDIDATE);
+    }
+  }
+
+  @Benchmark
+  public String streaming()
+  {
+    if (candidateCount == 1) {
+      return SignalingCodec.encodeIceCandidate(WEBRTCEP_ID,
+          candidates.get(0));
+    }
+    return SignalingCodec.encodeIceCandidates(WEBRTCEP_ID, candidates);
+  }
+
+  @Benchmark
+  public String gsonTree()
+  {
+    final JsonObject message = new JsonObject();
+    message.addProperty("webRtcEpId", WEBRTCEP_ID);
+
+    if (candidateCount == 1) {
+      message.addProperty("id", "ADD_ICE_CANDIDATE");
+      message.add("candidate", JsonUtils.toJsonObject(candidates.get(0)));
+    } else {
+      final JsonArray jsonCandidates = new JsonArray();
+      for (final IceCandidate candidate : candidates) {
+        jsonCandidates.add(JsonUtils.toJsonObject(candidate));
+      }
+      message.addProperty("id", "ADD_ICE_CANDIDATES");
+      message.add("candidates", jsonCandidates);
+    }
+
+    return message.toString();
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.demo.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.kurento.demo.Handler;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+
+/**
+ * Kurento Java Demo - Requests to KMS made by each join to a room.
+ *
+ * Users join a room one after another, and the requests that the StubKms
+ * receives for each START are counted; the N-th user to join connects with
+ * the N-1 users already in the room. Requests that the Handler sends
+ * concurrently are counted one by one, so this is an upper bound of the
+ * round trips that a join waits for; run the LoadDriver against a FakeKms
+ * with some latency to see those.
+ *
+ * Run with:
+ * java -cp target/benchmarks.jar org.kurento.demo.benchmarks.JoinRoundTrips
+ */
+public class JoinRoundTrips
+{
+  private static final int ROOM_SIZE = 8;
+
+  public static void main(String[] args) throws Exception
+  {
+    final AnnotationConfigApplicationContext context = StubContext.start(
+        Collections.singletonMap("demo.dispatch.mode", "INLINE"));
+    final Handler handler = context.getBean(Handler.class);
+    final StubKms stubKms = context.getBean(StubKms.class);
+
+    final List<StubWebSocketSession> sessions = new ArrayList<>();
+    System.out.println("User  Requests");
+    for (int i = 1; i <= ROOM_SIZE; i++) {
+      final StubWebSocketSession session = new StubWebSocketSession();
+      sessions.add(session);
+      handler.afterConnectionEstablished(session);
+
+      final long before = stubKms.getRequestCount();
+      handler.handleMessage(session,
+          new TextMessage(Payloads.start("roundtrips")));
+      System.out.printf("%4d  %8d%n", i,
+          stubKms.getRequestCount() - before);
+    }
+
+    for (final StubWebSocketSession session : sessions) {
+      handler.afterConnectionClosed(session, CloseStatus.NORMAL);
+    }
+    context.close();
+  }
+}
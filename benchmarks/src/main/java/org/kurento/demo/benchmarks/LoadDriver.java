@@ -0,0 +1,206 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.demo.benchmarks;
+
+import java.net.Socket;
+import java.net.URI;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509ExtendedTrustManager;
+
+import org.apache.tomcat.websocket.Constants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+
+/**
+ * Kurento Java Demo - Load test of a demo, with many simulated browsers.
+ *
+ * Opens a WebSocket for each browser, at a fixed rate, and joins it to a
+ * room; then keeps all of them in their rooms for a while, and stops them.
+ * Reports the join latency of the browsers (see SimulatedBrowser) and the
+ * signaling messages per second.
+ *
+ * The demo should be using a FakeKms, so the media server is not the
+ * bottleneck. Run with:
+ * java -cp target/benchmarks.jar org.kurento.demo.benchmarks.LoadDriver \
+ *     --url=wss://localhost:8443/sfu-audio-mute --sessions=2000 --room-size=4
+ */
+public class LoadDriver
+{
+  private static final Logger log = LoggerFactory.getLogger(LoadDriver.class);
+
+  /**
+   * Counters shared by all the browsers.
+   */
+  public static class Stats
+  {
+    final AtomicLong sent = new AtomicLong(0);
+    final AtomicLong received = new AtomicLong(0);
+    final AtomicLong errors = new AtomicLong(0);
+    final CountDownLatch joinsDone;
+
+    Stats(int sessions)
+    {
+      this.joinsDone = new CountDownLatch(sessions);
+    }
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    final Map<String, String> options = new HashMap<>();
+    options.put("url", "wss://localhost:8443/sfu-audio-mute");
+    options.put("sessions", "1000");
+    options.put("room-size", "4");
+    options.put("rate", "100");
+    options.put("hold", "10");
+    options.put("join-timeout", "60");
+    for (final String arg : args) {
+      final String[] keyValue = arg.replaceFirst("^--", "").split("=", 2);
+      if (!options.containsKey(keyValue[0]) || keyValue.length != 2) {
+        System.err.println("Unknown option: " + arg);
+        System.err.println("Options (with defaults): " + options);
+        System.exit(1);
+      }
+      options.put(keyValue[0], keyValue[1]);
+    }
+
+    final URI url = URI.create(options.get("url"));
+    final int sessions = Integer.parseInt(options.get("sessions"));
+    final int roomSize = Integer.parseInt(options.get("room-size"));
+    final int rate = Integer.parseInt(options.get("rate"));
+    final long holdSec = Long.parseLong(options.get("hold"));
+    final long joinTimeoutSec = Long.parseLong(options.get("join-timeout"));
+
+    final StandardWebSocketClient client = new StandardWebSocketClient();
+    if ("wss".equals(url.getScheme())) {
+      // The demos use a self-signed certificate
+      final Map<String, Object> userProperties = new HashMap<>();
+      userProperties.put(Constants.SSL_CONTEXT_PROPERTY, trustAllContext());
+      client.setUserProperties(userProperties);
+    }
+
+    final Stats stats = new Stats(sessions);
+    final List<SimulatedBrowser> browsers = new ArrayList<>(sessions);
+    final long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+
+    System.out.printf("Joining %d browsers to %s, %d per room, %d per second%n",
+        sessions, url, roomSize, rate);
+
+    final long startNanos = System.nanoTime();
+    for (int i = 0; i < sessions; i++) {
+      final SimulatedBrowser browser =
+          new SimulatedBrowser("load" + (i / roomSize), stats);
+      browsers.add(browser);
+      client.doHandshake(browser, null, url).addCallback((session) -> {},
+          (ex) -> {
+            log.warn("[LoadDriver::main] Connection failed: {}",
+                ex.getMessage());
+            stats.errors.incrementAndGet();
+            stats.joinsDone.countDown();
+          });
+
+      final long nextNanos = startNanos + (i + 1) * intervalNanos;
+      final long waitNanos = nextNanos - System.nanoTime();
+      if (waitNanos > 0) {
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+      }
+    }
+
+    if (!stats.joinsDone.await(joinTimeoutSec, TimeUnit.SECONDS)) {
+      System.out.printf("Timeout waiting for joins, %d pending%n",
+          stats.joinsDone.getCount());
+    }
+    TimeUnit.SECONDS.sleep(holdSec);
+    final long elapsedNanos = System.nanoTime() - startNanos;
+
+    for (final SimulatedBrowser browser : browsers) {
+      browser.stop();
+    }
+
+    report(browsers, stats, elapsedNanos);
+    System.exit(0);
+  }
+
+  private static void report(List<SimulatedBrowser> browsers, Stats stats,
+      long elapsedNanos)
+  {
+    final long[] joins = browsers.stream()
+        .mapToLong(SimulatedBrowser::getJoinNanos)
+        .filter((nanos) -> nanos > 0)
+        .sorted()
+        .toArray();
+    final double elapsedSec = elapsedNanos / 1e9;
+
+    System.out.printf("Browsers: %d, joined: %d, errors: %d%n",
+        browsers.size(), joins.length, stats.errors.get());
+    if (joins.length > 0) {
+      System.out.printf("Join latency (ms): p50 %.1f, p99 %.1f, max %.1f%n",
+          percentile(joins, 50) / 1e6, percentile(joins, 99) / 1e6,
+          joins[joins.length - 1] / 1e6);
+    }
+    System.out.printf("Messages per second: sent %.0f, received %.0f"
+        + " (over %.1f s)%n", stats.sent.get() / elapsedSec,
+        stats.received.get() / elapsedSec, elapsedSec);
+  }
+
+  private static long percentile(long[] sorted, int percent)
+  {
+    final int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+    return sorted[Math.max(index, 0)];
+  }
+
+  private static SSLContext trustAllContext() throws Exception
+  {
+    // Also skips the host name check, which X509TrustManager would not
+    final TrustManager trustAll = new X509ExtendedTrustManager() {
+      @Override
+      public void checkClientTrusted(X509Certificate[] chain, String authType) {}
+      @Override
+      public void checkServerTrusted(X509Certificate[] chain, String authType) {}
+      @Override
+      public void checkClientTrusted(X509Certificate[] chain, String authType,
+          Socket socket) {}
+      @Override
+      public void checkServerTrusted(X509Certificate[] chain, String authType,
+          Socket socket) {}
+      @Override
+      public void checkClientTrusted(X509Certificate[] chain, String authType,
+          SSLEngine engine) {}
+      @Override
+      public void checkServerTrusted(X509Certificate[] chain, String authType,
+          SSLEngine engine) {}
+      @Override
+      public X509Certificate[] getAcceptedIssuers()
+      { return new X509Certificate[0]; }
+    };
+
+    final SSLContext context = SSLContext.getInstance("TLS");
+    context.init(null, new TrustManager[] { trustAll }, new SecureRandom());
+    return context;
+  }
+}
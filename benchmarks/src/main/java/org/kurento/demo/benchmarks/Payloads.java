@@ -0,0 +1,101 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.demo.benchmarks;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import org.kurento.client.IceCandidate;
+
+/**
+ * Kurento Java Demo - Sample messages, as sent by the browser in index.js.
+ */
+public final class Payloads
+{
+  public static final IceCandidate CANDIDATE = new IceCandidate(
+      "candidate:842163049 1 udp 1677729535 192.0.2.10 54400 typ srflx"
+      + " raddr 10.0.0.2 rport 54400 generation 0 ufrag 8hhY network-cost 999",
+      "0", 0);
+
+  private Payloads() {}
+
+  public static String start(String roomId)
+  {
+    final JsonObject message = new JsonObject();
+    message.addProperty("id", "START");
+    message.addProperty("roomId", roomId);
+    return message.toString();
+  }
+
+  public static String stop()
+  {
+    final JsonObject message = new JsonObject();
+    message.addProperty("id", "STOP");
+    return message.toString();
+  }
+
+  public static String addIceCandidate(String webRtcEpId)
+  {
+    final JsonObject message = new JsonObject();
+    message.addProperty("id", "ADD_ICE_CANDIDATE");
+    message.addProperty("webRtcEpId", webRtcEpId);
+    message.add("candidate", candidate());
+    return message.toString();
+  }
+
+  public static String addIceCandidates(String webRtcEpId, int count)
+  {
+    final JsonArray candidates = new JsonArray();
+    for (int i = 0; i < count; i++) {
+      candidates.add(candidate());
+    }
+
+    final JsonObject message = new JsonObject();
+    message.addProperty("id", "ADD_ICE_CANDIDATES");
+    message.addProperty("webRtcEpId", webRtcEpId);
+    message.add("candidates", candidates);
+    return message.toString();
+  }
+
+  public static String webRtcPeerReady(String webRtcEpId)
+  {
+    final JsonObject message = new JsonObject();
+    message.addProperty("id", "WEBRTCPEER_READY");
+    message.addProperty("webRtcEpId", webRtcEpId);
+    return message.toString();
+  }
+
+  public static String processSdpAnswer(String webRtcEpId)
+  {
+    final JsonObject message = new JsonObject();
+    message.addProperty("id", "PROCESS_SDP_ANSWER");
+    message.addProperty("webRtcEpId", webRtcEpId);
+    message.addProperty("sdpAnswer", StubKms.SDP);
+    return message.toString();
+  }
+
+  private static JsonObject candidate()
+  {
+    // Browsers add 'usernameFragment', which the server ignores
+    final JsonObject candidate = new JsonObject();
+    candidate.addProperty("candidate", CANDIDATE.getCandidate());
+    candidate.addProperty("sdpMid", CANDIDATE.getSdpMid());
+    candidate.addProperty("sdpMLineIndex", CANDIDATE.getSdpMLineIndex());
+    candidate.addProperty("usernameFragment", "8hhY");
+    return candidate;
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.demo.benchmarks;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.kurento.demo.SendQueue;
+import org.kurento.demo.SignalingCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Kurento Java Demo - Sending of messages from many threads at once, as the
+ * KMS event threads and the message handlers do through Handler.sendMessage().
+ *
+ * Handler.sendMessage() is a user lookup plus SendQueue.offer(), so this
+ * measures the latter: all threads sending to the same user (e.g. a burst of
+ * ICE candidates for one browser), or each thread to a different user.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+@Threads(8)
+public class SendQueueBenchmark
+{
+  private static final String MESSAGE = SignalingCodec.encodeIceCandidate(
+      "5ba3a8d5-ae21-4a5a-b9d3-1f8f4b07dc10_kurento.MediaPipeline/"
+      + "4de1e9c4-8b28-43e0-a3e2-6d9c1bd7a210_kurento.WebRtcEndpoint",
+      Payloads.CANDIDATE);
+
+  // Same as the defaults in application.properties
+  private static final int CAPACITY = 256;
+  private static final long SEND_TIMEOUT_MS = 5000;
+
+  @State(Scope.Benchmark)
+  public static class Sender
+  {
+    ExecutorService executor;
+    SendQueue sharedQueue;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+      executor = Executors.newFixedThreadPool(
+          Runtime.getRuntime().availableProcessors());
+      sharedQueue = new SendQueue(new StubWebSocketSession(), CAPACITY,
+          SEND_TIMEOUT_MS, executor);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+      executor.shutdownNow();
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class User
+  {
+    SendQueue queue;
+
+    @Setup(Level.Trial)
+    public void setup(Sender sender)
+    {
+      queue = new SendQueue(new StubWebSocketSession(), CAPACITY,
+          SEND_TIMEOUT_MS, sender.executor);
+    }
+  }
+
+  @Benchmark
+  public boolean sameUser(Sender sender)
+  {
+    return sender.sharedQueue.offer(MESSAGE,
+        SendQueue.OverflowPolicy.DROP_OLDEST);
+  }
+
+  @Benchmark
+  public boolean userPerThread(User user)
+  {
+    return user.queue.offer(MESSAGE, SendQueue.OverflowPolicy.DROP_OLDEST);
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.demo.benchmarks;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.kurento.client.IceCandidate;
+import org.kurento.demo.SignalingCodec;
+import org.kurento.demo.SignalingMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Kurento Java Demo - Decoding of incoming messages: the streaming
+ * SignalingCodec, against the Gson tree that the Handler used before.
+ *
+ * Both sides read the same fields that the message handler uses.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+@State(Scope.Thread)
+public class SignalingCodecBenchmark
+{
+  private static final Gson gson = new GsonBuilder().create();
+
+  public enum MessageType
+  {
+    START,
+    ADD_ICE_CANDIDATE,
+    PROCESS_SDP_ANSWER,
+  }
+
+  @Param
+  public MessageType messageType;
+
+  private String payload;
+
+  @Setup
+  public void setup()
+  {
+    final String webRtcEpId = "5ba3a8d5-ae21-4a5a-b9d3-1f8f4b07dc10_kurento"
+        + ".MediaPipeline/4de1e9c4-8b28-43e0-a3e2-6d9c1bd7a210_kurento"
+        + ".WebRtcEndpoint";
+
+    switch (messageType) {
+      case START:
+        payload = Payloads.start("room1");
+        break;
+      case ADD_ICE_CANDIDATE:
+        payload = Payloads.addIceCandidate(webRtcEpId);
+        break;
+      case PROCESS_SDP_ANSWER:
+        payload = Payloads.processSdpAnswer(webRtcEpId);
+        break;
+    }
+  }
+
+  @Benchmark
+  public void streaming(Blackhole bh) throws IOException
+  {
+    final SignalingMessage message = SignalingCodec.decode(payload);
+    switch (message.getId()) {
+      case "START":
+        bh.consume(message.getRoomId());
+        break;
+      case "ADD_ICE_CANDIDATE":
+        bh.consume(message.getWebRtcEpId());
+        bh.consume(message.getCandidate());
+        break;
+      case "PROCESS_SDP_ANSWER":
+        bh.consume(message.getWebRtcEpId());
+        bh.consume(message.getSdpAnswer());
+        break;
+    }
+  }
+
+  @Benchmark
+  public void gsonTree(Blackhole bh)
+  {
+    final JsonObject message = gson.fromJson(payload, JsonObject.class);
+    switch (message.get("id").getAsString()) {
+      case "START":
+        bh.consume(message.has("roomId")
+            ? message.get("roomId").getAsString() : null);
+        break;
+      case "ADD_ICE_CANDIDATE": {
+        bh.consume(message.get("webRtcEpId").getAsString());
+        final JsonObject jsonCandidate =
+            message.get("candidate").getAsJsonObject();
+        bh.consume(new IceCandidate(
+            jsonCandidate.get("candidate").getAsString(),
+            jsonCandidate.get("sdpMid").getAsString(),
+            jsonCandidate.get("sdpMLineIndex").getAsInt()));
+        break;
+      }
+      case "PROCESS_SDP_ANSWER":
+        bh.consume(message.get("webRtcEpId").getAsString());
+        bh.consume(message.get("sdpAnswer").getAsString());
+        break;
+    }
+  }
+}
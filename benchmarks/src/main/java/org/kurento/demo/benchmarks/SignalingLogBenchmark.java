@@ -0,0 +1,185 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.kurento.demo.benchmarks;
+
+import ch.qos.logback.classic.AsyncAppender;
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.FileAppender;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.kurento.demo.SignalingCodec;
+import org.kurento.demo.SignalingLog;
+import org.kurento.demo.SignalingMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Kurento Java Demo - Cost of the signaling logs of each incoming message:
+ * the log lines that the Handler writes for it, to a file, at INFO level.
+ *
+ * - SYNC_FULL: each line is written by the calling thread, with the whole
+ *   SDP, and no sampling. This is how the demo logged before.
+ * - ASYNC_SAMPLED: a background thread writes the lines, like with
+ *   logback-spring.xml; SDPs are truncated, and ICE candidates are sampled,
+ *   like with the defaults of application.properties. When the writer falls
+ *   behind, INFO lines are dropped instead of waiting.
+ *
+ * The calls to KMS are left out; see HandlerDispatchBenchmark for those.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+@State(Scope.Benchmark)
+public class SignalingLogBenchmark
+{
+  private static final String WEBRTCEP_ID =
+      "5ba3a8d5-ae21-4a5a-b9d3-1f8f4b07dc10_kurento.MediaPipeline/"
+      + "4de1e9c4-8b28-43e0-a3e2-6d9c1bd7a210_kurento.WebRtcEndpoint";
+
+  public enum Logging
+  {
+    SYNC_FULL,
+    ASYNC_SAMPLED,
+  }
+
+  public enum MessageType
+  {
+    ADD_ICE_CANDIDATE,
+    PROCESS_SDP_ANSWER,
+  }
+
+  @Param
+  public Logging logging;
+
+  @Param
+  public MessageType messageType;
+
+  private File logFile;
+  private Logger log;
+  private Appender<ILoggingEvent> appender;
+  private SignalingLog signalingLog;
+  private String payload;
+  private SignalingMessage message;
+
+  @Setup
+  public void setup() throws IOException
+  {
+    logFile = File.createTempFile("signaling-log-benchmark", ".log");
+    log = createLogger();
+
+    if (logging == Logging.SYNC_FULL) {
+      signalingLog = new SignalingLog(SignalingLog.SdpMode.FULL, 256, "");
+    } else {
+      signalingLog = new SignalingLog(SignalingLog.SdpMode.TRUNCATE, 256,
+          "ADD_ICE_CANDIDATE:20,ADD_ICE_CANDIDATES:5,IceCandidateFound:20");
+    }
+
+    payload = (messageType == MessageType.ADD_ICE_CANDIDATE
+        ? Payloads.addIceCandidate(WEBRTCEP_ID)
+        : Payloads.processSdpAnswer(WEBRTCEP_ID));
+    message = SignalingCodec.decode(payload);
+  }
+
+  @TearDown
+  public void tearDown()
+  {
+    log.detachAppender(appender);
+    appender.stop();
+    logFile.delete();
+  }
+
+  /**
+   * A logger that writes to a file, with the console pattern of Spring Boot.
+   */
+  private Logger createLogger()
+  {
+    final LoggerContext loggerContext =
+        (LoggerContext) LoggerFactory.getILoggerFactory();
+
+    final PatternLayoutEncoder encoder = new PatternLayoutEncoder();
+    encoder.setContext(loggerContext);
+    encoder.setPattern("%d{yyyy-MM-dd HH:mm:ss.SSS} %5p --- [%15.15t] "
+        + "%-40.40logger{39} : %m%n");
+    encoder.start();
+
+    final FileAppender<ILoggingEvent> fileAppender = new FileAppender<>();
+    fileAppender.setContext(loggerContext);
+    fileAppender.setFile(logFile.getAbsolutePath());
+    fileAppender.setEncoder(encoder);
+    fileAppender.start();
+    appender = fileAppender;
+
+    if (logging == Logging.ASYNC_SAMPLED) {
+      // Same as logback-spring.xml
+      final AsyncAppender asyncAppender = new AsyncAppender();
+      asyncAppender.setContext(loggerContext);
+      asyncAppender.setQueueSize(8192);
+      asyncAppender.setNeverBlock(true);
+      asyncAppender.addAppender(fileAppender);
+      asyncAppender.start();
+      appender = asyncAppender;
+    }
+
+    final Logger logger =
+        (Logger) LoggerFactory.getLogger("org.kurento.demo.Handler");
+    logger.setAdditive(false);
+    logger.setLevel(Level.INFO);
+    logger.addAppender(appender);
+    return logger;
+  }
+
+  /**
+   * The log lines of Handler.processMessage() and of the message handler.
+   */
+  @Benchmark
+  public void handleMessage()
+  {
+    final String messageId = message.getId();
+    if (signalingLog.sample(messageId)) {
+      log.info("[Handler::processMessage] id: {}, sessionId: {}", messageId,
+          "1a2b3c4d");
+      log.debug("[Handler::processMessage] payload: {}",
+          signalingLog.redact(payload));
+    }
+
+    if (messageType == MessageType.PROCESS_SDP_ANSWER) {
+      log.info("[Handler::handleProcessSdpAnswer] name: {}, SDP Answer from browser to KMS:\n{}",
+          "user1_talker", signalingLog.redact(message.getSdpAnswer()));
+    }
+  }
+}
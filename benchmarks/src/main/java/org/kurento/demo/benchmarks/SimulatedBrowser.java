@@ -0,0 +1,153 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.demo.benchmarks;
+
+import java.io.IOException;
+
+import org.kurento.demo.SignalingCodec;
+import org.kurento.demo.SignalingMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+
+/**
+ * Kurento Java Demo - A browser that joins a room, for the LoadDriver.
+ *
+ * Follows the signaling of index.js with canned SDP and ICE candidates: it
+ * answers every MAKE_TALKER, MAKE_PEER and MAKE_LISTENER, and sends one batch
+ * of local candidates for each endpoint.
+ *
+ * The join is complete when the first ICE candidate of the talker arrives;
+ * by then the server has created the user's endpoints, negotiated the talker
+ * and started its ICE gathering.
+ */
+public class SimulatedBrowser extends TextWebSocketHandler
+{
+  private static final Logger log =
+      LoggerFactory.getLogger(SimulatedBrowser.class);
+
+  private final String roomId;
+  private final LoadDriver.Stats stats;
+  private WebSocketSession session;
+  private String talkerId;
+  private long startNanos;
+  private volatile long joinNanos = 0;
+
+  public SimulatedBrowser(String roomId, LoadDriver.Stats stats)
+  {
+    this.roomId = roomId;
+    this.stats = stats;
+  }
+
+  /**
+   * @return Nanoseconds from START to the join, or 0 if not joined yet.
+   */
+  public long getJoinNanos()
+  { return this.joinNanos; }
+
+  public boolean isOpen()
+  { return this.session != null && this.session.isOpen(); }
+
+  @Override
+  public void afterConnectionEstablished(WebSocketSession session)
+      throws Exception
+  {
+    this.session = session;
+    startNanos = System.nanoTime();
+    send(Payloads.start(roomId));
+  }
+
+  @Override
+  protected void handleTextMessage(WebSocketSession session,
+      TextMessage textMessage) throws Exception
+  {
+    stats.received.incrementAndGet();
+
+    final SignalingMessage message =
+        SignalingCodec.decode(textMessage.getPayload());
+    final String webRtcEpId = message.getWebRtcEpId();
+
+    switch (String.valueOf(message.getId())) {
+      case "MAKE_TALKER":
+      case "MAKE_PEER":
+        talkerId = webRtcEpId;
+        negotiate(webRtcEpId);
+        break;
+      case "MAKE_LISTENER":
+        negotiate(webRtcEpId);
+        break;
+      case "ADD_ICE_CANDIDATE":
+      case "ADD_ICE_CANDIDATES":
+        if (joinNanos == 0 && webRtcEpId.equals(talkerId)) {
+          joinNanos = System.nanoTime() - startNanos;
+          stats.joinsDone.countDown();
+        }
+        break;
+      case "ERROR":
+        stats.errors.incrementAndGet();
+        log.warn("[SimulatedBrowser::handleTextMessage] Error from server: {}",
+            message.getMessage());
+        break;
+      default:
+        break;
+    }
+  }
+
+  /**
+   * Answer the SDP Offer of an endpoint, and send it some ICE candidates.
+   */
+  private void negotiate(String webRtcEpId) throws IOException
+  {
+    send(Payloads.webRtcPeerReady(webRtcEpId));
+    send(Payloads.processSdpAnswer(webRtcEpId));
+    send(Payloads.addIceCandidates(webRtcEpId, 2));
+  }
+
+  @Override
+  public void afterConnectionClosed(WebSocketSession session,
+      CloseStatus status) throws Exception
+  {
+    if (joinNanos == 0) {
+      log.warn("[SimulatedBrowser::afterConnectionClosed] Closed before joining, status: {}",
+          status);
+      stats.errors.incrementAndGet();
+      stats.joinsDone.countDown();
+    }
+  }
+
+  public void stop()
+  {
+    if (!isOpen()) {
+      return;
+    }
+    try {
+      send(Payloads.stop());
+      session.close();
+    } catch (IOException ex) {
+      log.debug("[SimulatedBrowser::stop] Exception: {}", ex.getMessage());
+    }
+  }
+
+  private synchronized void send(String payload) throws IOException
+  {
+    session.sendMessage(new TextMessage(payload));
+    stats.sent.incrementAndGet();
+  }
+}
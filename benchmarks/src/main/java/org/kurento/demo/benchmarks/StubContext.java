@@ -0,0 +1,150 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.demo.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.kurento.client.KurentoClient;
+import org.kurento.demo.EndpointRegistry;
+import org.kurento.demo.Handler;
+import org.kurento.demo.JoinTimeline;
+import org.kurento.demo.Metrics;
+import org.kurento.demo.PendingCandidates;
+import org.kurento.demo.PipelineSnapshots;
+import org.kurento.demo.RoomManager;
+import org.kurento.demo.SignalingLog;
+import org.kurento.demo.StatsCollector;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.core.env.MapPropertySource;
+
+/**
+ * Kurento Java Demo - The beans of the demo Application, wired to a StubKms
+ * instead of a real Kurento Media Server.
+ *
+ * Only the signaling beans are created; there is no web server.
+ */
+@Configuration
+public class StubContext
+{
+  @Bean
+  public static PropertySourcesPlaceholderConfigurer placeholderConfigurer()
+  {
+    return new PropertySourcesPlaceholderConfigurer();
+  }
+
+  @Bean
+  public Handler handler()
+  {
+    return new Handler();
+  }
+
+  @Bean
+  public StubKms stubKms()
+  {
+    return new StubKms();
+  }
+
+  @Bean
+  public KurentoClient kurentoClient(StubKms stubKms)
+  {
+    return stubKms.createKurentoClient();
+  }
+
+  @Bean
+  public RoomManager roomManager()
+  {
+    return new RoomManager();
+  }
+
+  @Bean
+  public EndpointRegistry endpointRegistry()
+  {
+    return new EndpointRegistry(Integer.MAX_VALUE);
+  }
+
+  @Bean(destroyMethod = "close")
+  public PipelineSnapshots pipelineSnapshots()
+  {
+    return new PipelineSnapshots(5, 10);
+  }
+
+  @Bean
+  public SignalingLog signalingLog(
+      @Value("${demo.log.sdp-mode:TRUNCATE}") SignalingLog.SdpMode sdpMode,
+      @Value("${demo.log.sdp-max-length:256}") int maxLength,
+      @Value("${demo.log.sampling:ADD_ICE_CANDIDATE:20,ADD_ICE_CANDIDATES:5,IceCandidateFound:20}")
+      String sampling)
+  {
+    return new SignalingLog(sdpMode, maxLength, sampling);
+  }
+
+  @Bean
+  public PendingCandidates pendingCandidates()
+  {
+    return new PendingCandidates(10000, 64);
+  }
+
+  // Recorded but never scraped
+  @Bean
+  public Metrics metrics()
+  {
+    return new Metrics(new SimpleMeterRegistry());
+  }
+
+  @Bean
+  public JoinTimeline joinTimeline()
+  {
+    return new JoinTimeline(4096);
+  }
+
+  // No stats collection in the background; it would skew the measurements
+  @Bean(destroyMethod = "close")
+  public StatsCollector statsCollector(KurentoClient kurento,
+      EndpointRegistry endpointRegistry, Metrics metrics)
+  {
+    return new StatsCollector(kurento, endpointRegistry, metrics, 0, 0, 16,
+        16, 2, 60);
+  }
+
+  /**
+   * Start a context, where the demo properties can be overridden like in
+   * application.properties, e.g. "demo.dispatch.mode" = "INLINE".
+   */
+  public static AnnotationConfigApplicationContext start(
+      Map<String, Object> properties)
+  {
+    final Map<String, Object> allProperties = new HashMap<>();
+    // The sweeper makes blocking calls in the background; keep it out of the
+    // measurements
+    allProperties.put("demo.endpoints.sweep-period", 0);
+    allProperties.putAll(properties);
+
+    final AnnotationConfigApplicationContext context =
+        new AnnotationConfigApplicationContext();
+    context.getEnvironment().getPropertySources().addFirst(
+        new MapPropertySource("benchmark", allProperties));
+    context.register(StubContext.class);
+    context.refresh();
+    return context;
+  }
+}
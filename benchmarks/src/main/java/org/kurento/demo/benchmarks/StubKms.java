@@ -0,0 +1,462 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.demo.benchmarks;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kurento.client.KurentoClient;
+import org.kurento.jsonrpc.DefaultJsonRpcHandler;
+import org.kurento.jsonrpc.Session;
+import org.kurento.jsonrpc.Transaction;
+import org.kurento.jsonrpc.client.JsonRpcClientLocal;
+import org.kurento.jsonrpc.message.Request;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Kurento Java Demo - Stub of the Kurento Media Server.
+ *
+ * Speaks the Kurento Protocol well enough for the demos to build, connect,
+ * negotiate and release their elements (MediaPipeline, WebRtcEndpoint,
+ * Composite, HubPort), answering with canned values and without any media.
+ *
+ * By default it answers immediately and never emits events, so the measured
+ * costs are only those of the application and the Kurento client. It can
+ * also add a fixed latency to every call, and emit synthetic
+ * IceCandidateFound and IceGatheringDone events when an endpoint starts
+ * gathering; both need a client that allows asynchronous responses, like the
+ * WebSocket one used by FakeKms.
+ *
+ * An endpoint that emits events also gets a ConnectionStateChanged to
+ * CONNECTED and a MediaFlowInStateChange to FLOWING, once its gathering is
+ * done, its SDP Answer has been processed and it has received a remote ICE
+ * candidate.
+ */
+public class StubKms extends DefaultJsonRpcHandler<JsonObject>
+{
+  private static final Logger log = LoggerFactory.getLogger(StubKms.class);
+
+  public static final String SDP =
+      "v=0\r\n"
+      + "o=- 3812345678 3812345678 IN IP4 0.0.0.0\r\n"
+      + "s=Kurento Media Server\r\n"
+      + "c=IN IP4 0.0.0.0\r\n"
+      + "t=0 0\r\n"
+      + "a=msid-semantic: WMS *\r\n"
+      + "a=group:BUNDLE 0\r\n"
+      + "m=audio 1 UDP/TLS/RTP/SAVPF 111 0\r\n"
+      + "a=mid:0\r\n"
+      + "a=rtcp-mux\r\n"
+      + "a=rtpmap:111 opus/48000/2\r\n"
+      + "a=rtpmap:0 PCMU/8000\r\n"
+      + "a=ice-ufrag:8hhY\r\n"
+      + "a=ice-pwd:asd88fgpdd777uzjYhagZg\r\n"
+      + "a=fingerprint:sha-256 D1:2C:BE:AD:C4:F6:64:5C:25:16:11:9C:AF:E7:0F:73:"
+      + "79:36:4E:9C:1E:15:54:39:0C:06:8B:ED:96:86:00:39\r\n"
+      + "a=setup:actpass\r\n"
+      + "a=sendrecv\r\n";
+
+  private final String sessionId = UUID.randomUUID().toString();
+  private final AtomicLong subscriptionCount = new AtomicLong(0);
+  private final AtomicLong requestCount = new AtomicLong(0);
+  private final long latencyMs;
+  private final int candidateCount;
+  private final long gatheringMs;
+  private final ScheduledExecutorService scheduler;
+
+  // Names of the live objects, by ID; an object with no name maps to ""
+  private final Map<String, String> objects = new ConcurrentHashMap<>();
+
+  // Sessions that subscribed to each event, by "objectId#eventType"
+  private final Map<String, Session> subscriptions = new ConcurrentHashMap<>();
+
+  // What each endpoint has done towards getting connected, as CONNECT_* bits
+  private static final int CONNECT_GATHERED = 1;
+  private static final int CONNECT_ANSWERED = 2;
+  private static final int CONNECT_REMOTE_CANDIDATE = 4;
+  private static final int CONNECT_ALL = 7;
+  private final Map<String, Integer> connectSteps = new ConcurrentHashMap<>();
+
+  public StubKms()
+  {
+    this(0, 0, 0);
+  }
+
+  /**
+   * @param latencyMs Milliseconds to wait before answering each call.
+   * @param candidateCount ICE candidates to emit for each call to
+   *     gatherCandidates(); 0 to never emit events.
+   * @param gatheringMs Milliseconds from the first ICE candidate until the
+   *     gathering is done.
+   */
+  public StubKms(long latencyMs, int candidateCount, long gatheringMs)
+  {
+    this.latencyMs = latencyMs;
+    this.candidateCount = candidateCount;
+    this.gatheringMs = gatheringMs;
+
+    if (latencyMs > 0 || candidateCount > 0) {
+      this.scheduler = Executors.newScheduledThreadPool(
+          Runtime.getRuntime().availableProcessors(), (r) -> {
+            final Thread thread = new Thread(r, "stubkms");
+            thread.setDaemon(true);
+            return thread;
+          });
+    } else {
+      this.scheduler = null;
+    }
+  }
+
+  public void close()
+  {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+  }
+
+  /**
+   * Get a KurentoClient that talks in-process to this StubKms.
+   */
+  public KurentoClient createKurentoClient()
+  {
+    return KurentoClient.createFromJsonRpcClient(new JsonRpcClientLocal(this));
+  }
+
+  public int getObjectCount()
+  { return this.objects.size(); }
+
+  /**
+   * Requests received so far; a transaction counts as one, like the single
+   * round trip it takes.
+   */
+  public long getRequestCount()
+  { return this.requestCount.get(); }
+
+  @Override
+  public void handleRequest(Transaction transaction,
+      Request<JsonObject> request) throws Exception
+  {
+    requestCount.incrementAndGet();
+
+    final Session session = transaction.getSession();
+    if (latencyMs == 0) {
+      transaction.sendResponse(process(request.getMethod(),
+          request.getParams(), session));
+      return;
+    }
+
+    transaction.startAsync();
+    scheduler.schedule(() -> {
+      try {
+        transaction.sendResponse(process(request.getMethod(),
+            request.getParams(), session));
+      } catch (IOException ex) {
+        log.warn("[StubKms::handleRequest] Exception: {}", ex.getMessage());
+      }
+    }, latencyMs, TimeUnit.MILLISECONDS);
+  }
+
+  private JsonObject process(String method, JsonObject params,
+      Session session)
+  {
+    switch (method) {
+      case "create":
+        return response(new JsonPrimitive(create(params)));
+      case "invoke":
+        return response(invoke(params, session));
+      case "subscribe":
+        subscriptions.put(params.get("object").getAsString() + "#"
+            + params.get("type").getAsString(), session);
+        return response(new JsonPrimitive(
+            "subscription" + subscriptionCount.incrementAndGet()));
+      case "release":
+        release(params.get("object").getAsString());
+        return response(null);
+      case "transaction":
+        return response(transaction(params.getAsJsonArray("operations"),
+            session));
+      default:
+        // ping, unsubscribe, ...
+        return response(null);
+    }
+  }
+
+  private String create(JsonObject params)
+  {
+    final String type = params.get("type").getAsString();
+    final String elementId = UUID.randomUUID() + "_kurento." + type;
+
+    final String objectId;
+    final JsonObject constructorParams =
+        params.getAsJsonObject("constructorParams");
+    if (constructorParams != null && constructorParams.has("mediaPipeline")) {
+      objectId = constructorParams.get("mediaPipeline").getAsString() + "/"
+          + elementId;
+    } else if (constructorParams != null && constructorParams.has("hub")) {
+      // HubPorts live in the pipeline of their Hub
+      final String hubId = constructorParams.get("hub").getAsString();
+      objectId = hubId.substring(0, hubId.indexOf('/')) + "/" + elementId;
+    } else {
+      objectId = elementId;
+    }
+
+    objects.put(objectId, "");
+    return objectId;
+  }
+
+  private JsonElement invoke(JsonObject params, Session session)
+  {
+    final String objectId = params.get("object").getAsString();
+    final JsonObject operationParams =
+        params.getAsJsonObject("operationParams");
+
+    switch (params.get("operation").getAsString()) {
+      case "generateOffer":
+      case "processOffer":
+        return new JsonPrimitive(SDP);
+      case "processAnswer":
+        connectStep(objectId, CONNECT_ANSWERED);
+        return new JsonPrimitive(SDP);
+      case "addIceCandidate":
+        connectStep(objectId, CONNECT_REMOTE_CANDIDATE);
+        return null;
+      case "getName":
+        return new JsonPrimitive(objects.getOrDefault(objectId, ""));
+      case "setName":
+        objects.replace(objectId, operationParams.get("name").getAsString());
+        return null;
+      case "getChildren":
+        return getChildren(objectId);
+      case "getGstreamerDot":
+        return new JsonPrimitive("digraph pipeline {}");
+      case "gatherCandidates":
+        gatherCandidates(objectId);
+        return null;
+      case "getStats":
+        // No media flows through the stub
+        return new JsonObject();
+      default:
+        // connect, addIceCandidate, ...
+        return null;
+    }
+  }
+
+  private JsonArray getChildren(String pipelineId)
+  {
+    final JsonArray children = new JsonArray();
+    final String prefix = pipelineId + "/";
+    for (final String objectId : objects.keySet()) {
+      if (objectId.startsWith(prefix)) {
+        children.add(objectId);
+      }
+    }
+    return children;
+  }
+
+  /**
+   * Emit the events of an ICE gathering, after the call that started it has
+   * been answered.
+   */
+  private void gatherCandidates(String objectId)
+  {
+    if (candidateCount == 0) {
+      return;
+    }
+
+    scheduler.schedule(() -> {
+      final Session candidateSession =
+          subscriptions.get(objectId + "#IceCandidateFound");
+      if (candidateSession != null) {
+        for (int i = 0; i < candidateCount; i++) {
+          final JsonObject candidate = new JsonObject();
+          candidate.addProperty("__module__", "kurento");
+          candidate.addProperty("__type__", "IceCandidate");
+          candidate.addProperty("candidate", "candidate:" + (i + 1)
+              + " 1 UDP 2015363327 192.0.2.1 " + (40000 + i) + " typ host");
+          candidate.addProperty("sdpMid", "0");
+          candidate.addProperty("sdpMLineIndex", 0);
+
+          final JsonObject data = eventData(objectId, "IceCandidateFound");
+          data.add("candidate", candidate);
+          sendEvent(candidateSession, objectId, "IceCandidateFound", data);
+        }
+      }
+    }, latencyMs, TimeUnit.MILLISECONDS);
+
+    scheduler.schedule(() -> {
+      final Session doneSession =
+          subscriptions.get(objectId + "#IceGatheringDone");
+      if (doneSession != null) {
+        sendEvent(doneSession, objectId, "IceGatheringDone",
+            eventData(objectId, "IceGatheringDone"));
+      }
+      connectStep(objectId, CONNECT_GATHERED);
+    }, latencyMs + gatheringMs, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Record a step of an endpoint towards getting connected, and emit its
+   * ConnectionStateChanged and MediaFlowInStateChange once it has done all of
+   * them.
+   */
+  private void connectStep(String objectId, int step)
+  {
+    if (candidateCount == 0 || !objects.containsKey(objectId)) {
+      return;
+    }
+    final int steps = connectSteps.merge(objectId, step, (a, b) -> a | b);
+    if (steps != CONNECT_ALL || !connectSteps.remove(objectId, CONNECT_ALL)) {
+      return;
+    }
+
+    final Session session =
+        subscriptions.get(objectId + "#ConnectionStateChanged");
+    if (session != null) {
+      final JsonObject data = eventData(objectId, "ConnectionStateChanged");
+      data.addProperty("oldState", "DISCONNECTED");
+      data.addProperty("newState", "CONNECTED");
+      sendEvent(session, objectId, "ConnectionStateChanged", data);
+    }
+
+    final Session flowSession =
+        subscriptions.get(objectId + "#MediaFlowInStateChange");
+    if (flowSession != null) {
+      final JsonObject data = eventData(objectId, "MediaFlowInStateChange");
+      data.addProperty("state", "FLOWING");
+      data.addProperty("padName", "default");
+      data.addProperty("mediaType", "AUDIO");
+      sendEvent(flowSession, objectId, "MediaFlowInStateChange", data);
+    }
+  }
+
+  private JsonObject eventData(String objectId, String type)
+  {
+    final long now = System.currentTimeMillis();
+    final JsonObject data = new JsonObject();
+    data.addProperty("source", objectId);
+    data.add("tags", new JsonArray());
+    data.addProperty("timestamp", String.valueOf(now / 1000));
+    data.addProperty("timestampMillis", String.valueOf(now));
+    data.addProperty("type", type);
+    return data;
+  }
+
+  private void sendEvent(Session session, String objectId, String type,
+      JsonObject data)
+  {
+    final JsonObject value = new JsonObject();
+    value.add("data", data);
+    value.addProperty("object", objectId);
+    value.addProperty("type", type);
+
+    final JsonObject params = new JsonObject();
+    params.add("value", value);
+
+    try {
+      session.sendNotification("onEvent", params);
+    } catch (IOException ex) {
+      log.warn("[StubKms::sendEvent] Exception: {}, type: {}", ex.getMessage(),
+          type);
+    }
+  }
+
+  private void release(String objectId)
+  {
+    objects.remove(objectId);
+    connectSteps.remove(objectId);
+
+    // Releasing a pipeline releases all of its elements
+    final String prefix = objectId + "/";
+    objects.keySet().removeIf(id -> id.startsWith(prefix));
+    subscriptions.keySet().removeIf(key -> key.startsWith(objectId + "#")
+        || key.startsWith(prefix));
+  }
+
+  private JsonArray transaction(JsonArray operations, Session session)
+  {
+    // Objects created earlier in the same transaction are referred to as
+    // "newref:<id of the create operation>"
+    final Map<String, String> newRefs = new HashMap<>();
+
+    final JsonArray responses = new JsonArray();
+    for (final JsonElement element : operations) {
+      final JsonObject operation = element.getAsJsonObject();
+      final String method = operation.get("method").getAsString();
+      final JsonObject result = process(method,
+          resolveNewRefs(operation.getAsJsonObject("params"), newRefs)
+              .getAsJsonObject(), session);
+      if ("create".equals(method)) {
+        newRefs.put("newref:" + operation.get("id").getAsString(),
+            result.get("value").getAsString());
+      }
+
+      final JsonObject response = new JsonObject();
+      response.addProperty("jsonrpc", "2.0");
+      response.add("id", operation.get("id"));
+      response.add("result", result);
+      responses.add(response);
+    }
+    return responses;
+  }
+
+  private JsonElement resolveNewRefs(JsonElement element,
+      Map<String, String> newRefs)
+  {
+    if (element.isJsonPrimitive() && element.getAsJsonPrimitive().isString()) {
+      final String objectId = newRefs.get(element.getAsString());
+      return (objectId != null ? new JsonPrimitive(objectId) : element);
+    }
+    if (element.isJsonObject()) {
+      final JsonObject resolved = new JsonObject();
+      for (final Map.Entry<String, JsonElement> entry
+          : element.getAsJsonObject().entrySet()) {
+        resolved.add(entry.getKey(), resolveNewRefs(entry.getValue(), newRefs));
+      }
+      return resolved;
+    }
+    if (element.isJsonArray()) {
+      final JsonArray resolved = new JsonArray();
+      for (final JsonElement item : element.getAsJsonArray()) {
+        resolved.add(resolveNewRefs(item, newRefs));
+      }
+      return resolved;
+    }
+    return element;
+  }
+
+  private JsonObject response(JsonElement value)
+  {
+    final JsonObject response = new JsonObject();
+    if (value != null) {
+      response.add("value", value);
+    }
+    response.addProperty("sessionId", sessionId);
+    return response;
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.demo.benchmarks;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.security.Principal;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * Kurento Java Demo - WebSocket session without a network connection.
+ *
+ * Counts the messages sent to it, and optionally keeps them so a benchmark
+ * can wait for a reply from the Handler.
+ */
+public class StubWebSocketSession implements WebSocketSession
+{
+  private static final AtomicLong idCount = new AtomicLong(0);
+
+  private final String id = "stub" + idCount.incrementAndGet();
+  private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+  private final AtomicLong sentCount = new AtomicLong(0);
+  private final BlockingQueue<String> sent = new LinkedBlockingQueue<>();
+  private volatile boolean keepSent = false;
+  private volatile boolean open = true;
+
+  public long getSentCount()
+  { return this.sentCount.get(); }
+
+  public void setKeepSent(boolean keepSent)
+  { this.keepSent = keepSent; }
+
+  /**
+   * Wait for the next message sent to this session, if keepSent is enabled.
+   *
+   * @return null on timeout.
+   */
+  public String pollSent(long timeoutMs) throws InterruptedException
+  {
+    return sent.poll(timeoutMs, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public String getId()
+  { return this.id; }
+
+  @Override
+  public URI getUri()
+  { return URI.create("ws://localhost/stub"); }
+
+  @Override
+  public HttpHeaders getHandshakeHeaders()
+  { return new HttpHeaders(); }
+
+  @Override
+  public Map<String, Object> getAttributes()
+  { return this.attributes; }
+
+  @Override
+  public Principal getPrincipal()
+  { return null; }
+
+  @Override
+  public InetSocketAddress getLocalAddress()
+  { return null; }
+
+  @Override
+  public InetSocketAddress getRemoteAddress()
+  { return null; }
+
+  @Override
+  public String getAcceptedProtocol()
+  { return null; }
+
+  @Override
+  public void setTextMessageSizeLimit(int messageSizeLimit)
+  {}
+
+  @Override
+  public int getTextMessageSizeLimit()
+  { return Integer.MAX_VALUE; }
+
+  @Override
+  public void setBinaryMessageSizeLimit(int messageSizeLimit)
+  {}
+
+  @Override
+  public int getBinaryMessageSizeLimit()
+  { return Integer.MAX_VALUE; }
+
+  @Override
+  public List<WebSocketExtension> getExtensions()
+  { return Collections.emptyList(); }
+
+  @Override
+  public void sendMessage(WebSocketMessage<?> message)
+  {
+    sentCount.incrementAndGet();
+    if (keepSent && message instanceof TextMessage) {
+      sent.add(((TextMessage) message).getPayload());
+    }
+  }
+
+  @Override
+  public boolean isOpen()
+  { return this.open; }
+
+  @Override
+  public void close()
+  { this.open = false; }
+
+  @Override
+  public void close(CloseStatus status)
+  { this.open = false; }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.demo.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.WebRtcEndpoint;
+import org.kurento.demo.UserSession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Kurento Java Demo - Listener operations of a UserSession, with as many
+ * listeners as remote users in an SFU room.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+@State(Scope.Thread)
+public class UserSessionBenchmark
+{
+  @Param({ "2", "10", "50" })
+  public int listenerCount;
+
+  private KurentoClient kurento;
+  private final List<WebRtcEndpoint> listeners = new ArrayList<>();
+  private UserSession user;
+  private int next = 0;
+
+  @Setup(Level.Trial)
+  public void setup()
+  {
+    kurento = new StubKms().createKurentoClient();
+    final MediaPipeline pipeline = kurento.createMediaPipeline();
+
+    user = new UserSession();
+    for (int i = 0; i < listenerCount; i++) {
+      final WebRtcEndpoint listener =
+          new WebRtcEndpoint.Builder(pipeline).sendonly().build();
+      listeners.add(listener);
+      user.addListener(listener.getId(), listener);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown()
+  {
+    kurento.destroy();
+  }
+
+  /**
+   * A remote user leaves and joins again: the listener fed by its talker is
+   * removed and a new one is added.
+   */
+  @Benchmark
+  public WebRtcEndpoint removeAddListener()
+  {
+    final WebRtcEndpoint listener = listeners.get(next);
+    next = (next + 1) % listenerCount;
+
+    user.removeListener(listener.getId());
+    user.addListener(listener.getId(), listener);
+    return listener;
+  }
+
+  /**
+   * All listeners are visited, like when the user leaves.
+   */
+  @Benchmark
+  public void iterateListeners(Blackhole bh)
+  {
+    for (final WebRtcEndpoint listener : user.getListeners()) {
+      bh.consume(listener);
+    }
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.demo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.kurento.client.IceCandidate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Kurento Java Demo - Coalesces the local ICE candidates of one endpoint.
+ *
+ * Candidates are buffered for a short delay after the first one arrives, and
+ * then handed over all together, so a burst of Trickle ICE candidates costs a
+ * single WebSocket message instead of one message per candidate.
+ */
+public class CandidateBatcher
+{
+  private static final Logger log =
+      LoggerFactory.getLogger(CandidateBatcher.class);
+
+  private final ScheduledExecutorService scheduler;
+  private final long delayMs;
+  private final Consumer<List<IceCandidate>> sink;
+
+  private List<IceCandidate> pending = new ArrayList<>();
+
+  public CandidateBatcher(ScheduledExecutorService scheduler, long delayMs,
+      Consumer<List<IceCandidate>> sink)
+  {
+    this.scheduler = scheduler;
+    this.delayMs = delayMs;
+    this.sink = sink;
+  }
+
+  public void add(IceCandidate candidate)
+  {
+    final boolean isFirst;
+    synchronized (this) {
+      pending.add(candidate);
+      isFirst = (pending.size() == 1);
+    }
+
+    if (isFirst) {
+      try {
+        scheduler.schedule(this::flush, delayMs, TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException ex) {
+        log.debug("[CandidateBatcher::add] Scheduler is shut down, flush now");
+        flush();
+      }
+    }
+  }
+
+  /**
+   * Hand over all buffered candidates now, e.g. when gathering is done.
+   */
+  public void flush()
+  {
+    final List<IceCandidate> batch;
+    synchronized (this) {
+      if (pending.isEmpty()) {
+        return;
+      }
+      batch = pending;
+      pending = new ArrayList<>();
+    }
+    sink.accept(batch);
+  }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.kurento.demo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.logging.LogLevel;
+import org.springframework.boot.logging.LoggerConfiguration;
+import org.springframework.boot.logging.LoggingSystem;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Kurento Java Demo - HTTP endpoints to take and download the DOT snapshots
+ * of the rooms' Media Pipelines, to change which KMS events are subscribed,
+ * and to tune the logs.
+ *
+ * - POST /debug/rooms/{roomId}/snapshots: take a new snapshot.
+ * - GET /debug/rooms/{roomId}/snapshots: list the kept snapshots.
+ * - GET /debug/rooms/{roomId}/snapshots/{index}: get a snapshot, 0 is the
+ *   newest. Render with e.g. "dot -Tsvg".
+ * - GET /debug/events/profile: the profile of the event subscriptions.
+ * - PUT /debug/events/profile?value=DEBUG: change it, for all endpoints.
+ * - PUT /debug/rooms/{roomId}/events/profile?value=DEBUG: change it only
+ *   for the live endpoints of one room.
+ * - GET /debug/loggers/{name}: the level of a logger, e.g.
+ *   "org.kurento.demo" or "ROOT".
+ * - PUT /debug/loggers/{name}?level=DEBUG: change it; only for the loggers
+ *   of this demo, i.e. "org.kurento.demo" and the ones below it.
+ * - GET /debug/log/sampling: the sampled message types.
+ * - PUT /debug/log/sampling/{type}?every=N: log 1 of every N messages of a
+ *   type, e.g. "ADD_ICE_CANDIDATE"; 1 logs all of them.
+ * - PUT /debug/log/sdp-mode?value=HASH: how SDPs and payloads are logged.
+ * - GET /debug/ice/pending: how many ICE candidates from the browsers were
+ *   held for an unknown endpoint, flushed to it later, and dropped.
+ * - GET /debug/timeline/sessions/{sessionId}: the phases of a user's join,
+ *   with the milliseconds since its START.
+ * - GET /debug/timeline/phases: percentiles of the milliseconds from START
+ *   to each phase, over the recent joins.
+ * - GET /debug/stats: how the WebRTC stats collection is doing.
+ * - GET /debug/rooms/{roomId}/stats: the recent loss, jitter, RTT and
+ *   bitrate samples of each endpoint of a room.
+ *
+ * None of these are authenticated, so they only exist when the property
+ * "demo.debug.enabled" is true.
+ */
+@RestController
+@ConditionalOnProperty(name = "demo.debug.enabled", havingValue = "true")
+@RequestMapping("/debug")
+public class DebugController
+{
+  private static final MediaType GRAPHVIZ =
+      new MediaType("text", "vnd.graphviz");
+
+  // Loggers that PUT /debug/loggers can change; the rest, e.g. ROOT or those
+  // of KMS and Spring, could flood the logs
+  private static final String DEMO_LOGGER = "org.kurento.demo";
+
+  @Autowired
+  private RoomManager roomManager;
+
+  @Autowired
+  private PipelineSnapshots pipelineSnapshots;
+
+  @Autowired
+  private Handler handler;
+
+  @Autowired
+  private SignalingLog signalingLog;
+
+  @Autowired
+  private PendingCandidates pendingCandidates;
+
+  @Autowired
+  private JoinTimeline joinTimeline;
+
+  @Autowired
+  private EndpointRegistry endpointRegistry;
+
+  @Autowired
+  private StatsCollector statsCollector;
+
+  @Autowired
+  private LoggingSystem loggingSystem;
+
+  @PostMapping("/rooms/{roomId}/snapshots")
+  public ResponseEntity<Void> takeSnapshot(@PathVariable String roomId)
+  {
+    final Room room = roomManager.getRoom(roomId);
+    if (room == null || room.getPipeline() == null) {
+      return ResponseEntity.notFound().build();
+    }
+    if (!pipelineSnapshots.request(roomId, room.getPipeline())) {
+      return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).build();
+    }
+    return ResponseEntity.accepted().build();
+  }
+
+  @GetMapping("/rooms/{roomId}/snapshots")
+  public List<Map<String, Object>> listSnapshots(@PathVariable String roomId)
+  {
+    final List<Map<String, Object>> result = new ArrayList<>();
+    final List<PipelineSnapshots.Snapshot> snapshots =
+        pipelineSnapshots.get(roomId);
+    for (int i = 0; i < snapshots.size(); i++) {
+      final PipelineSnapshots.Snapshot snapshot = snapshots.get(i);
+      final Map<String, Object> item = new LinkedHashMap<>();
+      item.put("index", i);
+      item.put("takenAt", snapshot.getTakenAt());
+      item.put("dotLength", snapshot.getDotLength());
+      item.put("gzipLength", snapshot.getGzipLength());
+      result.add(item);
+    }
+    return result;
+  }
+
+  @GetMapping("/rooms/{roomId}/snapshots/{index}")
+  public ResponseEntity<String> getSnapshot(@PathVariable String roomId,
+      @PathVariable int index)
+  {
+    final List<PipelineSnapshots.Snapshot> snapshots =
+        pipelineSnapshots.get(roomId);
+    if (index < 0 || index >= snapshots.size()) {
+      return ResponseEntity.notFound().build();
+    }
+    return ResponseEntity.ok().contentType(GRAPHVIZ)
+        .body(snapshots.get(index).getDot());
+  }
+
+  @GetMapping("/events/profile")
+  public Map<String, Object> getEventProfile()
+  {
+    return Collections.singletonMap("profile", handler.getEventProfile());
+  }
+
+  @PutMapping("/events/profile")
+  public ResponseEntity<Void> setEventProfile(
+      @RequestParam("value") EventSubscriptions.Profile profile)
+  {
+    handler.setEventProfile(profile);
+    return ResponseEntity.accepted().build();
+  }
+
+  @PutMapping("/rooms/{roomId}/events/profile")
+  public ResponseEntity<Void> setEventProfile(@PathVariable String roomId,
+      @RequestParam("value") EventSubscriptions.Profile profile)
+  {
+    if (!handler.setEventProfile(roomId, profile)) {
+      return ResponseEntity.notFound().build();
+    }
+    return ResponseEntity.accepted().build();
+  }
+
+  @GetMapping("/loggers/{name}")
+  public ResponseEntity<Map<String, Object>> getLogger(
+      @PathVariable String name)
+  {
+    final LoggerConfiguration config =
+        loggingSystem.getLoggerConfiguration(name);
+    if (config == null) {
+      return ResponseEntity.notFound().build();
+    }
+    final Map<String, Object> result = new LinkedHashMap<>();
+    result.put("name", config.getName());
+    result.put("configuredLevel", config.getConfiguredLevel());
+    result.put("effectiveLevel", config.getEffectiveLevel());
+    return ResponseEntity.ok(result);
+  }
+
+  @PutMapping("/loggers/{name}")
+  public ResponseEntity<Void> setLogger(@PathVariable String name,
+      @RequestParam("level") LogLevel level)
+  {
+    if (!name.equals(DEMO_LOGGER) && !name.startsWith(DEMO_LOGGER + ".")) {
+      return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+    }
+    loggingSystem.setLogLevel(name, level);
+    return ResponseEntity.noContent().build();
+  }
+
+  @GetMapping("/log/sampling")
+  public Map<String, Integer> getSampling()
+  {
+    return signalingLog.getSampling();
+  }
+
+  @PutMapping("/log/sampling/{type}")
+  public ResponseEntity<Void> setSampling(@PathVariable String type,
+      @RequestParam("every") int every)
+  {
+    signalingLog.setSampling(type, every);
+    return ResponseEntity.noContent().build();
+  }
+
+  @PutMapping("/log/sdp-mode")
+  public ResponseEntity<Void> setSdpMode(
+      @RequestParam("value") SignalingLog.SdpMode sdpMode)
+  {
+    signalingLog.setSdpMode(sdpMode);
+    return ResponseEntity.noContent().build();
+  }
+
+  @GetMapping("/ice/pending")
+  public Map<String, Object> getPendingCandidates()
+  {
+    final Map<String, Object> result = new LinkedHashMap<>();
+    result.put("buffered", pendingCandidates.getBufferedCount());
+    result.put("flushed", pendingCandidates.getFlushedCount());
+    result.put("dropped", pendingCandidates.getDroppedCount());
+    return result;
+  }
+
+  @GetMapping("/timeline/sessions/{sessionId}")
+  public ResponseEntity<List<Map<String, Object>>> getTimeline(
+      @PathVariable String sessionId)
+  {
+    final List<JoinTimeline.Entry> entries =
+        joinTimeline.getSession(sessionId);
+    if (entries.isEmpty()) {
+      return ResponseEntity.notFound().build();
+    }
+    final JoinTimeline.Entry start = JoinTimeline.getStart(entries);
+
+    final List<Map<String, Object>> result = new ArrayList<>();
+    for (final JoinTimeline.Entry entry : entries) {
+      final String webRtcEpId = entry.getWebRtcEpId();
+      final String name = (webRtcEpId != null
+          ? endpointRegistry.getName(webRtcEpId) : null);
+      final Map<String, Object> item = new LinkedHashMap<>();
+      item.put("phase", entry.getPhase());
+      item.put("endpoint", (name != null ? name : webRtcEpId));
+      item.put("sessionId", entry.getSessionId());
+      item.put("timeMs", entry.getTimeMs());
+      item.put("sinceStartMs", (start != null ? entry.getMsSince(start) : null));
+      result.add(item);
+    }
+    return ResponseEntity.ok(result);
+  }
+
+  @GetMapping("/timeline/phases")
+  public Map<JoinTimeline.Phase, JoinTimeline.Rollup> getTimelineRollups()
+  {
+    return joinTimeline.getRollups();
+  }
+
+  @GetMapping("/stats")
+  public Map<String, Object> getStatsSummary()
+  {
+    final Map<String, Object> result = new LinkedHashMap<>();
+    result.put("endpoints", statsCollector.getEndpointCount());
+    result.put("sampled", statsCollector.getSampledCount());
+    result.put("failed", statsCollector.getFailedCount());
+    result.put("deferred", statsCollector.getDeferredCount());
+    return result;
+  }
+
+  @GetMapping("/rooms/{roomId}/stats")
+  public ResponseEntity<List<Map<String, Object>>> getRoomStats(
+      @PathVariable String roomId)
+  {
+    if (roomManager.getRoom(roomId) == null) {
+      return ResponseEntity.notFound().build();
+    }
+
+    final List<Map<String, Object>> result = new ArrayList<>();
+    for (final Map.Entry<String, StatsCollector.Samples> entry
+        : statsCollector.getRoom(roomId).entrySet()) {
+      final String webRtcEpId = entry.getKey();
+      final Map<String, Object> item = new LinkedHashMap<>();
+      item.put("endpoint", endpointRegistry.getName(webRtcEpId));
+      item.put("role", endpointRegistry.getRole(webRtcEpId));
+      item.put("intervalMs", statsCollector.getIntervalMs(webRtcEpId));
+      item.put("samples", entry.getValue());
+      result.add(item);
+    }
+    return ResponseEntity.ok(result);
+  }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.demo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kurento.client.MediaObject;
+import org.kurento.client.WebRtcEndpoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Kurento Java Demo - Bounded registry of the live WebRtcEndpoints.
+ *
+ * Endpoints are indexed by their KMS ID and by the WebSocket session that
+ * negotiates them, and must be unregistered when they get released. A
+ * periodic sweep against the Media Pipeline children in KMS detects entries
+ * that leaked on either side.
+ *
+ * The registry also keeps the metadata of each endpoint that never changes
+ * after it is built (name, owner session and role), so log statements and
+ * event listeners can read it without a call to KMS.
+ */
+public class EndpointRegistry
+{
+  private static final Logger log =
+      LoggerFactory.getLogger(EndpointRegistry.class);
+
+  /**
+   * Assumed heap cost of one entry: the client proxy of the endpoint, plus
+   * the Entry itself and its slots in both indexes. This is a guess, not a
+   * measurement.
+   */
+  private static final long ENTRY_HEAP_BYTES = 2048;
+
+  /**
+   * What an endpoint is used for, from the point of view of its session.
+   */
+  public enum Role
+  {
+    /** Receives media from the browser. */
+    TALKER("talker"),
+    /** Sends the media of a remote talker to the browser. */
+    LISTENER("listener"),
+    /** Both sends and receives media. */
+    PEER("user");
+
+    private final String baseName;
+
+    Role(String baseName)
+    {
+      this.baseName = baseName;
+    }
+  }
+
+  private static class Entry
+  {
+    final WebRtcEndpoint webRtcEp;
+    final String name;
+    final Role role;
+    final String sessionId;
+    final Room room;
+    final long registeredAt = System.nanoTime();
+
+    Entry(WebRtcEndpoint webRtcEp, String name, Role role, String sessionId,
+        Room room)
+    {
+      this.webRtcEp = webRtcEp;
+      this.name = name;
+      this.role = role;
+      this.sessionId = sessionId;
+      this.room = room;
+    }
+  }
+
+  private final int capacity;
+
+  private final ConcurrentHashMap<String, Entry> byEndpointId =
+      new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Set<String>> bySessionId =
+      new ConcurrentHashMap<>();
+
+  private final AtomicLong nameSequence = new AtomicLong(0);
+
+  // KMS elements that looked orphaned in the last sweep, by KMS ID
+  private final Set<String> suspects = ConcurrentHashMap.newKeySet();
+
+  public EndpointRegistry(int capacity)
+  {
+    this.capacity = capacity;
+  }
+
+  /**
+   * Get a name that is unique for the lifetime of this server.
+   */
+  public String nextName(Role role, String sessionId)
+  {
+    return role.baseName + sessionId + "_webrtcendpoint"
+        + nameSequence.incrementAndGet();
+  }
+
+  /**
+   * @return false if the registry is full, and the endpoint was not added.
+   */
+  public boolean register(final WebRtcEndpoint webRtcEp, String name,
+      Role role, String sessionId, final Room room)
+  {
+    if (byEndpointId.size() >= capacity) {
+      log.warn("[EndpointRegistry::register] Registry full, capacity: {}",
+          capacity);
+      return false;
+    }
+
+    final String webRtcEpId = webRtcEp.getId();
+    byEndpointId.put(webRtcEpId, new Entry(webRtcEp, name, role,
+        sessionId, room));
+    bySessionId.compute(sessionId, (k, ids) -> {
+      if (ids == null) {
+        ids = ConcurrentHashMap.newKeySet();
+      }
+      ids.add(webRtcEpId);
+      return ids;
+    });
+    return true;
+  }
+
+  public void unregister(String webRtcEpId)
+  {
+    final Entry entry = byEndpointId.remove(webRtcEpId);
+    if (entry == null) {
+      return;
+    }
+
+    bySessionId.computeIfPresent(entry.sessionId, (k, ids) -> {
+      ids.remove(webRtcEpId);
+      return (ids.isEmpty() ? null : ids);
+    });
+  }
+
+  /**
+   * Unregister all endpoints negotiated by a session.
+   */
+  public void unregisterSession(String sessionId)
+  {
+    final Set<String> ids = bySessionId.remove(sessionId);
+    if (ids == null) {
+      return;
+    }
+    for (final String webRtcEpId : ids) {
+      byEndpointId.remove(webRtcEpId);
+    }
+  }
+
+  /**
+   * Get an endpoint, only if it is negotiated by the given session.
+   */
+  public WebRtcEndpoint get(String sessionId, String webRtcEpId)
+  {
+    final Entry entry = byEndpointId.get(webRtcEpId);
+    if (entry == null || !entry.sessionId.equals(sessionId)) {
+      return null;
+    }
+    return entry.webRtcEp;
+  }
+
+  /**
+   * Get the name of an endpoint without asking KMS, e.g. for logging.
+   *
+   * @return the ID itself, if the endpoint is not registered.
+   */
+  public String getName(String webRtcEpId)
+  {
+    final Entry entry = byEndpointId.get(webRtcEpId);
+    return (entry != null ? entry.name : webRtcEpId);
+  }
+
+  /**
+   * @return null if the endpoint is not registered.
+   */
+  public Role getRole(String webRtcEpId)
+  {
+    final Entry entry = byEndpointId.get(webRtcEpId);
+    return (entry != null ? entry.role : null);
+  }
+
+  /**
+   * @return null if the endpoint is not registered.
+   */
+  public String getSessionId(String webRtcEpId)
+  {
+    final Entry entry = byEndpointId.get(webRtcEpId);
+    return (entry != null ? entry.sessionId : null);
+  }
+
+  /**
+   * @return milliseconds since the endpoint was registered, which is right
+   *     before its SDP Offer is sent; -1 if it is not registered.
+   */
+  public long getAgeMs(String webRtcEpId)
+  {
+    final Entry entry = byEndpointId.get(webRtcEpId);
+    return (entry != null
+        ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - entry.registeredAt)
+        : -1);
+  }
+
+  public int getEndpointCount()
+  { return this.byEndpointId.size(); }
+
+  public int getSessionCount()
+  { return this.bySessionId.size(); }
+
+  /**
+   * @return true if a new endpoint would not fit. Endpoints that are being
+   *     built don't count until they are registered, so register() can still
+   *     fail after this returns false.
+   */
+  public boolean isFull()
+  { return this.byEndpointId.size() >= this.capacity; }
+
+  /**
+   * Not measured: it is the endpoint count times a fixed per-entry cost, so
+   * it only tracks the count, in units that are easier to compare with the
+   * heap size.
+   */
+  public long getNominalHeapBytes()
+  { return ENTRY_HEAP_BYTES * this.byEndpointId.size(); }
+
+  public long getNominalEntryHeapBytes()
+  { return ENTRY_HEAP_BYTES; }
+
+  /**
+   * Get a snapshot of the live endpoints, grouped by room.
+   */
+  public Map<Room, List<WebRtcEndpoint>> getEndpointsByRoom()
+  {
+    final Map<Room, List<WebRtcEndpoint>> result = new HashMap<>();
+    for (final Entry entry : byEndpointId.values()) {
+      result.computeIfAbsent(entry.room, (k) -> new ArrayList<>())
+          .add(entry.webRtcEp);
+    }
+    return result;
+  }
+
+  /**
+   * Compare the endpoints of a room with the children of its Media Pipeline
+   * in KMS. This makes a blocking call to KMS.
+   *
+   * Entries whose endpoint no longer exists in KMS are dropped. Endpoints
+   * that exist in KMS but are unknown here are returned only once they have
+   * been seen in two consecutive sweeps, because a newly built endpoint is
+   * briefly unregistered until its negotiation starts.
+   *
+   * @return the orphaned endpoints in KMS, which the caller should release.
+   */
+  public List<WebRtcEndpoint> sweep(final Room room)
+  {
+    // Entries added after this point might be missing from the KMS snapshot
+    final long startedAt = System.nanoTime();
+    final List<MediaObject> children = room.getPipeline().getChildren();
+
+    final Set<String> childIds = new HashSet<>();
+    final List<WebRtcEndpoint> orphans = new ArrayList<>();
+
+    for (final MediaObject child : children) {
+      if (!(child instanceof WebRtcEndpoint)) {
+        continue;
+      }
+      final String childId = child.getId();
+      childIds.add(childId);
+
+      if (byEndpointId.containsKey(childId)) {
+        suspects.remove(childId);
+      } else if (!suspects.add(childId)) {
+        suspects.remove(childId);
+        orphans.add((WebRtcEndpoint) child);
+      }
+    }
+
+    for (final Entry entry : byEndpointId.values()) {
+      if (entry.room == room && entry.registeredAt - startedAt < 0
+          && !childIds.contains(entry.webRtcEp.getId())) {
+        log.warn("[EndpointRegistry::sweep] Drop stale entry, room: {}, name: {}",
+            room.getRoomId(), entry.name);
+        unregister(entry.webRtcEp.getId());
+      }
+    }
+
+    return (orphans.isEmpty() ? Collections.emptyList() : orphans);
+  }
+
+  /**
+   * Forget the suspects of a released Media Pipeline.
+   */
+  public void forgetPipeline(String pipelineId)
+  {
+    suspects.removeIf(id -> id.startsWith(pipelineId + "/"));
+  }
+}
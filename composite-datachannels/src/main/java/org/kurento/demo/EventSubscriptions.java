@@ -0,0 +1,154 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.kurento.demo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.ListenerSubscription;
+
+/**
+ * Kurento Java Demo - The KMS event subscriptions of one endpoint.
+ *
+ * Each subscription is a request to KMS, and then every event of that type
+ * crosses the wire, even if it is only logged. So listeners are declared
+ * with the lowest Profile that needs them, and only those of the current
+ * profile are subscribed. The profile of a live endpoint can be changed at
+ * any time.
+ *
+ * Releasing an endpoint drops its subscriptions in KMS and in the client, so
+ * there is nothing to unsubscribe on teardown.
+ */
+public class EventSubscriptions
+{
+  public enum Profile
+  {
+    /** Only the events that the demo acts on: errors and ICE candidates. */
+    MINIMAL,
+    /** Also the state changes that help following a call. */
+    OPERATIONAL,
+    /** All events. */
+    DEBUG,
+  }
+
+  /**
+   * Adds a listener to the endpoint, e.g. "addErrorListener(listener, cont)".
+   */
+  public interface Subscriber
+  {
+    void subscribe(Continuation<ListenerSubscription> cont);
+  }
+
+  /**
+   * Removes a listener from the endpoint, e.g. "removeErrorListener".
+   */
+  public interface Unsubscriber
+  {
+    void unsubscribe(ListenerSubscription subscription,
+        Continuation<Void> cont);
+  }
+
+  private static class Entry
+  {
+    final Profile profile;
+    final Subscriber subscriber;
+    final Unsubscriber unsubscriber;
+
+    // Null while not subscribed; pending until KMS confirms
+    CompletableFuture<ListenerSubscription> subscription;
+
+    Entry(Profile profile, Subscriber subscriber, Unsubscriber unsubscriber)
+    {
+      this.profile = profile;
+      this.subscriber = subscriber;
+      this.unsubscriber = unsubscriber;
+    }
+  }
+
+  private final List<Entry> entries = new ArrayList<>();
+  private Profile profile = null;
+
+  /**
+   * Declare a listener, which is subscribed by any profile from the given
+   * one up.
+   */
+  public synchronized void add(Profile profile, Subscriber subscriber,
+      Unsubscriber unsubscriber)
+  {
+    entries.add(new Entry(profile, subscriber, unsubscriber));
+  }
+
+  /**
+   * @return null until the first call to apply().
+   */
+  public synchronized Profile getProfile()
+  { return this.profile; }
+
+  /**
+   * Subscribe and unsubscribe listeners to match the given profile. All
+   * requests to KMS are made at once, without waiting.
+   *
+   * @return completes when KMS has confirmed all changes.
+   */
+  public synchronized CompletableFuture<Void> apply(Profile newProfile)
+  {
+    profile = newProfile;
+
+    final List<CompletableFuture<?>> changes = new ArrayList<>();
+    for (final Entry entry : entries) {
+      final boolean wanted = (entry.profile.compareTo(newProfile) <= 0);
+
+      if (wanted && entry.subscription == null) {
+        final CompletableFuture<ListenerSubscription> subscription =
+            new CompletableFuture<>();
+        entry.subscriber.subscribe(complete(subscription));
+        entry.subscription = subscription;
+        changes.add(subscription);
+      } else if (!wanted && entry.subscription != null) {
+        // The subscription might still be on its way
+        changes.add(entry.subscription.thenCompose((sub) -> {
+          final CompletableFuture<Void> removal = new CompletableFuture<>();
+          entry.unsubscriber.unsubscribe(sub, complete(removal));
+          return removal;
+        }));
+        entry.subscription = null;
+      }
+    }
+
+    return CompletableFuture.allOf(
+        changes.toArray(new CompletableFuture<?>[changes.size()]));
+  }
+
+  private static <F> Continuation<F> complete(
+      final CompletableFuture<F> future)
+  {
+    return new Continuation<F>() {
+      @Override
+      public void onSuccess(F result) {
+        future.complete(result);
+      }
+
+      @Override
+      public void onError(Throwable cause) {
+        future.completeExceptionally(cause);
+      }
+    };
+  }
+}
@@ -16,15 +16,22 @@
 
 package org.kurento.demo;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonObject;
-import java.io.IOException;
-import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
@@ -32,13 +39,19 @@ import org.springframework.web.socket.handler.TextWebSocketHandler;
 
 // Kurento client
 import org.kurento.client.BaseRtpEndpoint;
+import org.kurento.client.ConnectionState;
 import org.kurento.client.Composite;
 import org.kurento.client.EventListener;
 import org.kurento.client.HubPort;
 import org.kurento.client.IceCandidate;
 import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaFlowState;
+import org.kurento.client.MediaObject;
 import org.kurento.client.MediaPipeline;
+import org.kurento.client.TFuture;
+import org.kurento.client.Transaction;
 import org.kurento.client.WebRtcEndpoint;
+import org.kurento.commons.exception.KurentoException;
 import org.kurento.jsonrpc.JsonUtils;
 
 // Kurento events
@@ -62,19 +75,184 @@ import org.kurento.client.NewCandidatePairSelectedEvent;
 public class Handler extends TextWebSocketHandler
 {
   private static final Logger log = LoggerFactory.getLogger(Handler.class);
-  private static final Gson gson = new GsonBuilder().create();
 
+  // All users of all rooms, by WebSocket session ID
   private final ConcurrentHashMap<String, UserSession> users =
       new ConcurrentHashMap<>();
-  private final ConcurrentHashMap<String, WebRtcEndpoint> webRtcEps =
-      new ConcurrentHashMap<>();
-
-  private MediaPipeline pipeline;
-  private Composite composite;
 
   @Autowired
   private KurentoClient kurento;
 
+  @Autowired
+  private RoomManager roomManager;
+
+  @Autowired
+  private EndpointRegistry endpointRegistry;
+
+  @Autowired
+  private PipelineSnapshots pipelineSnapshots;
+
+  @Autowired
+  private SignalingLog signalingLog;
+
+  @Autowired
+  private PendingCandidates pendingCandidates;
+
+  @Autowired
+  private Metrics metrics;
+
+  @Autowired
+  private JoinTimeline joinTimeline;
+
+  @Value("${demo.send-queue.capacity:256}")
+  private int sendQueueCapacity;
+
+  @Value("${demo.send-queue.send-timeout:5000}")
+  private int sendTimeoutMs;
+
+  @Value("${demo.send-queue.threads:0}")
+  private int sendQueueThreads;
+
+  @Value("${demo.send-queue.overflow.candidate:DROP_OLDEST}")
+  private SendQueue.OverflowPolicy candidateOverflowPolicy;
+
+  @Value("${demo.send-queue.overflow.sdp:CLOSE}")
+  private SendQueue.OverflowPolicy sdpOverflowPolicy;
+
+  /**
+   * How incoming WebSocket messages are handled.
+   */
+  public enum DispatchMode
+  {
+    /** In the WebSocket I/O thread; it is blocked by each call to KMS. */
+    INLINE,
+    /** In a worker pool, serially for each session. */
+    ASYNC,
+  }
+
+  @Value("${demo.dispatch.mode:ASYNC}")
+  private DispatchMode dispatchMode;
+
+  @Value("${demo.dispatch.threads:32}")
+  private int dispatchThreads;
+
+  @Value("${demo.endpoints.sweep-period:60}")
+  private int sweepPeriodS;
+
+  @Value("${demo.ice.batch-delay:20}")
+  private int iceBatchDelayMs;
+
+  /**
+   * When the ICE candidate gathering of an endpoint starts.
+   */
+  public enum IceGathering
+  {
+    /** Once the browser has created its WebRTC Peer (WEBRTCPEER_READY). */
+    ON_READY,
+    /** Along with the SDP Offer; the browser holds the early candidates. */
+    EAGER,
+  }
+
+  @Value("${demo.ice.gathering:ON_READY}")
+  private IceGathering iceGathering;
+
+  // Profile of the KMS event subscriptions of new endpoints; can be changed
+  // at runtime with setEventProfile()
+  @Value("${demo.events.profile:OPERATIONAL}")
+  private volatile EventSubscriptions.Profile eventProfile;
+
+  // The event subscriptions of all live endpoints, by endpoint ID
+  private final ConcurrentHashMap<String, EventSubscriptions> eventSubscriptions =
+      new ConcurrentHashMap<>();
+
+  // Shared by the SendQueue of all users, to write messages to the WebSocket
+  private ExecutorService sendExecutor;
+
+  // Shared by the SerialExecutor of all sessions, to make calls to KMS
+  private ExecutorService dispatchExecutor;
+
+  private final ConcurrentHashMap<String, SerialExecutor> sessionExecutors =
+      new ConcurrentHashMap<>();
+
+  // Checks the EndpointRegistry against KMS
+  private ScheduledExecutorService sweepExecutor;
+
+  // Flushes the CandidateBatcher of all endpoints
+  private ScheduledExecutorService iceExecutor;
+
+  @PostConstruct
+  private void init()
+  {
+    final int threads = (sendQueueThreads > 0 ? sendQueueThreads
+        : Runtime.getRuntime().availableProcessors());
+    sendExecutor = Executors.newFixedThreadPool(threads,
+        new CustomizableThreadFactory("send-"));
+
+    metrics.addGauge("users", "Users in all rooms.", users::size);
+    metrics.addGauge("endpoints", "Registered WebRtcEndpoints.",
+        endpointRegistry::getEndpointCount);
+    metrics.addGauge("pipelines", "Media Pipelines of the rooms.",
+        this::getPipelineCount);
+
+    if (dispatchMode == DispatchMode.ASYNC) {
+      dispatchExecutor = Executors.newFixedThreadPool(dispatchThreads,
+          new CustomizableThreadFactory("dispatch-"));
+    }
+
+    if (iceBatchDelayMs > 0) {
+      iceExecutor = Executors.newSingleThreadScheduledExecutor(
+          new CustomizableThreadFactory("ice-"));
+    }
+
+    if (sweepPeriodS > 0) {
+      sweepExecutor = Executors.newSingleThreadScheduledExecutor(
+          new CustomizableThreadFactory("sweep-"));
+      sweepExecutor.scheduleWithFixedDelay(this::sweepEndpoints,
+          sweepPeriodS, sweepPeriodS, TimeUnit.SECONDS);
+    }
+  }
+
+  @PreDestroy
+  private void destroy()
+  {
+    sendExecutor.shutdownNow();
+    if (dispatchExecutor != null) {
+      dispatchExecutor.shutdownNow();
+    }
+    if (sweepExecutor != null) {
+      sweepExecutor.shutdownNow();
+    }
+    if (iceExecutor != null) {
+      iceExecutor.shutdownNow();
+    }
+  }
+
+  private void sweepEndpoints()
+  {
+    for (final Room room : roomManager.getRooms()) {
+      if (room.getPipeline() == null) {
+        continue;
+      }
+
+      try {
+        for (final WebRtcEndpoint orphan : endpointRegistry.sweep(room)) {
+          log.warn("[Handler::sweepEndpoints] Release orphaned endpoint, room: {}, id: {}",
+              room.getRoomId(), orphan.getId());
+          releaseWebRtcEp(orphan);
+        }
+      } catch (KurentoException ex) {
+        // The room might have been closed while sweeping it
+        log.debug("[Handler::sweepEndpoints] Skip room: {}, exception: {}",
+            room.getRoomId(), ex.getMessage());
+      }
+    }
+
+    log.info("[Handler::sweepEndpoints] Live endpoints: {}, sessions: {}, nominal heap: {} bytes ({} per endpoint)",
+        endpointRegistry.getEndpointCount(), endpointRegistry.getSessionCount(),
+        endpointRegistry.getNominalHeapBytes(),
+        endpointRegistry.getNominalEntryHeapBytes());
+  }
+
   /**
 	 * Invoked after WebSocket negotiation has succeeded and the WebSocket connection is
 	 * opened and ready for use.
@@ -85,6 +263,11 @@ public class Handler extends TextWebSocketHandler
   {
     log.info("[Handler::afterConnectionEstablished] New WebSocket connection, sessionId: {}",
         session.getId());
+
+    if (dispatchExecutor != null) {
+      sessionExecutors.put(session.getId(),
+          new SerialExecutor(dispatchExecutor));
+    }
 	}
 
   /**
@@ -102,67 +285,114 @@ public class Handler extends TextWebSocketHandler
           status, session.getId());
     }
 
-    stop(session);
+    // The socket is gone, discard any messages still pending for it
+    final UserSession user = users.get(session.getId());
+    if (user != null) {
+      user.getSendQueue().close();
+    }
+
+    // Queued after any message that is still being handled for this session
+    dispatch(session, () -> stop(session));
+    sessionExecutors.remove(session.getId());
   }
 
   /**
 	 * Invoked when a new WebSocket message arrives.
 	 */
 	@Override
-  protected void handleTextMessage(WebSocketSession session,
-      TextMessage message) throws Exception
+  protected void handleTextMessage(final WebSocketSession session,
+      final TextMessage message) throws Exception
   {
-    final String sessionId = session.getId();
-    JsonObject jsonMessage = gson.fromJson(message.getPayload(),
-        JsonObject.class);
+    dispatch(session, () -> processMessage(session, message));
+  }
 
-    log.info("[Handler::handleTextMessage] message: {}, sessionId: {}",
-        jsonMessage, sessionId);
+  /**
+   * Run a task for the given session. In ASYNC mode, the task is queued on
+   * the session's SerialExecutor and this method returns immediately.
+   */
+  private void dispatch(final WebSocketSession session, Runnable task)
+  {
+    final SerialExecutor executor = sessionExecutors.get(session.getId());
+    if (executor != null) {
+      executor.execute(task);
+    } else {
+      task.run();
+    }
+  }
+
+  private void processMessage(final WebSocketSession session,
+      TextMessage textMessage)
+  {
+    final String sessionId = session.getId();
+    final long startNs = System.nanoTime();
+    String messageId = null;
+    Metrics.Outcome outcome = Metrics.Outcome.OK;
 
     try {
-      final String messageId = jsonMessage.get("id").getAsString();
-      switch (messageId) {
+      final SignalingMessage message =
+          SignalingCodec.decode(textMessage.getPayload());
+      messageId = message.getId();
+
+      if (signalingLog.sample(messageId)) {
+        log.info("[Handler::processMessage] id: {}, sessionId: {}", messageId,
+            sessionId);
+        log.debug("[Handler::processMessage] payload: {}",
+            signalingLog.redact(textMessage.getPayload()));
+      }
+
+      switch (String.valueOf(messageId)) {
         case "START":
           // Create WebRtcEndpoint and send to browser.
-          handleStart(session, jsonMessage);
+          if (!handleStart(session, message)) {
+            outcome = Metrics.Outcome.REJECTED;
+          }
           break;
         case "WEBRTCPEER_READY":
           // Browser PeerConnection is ready.
           // Start ICE Gathering, send candidates with 'ADD_ICE_CANDIDATE'.
-          handleWebRtcPeerReady(session, jsonMessage);
+          handleWebRtcPeerReady(session, message);
           break;
         case "PROCESS_SDP_ANSWER":
           // Browser PeerConnection processed our SDP Offer.
           // Pass SDP Answer to WebRtcEndpoint.
-          handleProcessSdpAnswer(session, jsonMessage);
+          handleProcessSdpAnswer(session, message);
           break;
         case "ADD_ICE_CANDIDATE":
           // Browser PeerConnection found some candidate.
           // Pass candidate to WebRtcEndpoint.
-          handleAddIceCandidate(session, jsonMessage);
+          handleAddIceCandidate(session, message);
+          break;
+        case "ADD_ICE_CANDIDATES":
+          // Browser PeerConnection found a batch of candidates.
+          // Pass all of them to WebRtcEndpoint in a single transaction.
+          handleAddIceCandidates(session, message);
           break;
         case "STOP":
           // Release all.
-          handleStop(session, jsonMessage);
+          handleStop(session, message);
           break;
         case "DEBUG":
           // Print debug information.
-          handleDebug(session, jsonMessage);
+          handleDebug(session, message);
           break;
         case "ERROR":
-          handleError(session, jsonMessage);
+          handleError(session, message);
           break;
         default:
           // Ignore the message
-          log.warn("[Handler::handleTextMessage] Skip, invalid message, id: {}",
+          log.warn("[Handler::processMessage] Skip, invalid message, id: {}",
               messageId);
+          outcome = Metrics.Outcome.REJECTED;
           break;
       }
     } catch (Throwable ex) {
-      log.error("[Handler::handleTextMessage] Exception: {}, sessionId: {}",
+      outcome = Metrics.Outcome.ERROR;
+      log.error("[Handler::processMessage] Exception: {}, sessionId: {}",
           ex, sessionId);
       sendError(session, "[Kurento] Exception: " + ex.getMessage());
     }
+
+    metrics.recordMessage(messageId, outcome, startNs);
   }
 
   /**
@@ -178,10 +408,15 @@ public class Handler extends TextWebSocketHandler
     session.close(CloseStatus.SERVER_ERROR);
   }
 
-  private synchronized void sendMessage(final WebSocketSession session,
-      String message)
+  private void sendMessage(final WebSocketSession session, String message)
+  {
+    sendMessage(session, message, sdpOverflowPolicy);
+  }
+
+  private void sendMessage(final WebSocketSession session, String message,
+      SendQueue.OverflowPolicy overflowPolicy)
   {
-    log.debug("[Handler::sendMessage] {}", message);
+    log.debug("[Handler::sendMessage] {}", signalingLog.redact(message));
 
     if (!session.isOpen()) {
       log.warn("[Handler::sendMessage] Skip, WebSocket session isn't open");
@@ -189,17 +424,15 @@ public class Handler extends TextWebSocketHandler
     }
 
     final String sessionId = session.getId();
-    if (!users.containsKey(sessionId)) {
+    final UserSession user = users.get(sessionId);
+    if (user == null) {
       log.warn("[Handler::sendMessage] Skip, unknown user, id: {}",
           sessionId);
       return;
     }
 
-    try {
-      session.sendMessage(new TextMessage(message));
-    } catch (IOException ex) {
-      log.error("[Handler::sendMessage] Exception: {}", ex.getMessage());
-    }
+    // Non-blocking: the user's SendQueue writes to the socket on its own
+    user.getSendQueue().offer(message, overflowPolicy);
   }
 
   private void sendError(final WebSocketSession session, String errMsg)
@@ -207,234 +440,488 @@ public class Handler extends TextWebSocketHandler
     log.error(errMsg);
 
     if (users.containsKey(session.getId())) {
-      JsonObject message = new JsonObject();
-      message.addProperty("id", "ERROR");
-      message.addProperty("message", errMsg);
-      sendMessage(session, message.toString());
+      sendMessage(session, SignalingCodec.encodeError(errMsg));
     }
   }
 
+  /**
+   * Send an ERROR to a user that was not added yet, for which sendError()
+   * would drop it.
+   */
+  private void rejectStart(final UserSession user, String errMsg)
+  {
+    log.error(errMsg);
+    user.getSendQueue().offer(SignalingCodec.encodeError(errMsg),
+        sdpOverflowPolicy);
+  }
+
+  /**
+   * Find an endpoint in the room of the given session's user.
+   */
+  private WebRtcEndpoint getWebRtcEp(final WebSocketSession session,
+      String webRtcEpId)
+  {
+    return endpointRegistry.get(session.getId(), webRtcEpId);
+  }
+
   // START ---------------------------------------------------------------------
 
   private void initBaseEventListeners(final WebSocketSession session,
-      BaseRtpEndpoint baseRtpEp, final String className)
+      BaseRtpEndpoint baseRtpEp, final String className, final String name,
+      EventSubscriptions subscriptions)
   {
     log.info("[Handler::initBaseEventListeners] name: {}, class: {}, sessionId: {}",
-        baseRtpEp.getName(), className, session.getId());
+        name, className, session.getId());
 
     // Event: Some error happened
-    baseRtpEp.addErrorListener(new EventListener<ErrorEvent>() {
+    subscriptions.add(EventSubscriptions.Profile.MINIMAL,
+        (cont) -> baseRtpEp.addErrorListener(
+        new EventListener<ErrorEvent>() {
       @Override
       public void onEvent(ErrorEvent ev) {
         log.error("[{}::ErrorEvent] Error code {}: '{}', source: {}, timestamp: {}, tags: {}, description: {}",
-            className, ev.getErrorCode(), ev.getType(), ev.getSource().getName(),
+            className, ev.getErrorCode(), ev.getType(), name,
             ev.getTimestamp(), ev.getTags(), ev.getDescription());
 
         sendError(session, "[Kurento] " + ev.getDescription());
-        stop(session);
+        dispatch(session, () -> stop(session));
       }
-    });
+    }, cont), baseRtpEp::removeErrorListener);
 
     // Event: Media is flowing into this sink
-    baseRtpEp.addMediaFlowInStateChangeListener(
+    subscriptions.add(EventSubscriptions.Profile.OPERATIONAL,
+        (cont) -> baseRtpEp.addMediaFlowInStateChangeListener(
         new EventListener<MediaFlowInStateChangeEvent>() {
       @Override
       public void onEvent(MediaFlowInStateChangeEvent ev) {
         log.info("[{}::{}] source: {}, timestamp: {}, tags: {}, state: {}, padName: {}, mediaType: {}",
-            className, ev.getType(), ev.getSource().getName(), ev.getTimestamp(),
+            className, ev.getType(), name, ev.getTimestamp(),
             ev.getTags(), ev.getState(), ev.getPadName(), ev.getMediaType());
+
+        if (ev.getState() == MediaFlowState.FLOWING) {
+          final String sessionId =
+              endpointRegistry.getSessionId(ev.getSource().getId());
+          if (sessionId != null) {
+            metrics.recordMediaFlowing(sessionId);
+            joinTimeline.record(sessionId, ev.getSource().getId(),
+                JoinTimeline.Phase.MEDIA_FLOWING);
+          }
+        }
       }
-    });
+    }, cont), baseRtpEp::removeMediaFlowInStateChangeListener);
 
     // Event: Media is flowing out of this source
-    baseRtpEp.addMediaFlowOutStateChangeListener(
+    subscriptions.add(EventSubscriptions.Profile.OPERATIONAL,
+        (cont) -> baseRtpEp.addMediaFlowOutStateChangeListener(
         new EventListener<MediaFlowOutStateChangeEvent>() {
       @Override
       public void onEvent(MediaFlowOutStateChangeEvent ev) {
         log.info("[{}::{}] source: {}, timestamp: {}, tags: {}, state: {}, padName: {}, mediaType: {}",
-            className, ev.getType(), ev.getSource().getName(), ev.getTimestamp(),
+            className, ev.getType(), name, ev.getTimestamp(),
             ev.getTags(), ev.getState(), ev.getPadName(), ev.getMediaType());
       }
-    });
+    }, cont), baseRtpEp::removeMediaFlowOutStateChangeListener);
 
     // Event: [TODO write meaning of this event]
-    baseRtpEp.addConnectionStateChangedListener(
+    subscriptions.add(EventSubscriptions.Profile.OPERATIONAL,
+        (cont) -> baseRtpEp.addConnectionStateChangedListener(
         new EventListener<ConnectionStateChangedEvent>() {
       @Override
       public void onEvent(ConnectionStateChangedEvent ev) {
         log.info("[{}::{}] source: {}, timestamp: {}, tags: {}, oldState: {}, newState: {}",
-            className, ev.getType(), ev.getSource().getName(), ev.getTimestamp(),
+            className, ev.getType(), name, ev.getTimestamp(),
             ev.getTags(), ev.getOldState(), ev.getNewState());
+        if (ev.getNewState() == ConnectionState.CONNECTED) {
+          logTimeToConnected(ev.getSource().getId());
+        }
       }
-    });
+    }, cont), baseRtpEp::removeConnectionStateChangedListener);
 
     // Event: [TODO write meaning of this event]
-    baseRtpEp.addMediaStateChangedListener(
+    subscriptions.add(EventSubscriptions.Profile.OPERATIONAL,
+        (cont) -> baseRtpEp.addMediaStateChangedListener(
         new EventListener<MediaStateChangedEvent>() {
       @Override
       public void onEvent(MediaStateChangedEvent ev) {
         log.info("[{}::{}] source: {}, timestamp: {}, tags: {}, oldState: {}, newState: {}",
-            className, ev.getType(), ev.getSource().getName(), ev.getTimestamp(),
+            className, ev.getType(), name, ev.getTimestamp(),
             ev.getTags(), ev.getOldState(), ev.getNewState());
       }
-    });
+    }, cont), baseRtpEp::removeMediaStateChangedListener);
 
     // Event: This element will (or will not) perform media transcoding
-    baseRtpEp.addMediaTranscodingStateChangeListener(
+    subscriptions.add(EventSubscriptions.Profile.DEBUG,
+        (cont) -> baseRtpEp.addMediaTranscodingStateChangeListener(
         new EventListener<MediaTranscodingStateChangeEvent>() {
       @Override
       public void onEvent(MediaTranscodingStateChangeEvent ev) {
         log.info("[{}::{}] source: {}, timestamp: {}, tags: {}, state: {}, binName: {}, mediaType: {}",
-            className, ev.getType(), ev.getSource().getName(), ev.getTimestamp(),
+            className, ev.getType(), name, ev.getTimestamp(),
             ev.getTags(), ev.getState(), ev.getBinName(), ev.getMediaType());
       }
-    });
+    }, cont), baseRtpEp::removeMediaTranscodingStateChangeListener);
   }
 
   private void initWebRtcEventListeners(final WebSocketSession session,
-      final WebRtcEndpoint webRtcEp)
+      final WebRtcEndpoint webRtcEp, final String name,
+      EventSubscriptions subscriptions)
   {
     log.info("[Handler::initWebRtcEventListeners] name: {}, sessionId: {}",
-        webRtcEp.getName(), session.getId());
+        name, session.getId());
 
     // Event: A WebRTC Data Channel has been closed.
-    webRtcEp.addDataChannelClosedListener(
+    subscriptions.add(EventSubscriptions.Profile.OPERATIONAL,
+        (cont) -> webRtcEp.addDataChannelClosedListener(
         new EventListener<DataChannelClosedEvent>() {
       @Override
       public void onEvent(DataChannelClosedEvent ev) {
         log.info("[WebRtcEndpoint::{}] source: {}, timestamp: {}, tags: {}, channelId: {}",
-            ev.getType(), ev.getSource().getName(), ev.getTimestamp(),
+            ev.getType(), name, ev.getTimestamp(),
             ev.getTags(), ev.getChannelId());
       }
-    });
+    }, cont), webRtcEp::removeDataChannelClosedListener);
 
     // Event: A WebRTC Data Channel has been opened.
-    webRtcEp.addDataChannelOpenedListener(
+    subscriptions.add(EventSubscriptions.Profile.OPERATIONAL,
+        (cont) -> webRtcEp.addDataChannelOpenedListener(
         new EventListener<DataChannelOpenedEvent>() {
       @Override
       public void onEvent(DataChannelOpenedEvent ev) {
         log.info("[WebRtcEndpoint::{}] source: {}, timestamp: {}, tags: {}, channelId: {}",
-            ev.getType(), ev.getSource().getName(), ev.getTimestamp(),
+            ev.getType(), name, ev.getTimestamp(),
             ev.getTags(), ev.getChannelId());
       }
-    });
+    }, cont), webRtcEp::removeDataChannelOpenedListener);
+
+    // Local candidates are sent in batches with 'ADD_ICE_CANDIDATES', unless
+    // batching is disabled
+    final CandidateBatcher iceBatcher = (iceExecutor == null ? null
+        : new CandidateBatcher(iceExecutor, iceBatchDelayMs,
+            (candidates) -> sendIceCandidates(session, webRtcEp, candidates)));
 
     // Event: The ICE backend found a local candidate during Trickle ICE
-    webRtcEp.addIceCandidateFoundListener(
+    subscriptions.add(EventSubscriptions.Profile.MINIMAL,
+        (cont) -> webRtcEp.addIceCandidateFoundListener(
         new EventListener<IceCandidateFoundEvent>() {
+      private final AtomicBoolean firstCandidate = new AtomicBoolean(true);
+
       @Override
       public void onEvent(IceCandidateFoundEvent ev) {
-        log.debug("[WebRtcEndpoint::{}] source: {}, timestamp: {}, tags: {}, candidate: {}",
-            ev.getType(), ev.getSource().getName(), ev.getTimestamp(),
-            ev.getTags(), JsonUtils.toJson(ev.getCandidate()));
-
-        JsonObject message = new JsonObject();
-        message.addProperty("id", "ADD_ICE_CANDIDATE");
-        message.addProperty("webRtcEpId", webRtcEp.getId());
-        message.add("candidate", JsonUtils.toJsonObject(ev.getCandidate()));
-        sendMessage(session, message.toString());
+        if (firstCandidate.compareAndSet(true, false)) {
+          recordPhase(webRtcEp.getId(), JoinTimeline.Phase.CANDIDATE_OUT);
+        }
+
+        if (log.isDebugEnabled() && signalingLog.sample(ev.getType())) {
+          log.debug("[WebRtcEndpoint::{}] source: {}, timestamp: {}, tags: {}, candidate: {}",
+              ev.getType(), name, ev.getTimestamp(),
+              ev.getTags(), JsonUtils.toJson(ev.getCandidate()));
+        }
+
+        if (iceBatcher != null) {
+          iceBatcher.add(ev.getCandidate());
+          return;
+        }
+
+        sendMessage(session, SignalingCodec.encodeIceCandidate(
+            webRtcEp.getId(), ev.getCandidate()), candidateOverflowPolicy);
       }
-    });
+    }, cont), webRtcEp::removeIceCandidateFoundListener);
 
     // Event: The ICE backend changed state
-    webRtcEp.addIceComponentStateChangedListener(
+    subscriptions.add(EventSubscriptions.Profile.DEBUG,
+        (cont) -> webRtcEp.addIceComponentStateChangedListener(
         new EventListener<IceComponentStateChangedEvent>() {
       @Override
       public void onEvent(IceComponentStateChangedEvent ev) {
         log.debug("[WebRtcEndpoint::{}] source: {}, timestamp: {}, tags: {}, streamId: {}, componentId: {}, state: {}",
-            ev.getType(), ev.getSource().getName(), ev.getTimestamp(),
+            ev.getType(), name, ev.getTimestamp(),
             ev.getTags(), ev.getStreamId(), ev.getComponentId(), ev.getState());
       }
-    });
+    }, cont), webRtcEp::removeIceComponentStateChangedListener);
 
     // Event: The ICE backend finished gathering ICE candidates
-    webRtcEp.addIceGatheringDoneListener(
+    subscriptions.add(EventSubscriptions.Profile.OPERATIONAL,
+        (cont) -> webRtcEp.addIceGatheringDoneListener(
         new EventListener<IceGatheringDoneEvent>() {
       @Override
       public void onEvent(IceGatheringDoneEvent ev) {
         log.info("[WebRtcEndpoint::{}] source: {}, timestamp: {}, tags: {}",
-            ev.getType(), ev.getSource().getName(), ev.getTimestamp(),
+            ev.getType(), name, ev.getTimestamp(),
             ev.getTags());
+
+        // No more candidates will come, don't wait for the batch delay.
+        // Without this event (MINIMAL profile), batches wait for the delay
+        if (iceBatcher != null) {
+          iceBatcher.flush();
+        }
       }
-    });
+    }, cont), webRtcEp::removeIceGatheringDoneListener);
 
     // Event: The ICE backend selected a new pair of ICE candidates for use
-    webRtcEp.addNewCandidatePairSelectedListener(
+    subscriptions.add(EventSubscriptions.Profile.OPERATIONAL,
+        (cont) -> webRtcEp.addNewCandidatePairSelectedListener(
         new EventListener<NewCandidatePairSelectedEvent>() {
       @Override
       public void onEvent(NewCandidatePairSelectedEvent ev) {
+        recordPhase(webRtcEp.getId(),
+            JoinTimeline.Phase.CANDIDATE_PAIR_SELECTED);
+
         log.info("[WebRtcEndpoint::{}] name: {}, timestamp: {}, tags: {}, streamId: {}, local: {}, remote: {}",
-            ev.getType(), ev.getSource().getName(), ev.getTimestamp(),
+            ev.getType(), name, ev.getTimestamp(),
             ev.getTags(), ev.getCandidatePair().getStreamID(),
             ev.getCandidatePair().getLocalCandidate(),
             ev.getCandidatePair().getRemoteCandidate());
       }
-    });
+    }, cont), webRtcEp::removeNewCandidatePairSelectedListener);
+  }
+
+  /**
+   * Change the profile of the event subscriptions, for new endpoints and for
+   * all live ones. Returns without waiting for KMS.
+   */
+  public void setEventProfile(EventSubscriptions.Profile profile)
+  {
+    log.info("[Handler::setEventProfile] profile: {}, live endpoints: {}",
+        profile, eventSubscriptions.size());
+    eventProfile = profile;
+    for (final EventSubscriptions subscriptions : eventSubscriptions.values()) {
+      subscriptions.apply(profile);
+    }
+  }
+
+  /**
+   * Change the profile of the event subscriptions of the live endpoints of
+   * one room, e.g. to debug it. New endpoints still get the default profile.
+   *
+   * @return false if the room does not exist.
+   */
+  public boolean setEventProfile(String roomId,
+      EventSubscriptions.Profile profile)
+  {
+    final Room room = roomManager.getRoom(roomId);
+    if (room == null || room.getPipeline() == null) {
+      return false;
+    }
+
+    final String prefix = room.getPipeline().getId() + "/";
+    int count = 0;
+    for (final Map.Entry<String, EventSubscriptions> entry
+        : eventSubscriptions.entrySet()) {
+      if (entry.getKey().startsWith(prefix)) {
+        entry.getValue().apply(profile);
+        count++;
+      }
+    }
+    log.info("[Handler::setEventProfile] room: {}, profile: {}, endpoints: {}",
+        roomId, profile, count);
+    return true;
+  }
+
+  public EventSubscriptions.Profile getEventProfile()
+  { return this.eventProfile; }
+
+  private long getPipelineCount()
+  {
+    long count = 0;
+    for (final Room room : roomManager.getRooms()) {
+      if (room.getPipeline() != null) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Record a join phase of an endpoint, for its owner session.
+   */
+  private void recordPhase(String webRtcEpId, JoinTimeline.Phase phase)
+  {
+    final String sessionId = endpointRegistry.getSessionId(webRtcEpId);
+    if (sessionId != null) {
+      joinTimeline.record(sessionId, webRtcEpId, phase);
+    }
   }
 
-  private void initWebRtcEndpoint(final WebSocketSession session,
-      final WebRtcEndpoint webRtcEp, String baseName, String msgId)
+  /**
+   * Record only the first ICE candidate from the browser for each endpoint;
+   * the rest would push older phases out of the timeline.
+   */
+  private void recordCandidateIn(final WebSocketSession session,
+      String webRtcEpId)
   {
-    initBaseEventListeners(session, webRtcEp, "WebRtcEndpoint");
-    initWebRtcEventListeners(session, webRtcEp);
+    final UserSession user = users.get(session.getId());
+    if (user != null && user.firstCandidateIn(webRtcEpId)) {
+      joinTimeline.record(session.getId(), webRtcEpId,
+          JoinTimeline.Phase.CANDIDATE_IN);
+    }
+  }
 
+  private void sendIceCandidates(final WebSocketSession session,
+      final WebRtcEndpoint webRtcEp, List<IceCandidate> candidates)
+  {
+    sendMessage(session, SignalingCodec.encodeIceCandidates(webRtcEp.getId(),
+        candidates), candidateOverflowPolicy);
+  }
+
+  /**
+   * @return false if the endpoint didn't fit in the registry. It was released
+   *     then, so the caller must not keep it.
+   */
+  private boolean initWebRtcEndpoint(final Room room,
+      final WebSocketSession session, final WebRtcEndpoint webRtcEp,
+      EndpointRegistry.Role role, String msgId)
+  {
     final String sessionId = session.getId();
-    final String name = baseName + sessionId + "_webrtcendpoint" + webRtcEps.size();
+    final String name = endpointRegistry.nextName(role, sessionId);
+
+    // The browser starts ICE after the SDP Offer, so the subscriptions must
+    // be confirmed by KMS first
+    final EventSubscriptions subscriptions = new EventSubscriptions();
+    initBaseEventListeners(session, webRtcEp, "WebRtcEndpoint", name,
+        subscriptions);
+    initWebRtcEventListeners(session, webRtcEp, name, subscriptions);
+    eventSubscriptions.put(webRtcEp.getId(), subscriptions);
+    final long subscribeStartNs = System.nanoTime();
+    subscriptions.apply(eventProfile).join();
+    metrics.recordKmsCall("subscribe", subscribeStartNs);
+
     webRtcEp.setName(name);
-    webRtcEps.put(webRtcEp.getId(), webRtcEp);
+    if (!endpointRegistry.register(webRtcEp, name, role, sessionId, room)) {
+      releaseWebRtcEp(webRtcEp);
+      sendError(session, "[Kurento] Too many endpoints, name: " + name);
+      return false;
+    }
 
-    // Start an SDP Negotiation
-    final String sdpOffer = webRtcEp.generateOffer();
+    // Start an SDP Negotiation, along with any ICE candidates that arrived
+    // before the registration, and the ICE gathering if it is eager
+    final Transaction tx = kurento.beginTransaction();
+    final TFuture<String> sdpOfferFuture = webRtcEp.generateOffer(tx);
+    addPendingCandidates(tx, session, webRtcEp);
+    if (iceGathering == IceGathering.EAGER) {
+      webRtcEp.gatherCandidates(tx);
+    }
+    final long offerStartNs = System.nanoTime();
+    tx.commit();
+    final String sdpOffer = sdpOfferFuture.get();
+    metrics.recordKmsCall("generateOffer", offerStartNs);
 
     log.info("[Handler::initWebRtcEndpoint] name: {}, SDP Offer from KMS to browser:\n{}",
-        name, sdpOffer);
+        name, signalingLog.redact(sdpOffer));
 
-    JsonObject message = new JsonObject();
-    message.addProperty("id", msgId);
-    message.addProperty("webRtcEpId", webRtcEp.getId());
-    message.addProperty("sdpOffer", sdpOffer);
-    sendMessage(session, message.toString());
+    sendMessage(session, SignalingCodec.encodeSdpOffer(msgId,
+        webRtcEp.getId(), sdpOffer));
+    joinTimeline.record(sessionId, webRtcEp.getId(),
+        JoinTimeline.Phase.OFFER_SENT);
+    return true;
   }
 
-  private void handleStart(final WebSocketSession session,
-      JsonObject jsonMessage)
+  /**
+   * @return false if the START was turned away, and the user didn't join.
+   */
+  private boolean handleStart(final WebSocketSession session,
+      SignalingMessage message)
   {
     final String sessionId = session.getId();
     if (users.containsKey(sessionId)) {
       log.warn("[Handler::handleStart] Skip, user already exists, id: {}",
           sessionId);
-      return;
+      return false;
     }
 
-    if (pipeline == null) {
-      log.info("[Handler::handleStart] Create Media Pipeline");
-      pipeline = kurento.createMediaPipeline();
-      composite = new Composite.Builder(pipeline).build();
-    }
-    else {
-      log.info("[Handler::handleStart] Media Pipeline already exists");
-    }
+    final String roomId = (message.getRoomId() != null
+        ? message.getRoomId() : RoomManager.DEFAULT_ROOM_ID);
 
-    log.info("[Handler::handleStart] User count: {}", users.size());
-    log.info("[Handler::handleStart] New user, id: {}", sessionId);
+    log.info("[Handler::handleStart] New user, room: {}, id: {}", roomId,
+        sessionId);
 
     final UserSession user = new UserSession();
+    user.setWsSession(session);
+    user.setSendQueue(new SendQueue(session, sendQueueCapacity, sendTimeoutMs,
+        sendExecutor));
+
+    // Checked again when each endpoint is registered, but most joins that
+    // would not fit are turned away here, before building anything
+    if (endpointRegistry.isFull()) {
+      rejectStart(user, "[Kurento] Too many endpoints, try again later");
+      return false;
+    }
+
+    final Room room = roomManager.joinRoom(roomId, user);
+    user.setRoom(room);
     users.put(sessionId, user);
+    metrics.startMedia(sessionId);
+    joinTimeline.record(sessionId, null, JoinTimeline.Phase.START);
+
+    final MediaPipeline pipeline;
+    synchronized (room) {
+      if (room.getPipeline() == null) {
+        log.info("[Handler::handleStart] Create Media Pipeline, room: {}",
+            roomId);
+        final long pipelineStartNs = System.nanoTime();
+        room.setPipeline(kurento.createMediaPipeline());
+        room.setComposite(new Composite.Builder(room.getPipeline()).build());
+        metrics.recordKmsCall("createMediaPipeline", pipelineStartNs);
+      }
+      else {
+        log.info("[Handler::handleStart] Media Pipeline already exists, room: {}",
+            roomId);
+      }
+      pipeline = room.getPipeline();
+    }
 
+    log.info("[Handler::handleStart] Room: {}, user count: {}", roomId,
+        room.getUsers().size());
+
+    long startNs = System.nanoTime();
     final WebRtcEndpoint webRtcEp = new WebRtcEndpoint.Builder(pipeline)
         .useDataChannels().build();
-    initWebRtcEndpoint(session, webRtcEp, "user", "MAKE_PEER");
+    metrics.recordKmsCall("build", startNs);
+    joinTimeline.record(sessionId, webRtcEp.getId(),
+        JoinTimeline.Phase.ENDPOINT_BUILT);
+    user.setWebRtcEp(webRtcEp);
+    if (!initWebRtcEndpoint(room, session, webRtcEp,
+        EndpointRegistry.Role.PEER, "MAKE_PEER")) {
+      // Released already; the user stays in the room without media, until
+      // it sends STOP
+      user.setWebRtcEp(null);
+      return true;
+    }
 
     log.info("[Handler::handleStart] New peer: {}",
-        webRtcEp.getName());
+        endpointRegistry.getName(webRtcEp.getId()));
 
-    HubPort sendPort = new HubPort.Builder(composite).build();
+    startNs = System.nanoTime();
+    HubPort sendPort = new HubPort.Builder(room.getComposite()).build();
+    metrics.recordKmsCall("build", startNs);
     sendPort.setName("user" + sessionId + "_sendPort");
+    user.setSendPort(sendPort);
+    startNs = System.nanoTime();
     webRtcEp.connect(sendPort);
+    metrics.recordKmsCall("connect", startNs);
 
-    HubPort recvPort = new HubPort.Builder(composite).build();
+    startNs = System.nanoTime();
+    HubPort recvPort = new HubPort.Builder(room.getComposite()).build();
+    metrics.recordKmsCall("build", startNs);
     recvPort.setName("user" + sessionId + "_recvPort");
+    user.setRecvPort(recvPort);
+    startNs = System.nanoTime();
     recvPort.connect(webRtcEp);
+    metrics.recordKmsCall("connect", startNs);
+    return true;
+  }
+
+  /**
+   * Log the time from the SDP Offer of an endpoint until it gets connected,
+   * to compare the ICE gathering modes.
+   */
+  private void logTimeToConnected(String webRtcEpId)
+  {
+    final long ageMs = endpointRegistry.getAgeMs(webRtcEpId);
+    if (ageMs < 0) {
+      return;
+    }
+    log.info("[Handler::logTimeToConnected] name: {}, gathering: {}, time to connected: {} ms",
+        endpointRegistry.getName(webRtcEpId), iceGathering, ageMs);
   }
 
   // WEBRTCPEER_READY ----------------------------------------------------------
@@ -444,80 +931,207 @@ public class Handler extends TextWebSocketHandler
     // Calling gatherCandidates() is when the Endpoint actually starts working.
     // That is emphasized for demonstration purposes in this code, by launching
     // the ICE candidate gathering in its own method.
+    final long startNs = System.nanoTime();
     webRtcEp.gatherCandidates();
+    metrics.recordKmsCall("gatherCandidates", startNs);
   }
 
   private void handleWebRtcPeerReady(final WebSocketSession session,
-      JsonObject jsonMessage)
+      SignalingMessage message)
   {
-    final String webRtcEpId = jsonMessage.get("webRtcEpId").getAsString();
-    if (!webRtcEps.containsKey(webRtcEpId)) {
+    final String webRtcEpId = message.getWebRtcEpId();
+    final WebRtcEndpoint webRtcEp = getWebRtcEp(session, webRtcEpId);
+    if (webRtcEp == null) {
       log.warn("[Handler::handleWebRtcPeerReady] Skip, unknown endpoint, id: {}",
           webRtcEpId);
       return;
     }
+    joinTimeline.record(session.getId(), webRtcEpId,
+        JoinTimeline.Phase.WEBRTCPEER_READY);
+
+    if (iceGathering == IceGathering.EAGER) {
+      // Started already, along with the SDP Offer
+      return;
+    }
 
-    WebRtcEndpoint webRtcEp = webRtcEps.get(webRtcEpId);
     startWebRtcEndpoint(webRtcEp);
   }
 
   // PROCESS_SDP_ANSWER --------------------------------------------------------
 
   private void handleProcessSdpAnswer(final WebSocketSession session,
-      JsonObject jsonMessage)
+      SignalingMessage message)
   {
-    final String webRtcEpId = jsonMessage.get("webRtcEpId").getAsString();
-    if (!webRtcEps.containsKey(webRtcEpId)) {
+    final String webRtcEpId = message.getWebRtcEpId();
+    final WebRtcEndpoint webRtcEp = getWebRtcEp(session, webRtcEpId);
+    if (webRtcEp == null) {
       log.warn("[Handler::handleProcessSdpAnswer] Skip, unknown endpoint, id: {}",
           webRtcEpId);
       return;
     }
 
-    final String sdpAnswer = jsonMessage.get("sdpAnswer").getAsString();
+    final String sdpAnswer = message.getSdpAnswer();
 
-    WebRtcEndpoint webRtcEp = webRtcEps.get(webRtcEpId);
     log.info("[Handler::handleProcessSdpAnswer] name: {}, SDP Answer from browser to KMS:\n{}",
-        webRtcEp.getName(), sdpAnswer);
+        endpointRegistry.getName(webRtcEpId), signalingLog.redact(sdpAnswer));
+    final long startNs = System.nanoTime();
     webRtcEp.processAnswer(sdpAnswer);
+    metrics.recordKmsCall("processAnswer", startNs);
+    joinTimeline.record(session.getId(), webRtcEpId,
+        JoinTimeline.Phase.ANSWER_PROCESSED);
   }
 
   // ADD_ICE_CANDIDATE ---------------------------------------------------------
 
   private void handleAddIceCandidate(final WebSocketSession session,
-      JsonObject jsonMessage)
+      SignalingMessage message)
   {
-    final String webRtcEpId = jsonMessage.get("webRtcEpId").getAsString();
-    if (!webRtcEps.containsKey(webRtcEpId)) {
-      log.warn("[Handler::handleAddIceCandidate] Skip, unknown endpoint, id: {}",
-          webRtcEpId);
+    final String webRtcEpId = message.getWebRtcEpId();
+    recordCandidateIn(session, webRtcEpId);
+    final WebRtcEndpoint webRtcEp = getWebRtcEp(session, webRtcEpId);
+    if (webRtcEp == null) {
+      holdIceCandidates(session, webRtcEpId,
+          Collections.singletonList(message.getCandidate()));
       return;
     }
 
-    final JsonObject jsonCandidate =
-        jsonMessage.get("candidate").getAsJsonObject();
-    final IceCandidate candidate =
-        new IceCandidate(jsonCandidate.get("candidate").getAsString(),
-        jsonCandidate.get("sdpMid").getAsString(),
-        jsonCandidate.get("sdpMLineIndex").getAsInt());
+    final long startNs = System.nanoTime();
+    webRtcEp.addIceCandidate(message.getCandidate());
+    metrics.recordKmsCall("addIceCandidate", startNs);
+  }
+
+  // ADD_ICE_CANDIDATES --------------------------------------------------------
 
-    WebRtcEndpoint webRtcEp = webRtcEps.get(webRtcEpId);
-    webRtcEp.addIceCandidate(candidate);
+  private void handleAddIceCandidates(final WebSocketSession session,
+      SignalingMessage message)
+  {
+    final String webRtcEpId = message.getWebRtcEpId();
+    recordCandidateIn(session, webRtcEpId);
+    final WebRtcEndpoint webRtcEp = getWebRtcEp(session, webRtcEpId);
+    if (webRtcEp == null) {
+      holdIceCandidates(session, webRtcEpId, message.getCandidates());
+      return;
+    }
+
+    // One request to KMS for the whole batch
+    final Transaction tx = kurento.beginTransaction();
+    for (final IceCandidate candidate : message.getCandidates()) {
+      webRtcEp.addIceCandidate(tx, candidate);
+    }
+    final long startNs = System.nanoTime();
+    tx.commit();
+    metrics.recordKmsCall("addIceCandidate", startNs);
+  }
+
+  /**
+   * Hold the candidates of an endpoint that isn't registered yet, until it
+   * is. Candidates of endpoints that never get registered (e.g. released
+   * already) are dropped after a while.
+   */
+  private void holdIceCandidates(final WebSocketSession session,
+      String webRtcEpId, List<IceCandidate> candidates)
+  {
+    final int held = pendingCandidates.add(session.getId(), webRtcEpId,
+        candidates);
+    if (held < candidates.size()) {
+      log.warn("[Handler::holdIceCandidates] Drop candidates of unknown endpoint, id: {}, dropped: {}",
+          webRtcEpId, candidates.size() - held);
+    } else {
+      log.debug("[Handler::holdIceCandidates] Hold candidates of unknown endpoint, id: {}, count: {}",
+          webRtcEpId, held);
+    }
+  }
+
+  /**
+   * Add the candidates that were held for a newly registered endpoint. KMS
+   * keeps them until the SDP Answer is processed.
+   *
+   * @return the number of candidates added in the Transaction.
+   */
+  private int addPendingCandidates(final Transaction tx,
+      final WebSocketSession session, final WebRtcEndpoint webRtcEp)
+  {
+    final List<IceCandidate> candidates =
+        pendingCandidates.take(session.getId(), webRtcEp.getId());
+    for (final IceCandidate candidate : candidates) {
+      webRtcEp.addIceCandidate(tx, candidate);
+    }
+    if (!candidates.isEmpty()) {
+      log.info("[Handler::addPendingCandidates] name: {}, candidates: {}",
+          endpointRegistry.getName(webRtcEp.getId()), candidates.size());
+    }
+    return candidates.size();
   }
 
   // STOP ----------------------------------------------------------------------
 
   private void stop(final WebSocketSession session)
   {
-    // Remove all user sessions and release all resources
-    users.clear();
-    if (pipeline != null) {
-      log.info("[Handler::stop] Release the Media Pipeline");
-      pipeline.release();
+    final String sessionId = session.getId();
+    pendingCandidates.forgetSession(sessionId);
+    metrics.forgetSession(sessionId);
+    final UserSession user = users.remove(sessionId);
+    if (user == null) {
+      log.debug("[Handler::stop] Skip, unknown user, id: {}", sessionId);
+      return;
+    }
+
+    user.getSendQueue().close();
+
+    final Room room = user.getRoom();
+    log.info("[Handler::stop] Remove user, room: {}, id: {}",
+        room.getRoomId(), sessionId);
+
+    if (room.leave(sessionId)) {
+      // This was the last user; releasing the Media Pipeline also releases
+      // all of its elements in KMS
+      log.info("[Handler::stop] Room is empty, release the Media Pipeline, room: {}",
+          room.getRoomId());
+      roomManager.removeRoom(room);
+      pipelineSnapshots.forget(room.getRoomId());
+      endpointRegistry.unregisterSession(sessionId);
+      if (room.getPipeline() != null) {
+        final String pipelineId = room.getPipeline().getId();
+        endpointRegistry.forgetPipeline(pipelineId);
+        eventSubscriptions.keySet().removeIf(
+            id -> id.startsWith(pipelineId + "/"));
+        release(room.getPipeline());
+      }
+      return;
+    }
+
+    // Release only this user's elements; the rest of the room keeps going
+    release(user.getSendPort());
+    release(user.getRecvPort());
+    releaseWebRtcEp(user.getWebRtcEp());
+  }
+
+  private void releaseWebRtcEp(final WebRtcEndpoint webRtcEp)
+  {
+    if (webRtcEp == null) {
+      return;
+    }
+    endpointRegistry.unregister(webRtcEp.getId());
+    eventSubscriptions.remove(webRtcEp.getId());
+    release(webRtcEp);
+  }
+
+  private void release(final MediaObject mediaObject)
+  {
+    if (mediaObject == null) {
+      return;
+    }
+    final long startNs = System.nanoTime();
+    try {
+      mediaObject.release();
+      metrics.recordKmsCall("release", startNs);
+    } catch (KurentoException ex) {
+      log.warn("[Handler::release] Exception: {}", ex.getMessage());
     }
   }
 
   private void handleStop(final WebSocketSession session,
-      JsonObject jsonMessage)
+      SignalingMessage message)
   {
     stop(session);
   }
@@ -525,23 +1139,29 @@ public class Handler extends TextWebSocketHandler
   // DEBUG ---------------------------------------------------------------------
 
   private void handleDebug(final WebSocketSession session,
-      JsonObject jsonMessage)
+      SignalingMessage message)
   {
-    log.warn("[Handler::handleDebug] ********** SAVE PIPELINE DOT **********");
-    final String pipelineDot = pipeline.getGstreamerDot();
-    try (PrintWriter out = new PrintWriter("pipeline.dot")) {
-      out.println(pipelineDot);
-    } catch (IOException ex) {
-      log.error("[Handler::handleDebug] Exception: {}", ex.getMessage());
+    final UserSession user = users.get(session.getId());
+    if (user == null) {
+      log.warn("[Handler::handleDebug] Skip, unknown user, id: {}",
+          session.getId());
+      return;
+    }
+
+    // Taken in the background; see DebugController to download it
+    final Room room = user.getRoom();
+    if (pipelineSnapshots.request(room.getRoomId(), room.getPipeline())) {
+      log.info("[Handler::handleDebug] Snapshot requested, room: {}",
+          room.getRoomId());
     }
   }
 
   // ERROR ---------------------------------------------------------------------
 
   private void handleError(final WebSocketSession session,
-      JsonObject jsonMessage)
+      SignalingMessage message)
   {
-    final String errMsg = jsonMessage.get("message").getAsString();
+    final String errMsg = message.getMessage();
     log.error("Browser error: " + errMsg);
 
     log.info("Assume that the other side stops after an error...");
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kurento.demo;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Kurento Java Demo - Registry of all rooms hosted by this server.
+ *
+ * Each room has its own Media Pipeline, so independent calls don't share
+ * (and don't grow) the same GStreamer pipeline in KMS.
+ */
+public class RoomManager
+{
+  public static final String DEFAULT_ROOM_ID = "default";
+
+  private final ConcurrentHashMap<String, Room> rooms =
+      new ConcurrentHashMap<>();
+
+  public RoomManager()
+  {}
+
+  /**
+   * Get the room with the given ID, creating an empty one if needed.
+   * The room's Media Pipeline is created by the first user that joins.
+   */
+  public Room getOrCreateRoom(String roomId)
+  { return this.rooms.computeIfAbsent(roomId, Room::new); }
+
+  /**
+   * Add a user to the room with the given ID, creating the room if needed.
+   */
+  public Room joinRoom(String roomId, UserSession user)
+  {
+    while (true) {
+      final Room room = getOrCreateRoom(roomId);
+      if (room.join(user)) {
+        return room;
+      }
+      // The last user left the room while we were joining; try again with
+      // a new one
+      removeRoom(room);
+    }
+  }
+
+  public Room getRoom(String roomId)
+  { return this.rooms.get(roomId); }
+
+  public Collection<Room> getRooms()
+  { return this.rooms.values(); }
+
+  public void removeRoom(Room room)
+  { this.rooms.remove(room.getRoomId(), room); }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.kurento.demo;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Kurento Java Demo - What the signaling log lines show of each message.
+ *
+ * High-rate message types (e.g. ICE candidates) are sampled: only 1 of every
+ * N messages of a type gets its log line. SDPs and message payloads are
+ * several KB each, so they can be truncated or replaced by a hash, which
+ * still allows to match the logs of both sides of a negotiation.
+ *
+ * Both are changeable at runtime. Texts are redacted only if the log line is
+ * actually written.
+ */
+public class SignalingLog
+{
+  public enum SdpMode
+  {
+    /** The whole text. */
+    FULL,
+    /** The first characters of long texts, and their length. */
+    TRUNCATE,
+    /** Only the length and a hash of long texts. */
+    HASH,
+  }
+
+  private volatile SdpMode sdpMode;
+  private final int maxLength;
+
+  // Types without an entry are not sampled
+  private final ConcurrentHashMap<String, Sampler> samplers =
+      new ConcurrentHashMap<>();
+
+  private static class Sampler
+  {
+    final int every;
+    final AtomicLong count = new AtomicLong();
+
+    Sampler(int every)
+    {
+      this.every = every;
+    }
+  }
+
+  /**
+   * @param sampling 1 of every how many messages are logged, for each type,
+   *     e.g. "ADD_ICE_CANDIDATE:20,IceCandidateFound:20".
+   * @param maxLength Texts up to this length are never redacted.
+   */
+  public SignalingLog(SdpMode sdpMode, int maxLength, String sampling)
+  {
+    this.sdpMode = sdpMode;
+    this.maxLength = maxLength;
+
+    for (final String item : sampling.split(",")) {
+      if (item.trim().isEmpty()) {
+        continue;
+      }
+      final String[] parts = item.split(":");
+      if (parts.length != 2) {
+        throw new IllegalArgumentException("Invalid sampling: " + item);
+      }
+      setSampling(parts[0].trim(), Integer.parseInt(parts[1].trim()));
+    }
+  }
+
+  /**
+   * @return true if this message of the given type should be logged.
+   */
+  public boolean sample(String type)
+  {
+    final Sampler sampler = samplers.get(type);
+    return (sampler == null
+        || sampler.count.getAndIncrement() % sampler.every == 0);
+  }
+
+  /**
+   * Log 1 of every N messages of a type; 1 or less logs all of them.
+   */
+  public void setSampling(String type, int every)
+  {
+    if (every > 1) {
+      samplers.put(type, new Sampler(every));
+    } else {
+      samplers.remove(type);
+    }
+  }
+
+  /**
+   * @return the sampled types, and 1 of every how many messages are logged.
+   */
+  public Map<String, Integer> getSampling()
+  {
+    final Map<String, Integer> result = new TreeMap<>();
+    for (final Map.Entry<String, Sampler> entry : samplers.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().every);
+    }
+    return result;
+  }
+
+  public SdpMode getSdpMode()
+  { return this.sdpMode; }
+
+  public void setSdpMode(SdpMode sdpMode)
+  { this.sdpMode = sdpMode; }
+
+  /**
+   * Wrap an SDP or a message payload to be passed as a log argument. It is
+   * redacted if and when the logger formats it.
+   */
+  public Object redact(final String text)
+  {
+    final SdpMode mode = sdpMode;
+    if (mode == SdpMode.FULL || text == null || text.length() <= maxLength) {
+      return text;
+    }
+
+    return new Object() {
+      @Override
+      public String toString() {
+        if (mode == SdpMode.TRUNCATE) {
+          return text.substring(0, maxLength) + "... (" + text.length()
+              + " chars)";
+        }
+        return "(" + text.length() + " chars, hash "
+            + Integer.toHexString(text.hashCode()) + ")";
+      }
+    };
+  }
+}
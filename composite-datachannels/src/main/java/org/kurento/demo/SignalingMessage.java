@@ -0,0 +1,98 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.demo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.kurento.client.IceCandidate;
+
+/**
+ * Kurento Java Demo - A message received from the browser.
+ *
+ * Holds the fields of all message types; each type only sets the ones it
+ * uses, and the rest are null. Instances are reused by SignalingCodec, so
+ * they are only valid until the handler of the message returns.
+ */
+public class SignalingMessage
+{
+  private String id;
+  private String webRtcEpId;
+  private String roomId;
+  private String sdpOffer;
+  private String sdpAnswer;
+  private IceCandidate candidate;
+  private final List<IceCandidate> candidates = new ArrayList<>();
+  private String message;
+
+  void clear()
+  {
+    id = null;
+    webRtcEpId = null;
+    roomId = null;
+    sdpOffer = null;
+    sdpAnswer = null;
+    candidate = null;
+    candidates.clear();
+    message = null;
+  }
+
+  public String getId()
+  { return this.id; }
+
+  void setId(String id)
+  { this.id = id; }
+
+  public String getWebRtcEpId()
+  { return this.webRtcEpId; }
+
+  void setWebRtcEpId(String webRtcEpId)
+  { this.webRtcEpId = webRtcEpId; }
+
+  public String getRoomId()
+  { return this.roomId; }
+
+  void setRoomId(String roomId)
+  { this.roomId = roomId; }
+
+  public String getSdpOffer()
+  { return this.sdpOffer; }
+
+  void setSdpOffer(String sdpOffer)
+  { this.sdpOffer = sdpOffer; }
+
+  public String getSdpAnswer()
+  { return this.sdpAnswer; }
+
+  void setSdpAnswer(String sdpAnswer)
+  { this.sdpAnswer = sdpAnswer; }
+
+  public IceCandidate getCandidate()
+  { return this.candidate; }
+
+  void setCandidate(IceCandidate candidate)
+  { this.candidate = candidate; }
+
+  public List<IceCandidate> getCandidates()
+  { return this.candidates; }
+
+  public String getMessage()
+  { return this.message; }
+
+  void setMessage(String message)
+  { this.message = message; }
+}
@@ -16,15 +16,79 @@
 
 package org.kurento.demo;
 
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.kurento.client.HubPort;
 import org.kurento.client.WebRtcEndpoint;
+import org.springframework.web.socket.WebSocketSession;
 
 /**
  * Kurento Java Demo - Per-user session state.
  */
 public class UserSession
 {
+  // Endpoint IDs in ICE candidates come from the browser, so only this many
+  // are tracked
+  private static final int MAX_CANDIDATE_IN_ENDPOINTS = 256;
+
+  private WebSocketSession wsSession;
+  private SendQueue sendQueue;
+  private Room room;
   private WebRtcEndpoint webRtcEp;
+  private HubPort sendPort;
+  private HubPort recvPort;
+  // Endpoints for which the browser already sent an ICE candidate
+  private final Set<String> candidateInEndpoints =
+      ConcurrentHashMap.newKeySet();
 
   public UserSession()
   {}
+
+  public WebSocketSession getWsSession()
+  { return this.wsSession; }
+
+  public void setWsSession(WebSocketSession wsSession)
+  { this.wsSession = wsSession; }
+
+  public SendQueue getSendQueue()
+  { return this.sendQueue; }
+
+  public void setSendQueue(SendQueue sendQueue)
+  { this.sendQueue = sendQueue; }
+
+  public Room getRoom()
+  { return this.room; }
+
+  public void setRoom(Room room)
+  { this.room = room; }
+
+  public WebRtcEndpoint getWebRtcEp()
+  { return this.webRtcEp; }
+
+  public void setWebRtcEp(WebRtcEndpoint webRtcEp)
+  { this.webRtcEp = webRtcEp; }
+
+  public HubPort getSendPort()
+  { return this.sendPort; }
+
+  public void setSendPort(HubPort sendPort)
+  { this.sendPort = sendPort; }
+
+  public HubPort getRecvPort()
+  { return this.recvPort; }
+
+  public void setRecvPort(HubPort recvPort)
+  { this.recvPort = recvPort; }
+
+  /**
+   * @return true only for the first ICE candidate from the browser for an
+   *     endpoint, as long as fewer than MAX_CANDIDATE_IN_ENDPOINTS have been
+   *     seen.
+   */
+  public boolean firstCandidateIn(String webRtcEpId)
+  {
+    return (candidateInEndpoints.size() < MAX_CANDIDATE_IN_ENDPOINTS
+        && candidateInEndpoints.add(webRtcEpId));
+  }
 }
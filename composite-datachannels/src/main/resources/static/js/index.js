@@ -17,6 +17,7 @@
 const ws = new WebSocket('wss://' + location.host + '/composite-datachannels');
 
 let peer;  // kurentoUtils.WebRtcPeer
+let peerReady = false;  // The WebRTC Peer has processed the SDP Offer
 
 // UI
 let uiState = null;
@@ -82,6 +83,95 @@ function sendMessage(message)
   ws.send(jsonMessage);
 }
 
+// Local ICE candidates are sent in batches: each burst is held for this long
+// after its first candidate, and then sent as a single message
+const ICE_BATCH_DELAY_MS = 20;
+
+function makeIceCandidateSender(webRtcEpId)
+{
+  let pending = [];
+
+  return (candidate) => {
+    pending.push(candidate);
+    if (pending.length > 1) {
+      return;
+    }
+
+    setTimeout(() => {
+      sendMessage({
+        id: 'ADD_ICE_CANDIDATES',
+        webRtcEpId: webRtcEpId,
+        candidates: pending,
+      });
+      pending = [];
+    }, ICE_BATCH_DELAY_MS);
+  };
+}
+
+// ICE candidates from KMS can arrive before their WebRTC Peer has processed
+// the SDP Offer; these are held until it has. Each endpoint holds up to
+// PENDING_ICE_MAX candidates, for up to PENDING_ICE_TTL_MS
+const PENDING_ICE_TTL_MS = 10000;
+const PENDING_ICE_MAX = 64;
+
+// Map<(String)WebRtcEndpoint.Id, { created: (Number)ms, candidates: [] }>
+const pendingIce = new Map();
+const iceStats = { buffered: 0, flushed: 0, dropped: 0 };
+
+function holdIceCandidates(webRtcEpId, candidates)
+{
+  const now = Date.now();
+  for (const [id, pending] of pendingIce) {
+    if (now - pending.created >= PENDING_ICE_TTL_MS) {
+      iceStats.dropped += pending.candidates.length;
+      pendingIce.delete(id);
+    }
+  }
+
+  if (!pendingIce.has(webRtcEpId)) {
+    pendingIce.set(webRtcEpId, { created: now, candidates: [] });
+  }
+  const pending = pendingIce.get(webRtcEpId);
+  const held = Math.min(candidates.length,
+      PENDING_ICE_MAX - pending.candidates.length);
+  pending.candidates.push(...candidates.slice(0, held));
+  iceStats.buffered += held;
+  iceStats.dropped += candidates.length - held;
+
+  if (held < candidates.length) {
+    console.warn("[holdIceCandidates] Drop candidates, webRtcEpId: "
+        + webRtcEpId + ", dropped: " + (candidates.length - held));
+  }
+}
+
+function takeIceCandidates(webRtcEpId)
+{
+  const pending = pendingIce.get(webRtcEpId);
+  if (!pending) {
+    return [];
+  }
+  pendingIce.delete(webRtcEpId);
+
+  if (Date.now() - pending.created >= PENDING_ICE_TTL_MS) {
+    iceStats.dropped += pending.candidates.length;
+    return [];
+  }
+  iceStats.flushed += pending.candidates.length;
+  return pending.candidates;
+}
+
+function dropIceCandidates()
+{
+  for (const pending of pendingIce.values()) {
+    iceStats.dropped += pending.candidates.length;
+  }
+  pendingIce.clear();
+
+  console.log("[dropIceCandidates] Remote ICE candidates, buffered: "
+      + iceStats.buffered + ", flushed: " + iceStats.flushed
+      + ", dropped: " + iceStats.dropped);
+}
+
 function makePeer(sdpOffer, webRtcEpId)
 {
   console.log("[makePeer] Make WebRtcPeerSendrecv, webRtcEpId: " + webRtcEpId);
@@ -90,11 +180,7 @@ function makePeer(sdpOffer, webRtcEpId)
     localVideo: uiLocalVideo,
     remoteVideo: uiRemoteVideo,
     mediaConstraints: { audio: true, video: true },
-    onicecandidate: (candidate) => sendMessage({
-      id: 'ADD_ICE_CANDIDATE',
-      webRtcEpId: webRtcEpId,
-      candidate: candidate,
-    }),
+    onicecandidate: makeIceCandidateSender(webRtcEpId),
     onnegotiationneeded: (ev) => console.log("[WebRtcPeer.onnegotiationneeded] NOOP, webRtcEpId: "
         + webRtcEpId),
     dataChannels: true,
@@ -139,6 +225,9 @@ function makePeer(sdpOffer, webRtcEpId)
         return;
       }
 
+      peerReady = true;
+      addIceCandidates(webRtcEpId, takeIceCandidates(webRtcEpId));
+
       sendMessage({
         id: 'PROCESS_SDP_ANSWER',
         webRtcEpId: webRtcEpId,
@@ -169,6 +258,9 @@ ws.onmessage = function(message)
     case 'ADD_ICE_CANDIDATE':
       handleAddIceCandidate(jsonMessage);
       break;
+    case 'ADD_ICE_CANDIDATES':
+      handleAddIceCandidates(jsonMessage);
+      break;
     case 'ERROR':
       handleError(jsonMessage);
       break;
@@ -189,17 +281,31 @@ function handleMakePeer(jsonMessage)
 
 function handleAddIceCandidate(jsonMessage)
 {
-  if (peer == null) {
-    console.warn("[handleAddIceCandidate] Skip, no WebRTC Peer");
+  addIceCandidates(jsonMessage.webRtcEpId, [jsonMessage.candidate]);
+}
+
+// ADD_ICE_CANDIDATES ----------------------------------------------------------
+
+function handleAddIceCandidates(jsonMessage)
+{
+  addIceCandidates(jsonMessage.webRtcEpId, jsonMessage.candidates);
+}
+
+function addIceCandidates(webRtcEpId, candidates)
+{
+  if (peer == null || !peerReady) {
+    holdIceCandidates(webRtcEpId, candidates);
     return;
   }
 
-  peer.addIceCandidate(jsonMessage.candidate, (err) => {
-    if (err) {
-      console.error("[handleAddIceCandidate] Error: " + err);
-      return;
-    }
-  });
+  for (const candidate of candidates) {
+    peer.addIceCandidate(candidate, (err) => {
+      if (err) {
+        console.error("[addIceCandidates] Error: " + err);
+        return;
+      }
+    });
+  }
 }
 
 // STOP ------------------------------------------------------------------------
@@ -212,6 +318,7 @@ function stop()
   }
 
   uiSetState(UI_IDLE);
+  dropIceCandidates();
   hideSpinner(uiLocalVideo, uiRemoteVideo);
 
   sendMessage({
@@ -246,6 +353,7 @@ function uiStart()
 
   sendMessage({
     id: 'START',
+    roomId: uiRoomTxt.value,
   });
 }
 
@@ -286,18 +394,21 @@ function uiSetState(newState)
       uiDisableElement('#uiStopBtn');
       uiDisableElement('#uiDebugBtn');
       uiDisableElement('#uiSendBtn');
+      uiEnableElement('#uiRoomTxt');
       break;
     case UI_STARTING:
       uiDisableElement('#uiStartBtn');
       uiDisableElement('#uiStopBtn');
       uiDisableElement('#uiDebugBtn');
       uiDisableElement('#uiSendBtn');
+      uiDisableElement('#uiRoomTxt');
       break;
     case UI_STARTED:
       uiDisableElement('#uiStartBtn');
       uiEnableElement('#uiStopBtn', 'uiStop()');
       uiEnableElement('#uiDebugBtn', 'uiDebug()');
       uiEnableElement('#uiSendBtn', 'uiSend()');
+      uiDisableElement('#uiRoomTxt');
       break;
     default:
       console.warn("[setState] Skip, invalid state: " + newState);
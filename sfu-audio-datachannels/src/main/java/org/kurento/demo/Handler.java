@@ -16,15 +16,27 @@
 
 package org.kurento.demo;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonObject;
-import java.io.IOException;
-import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
@@ -32,11 +44,20 @@ import org.springframework.web.socket.handler.TextWebSocketHandler;
 
 // Kurento client
 import org.kurento.client.BaseRtpEndpoint;
+import org.kurento.client.ConnectionState;
 import org.kurento.client.EventListener;
 import org.kurento.client.IceCandidate;
 import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaFlowState;
+import org.kurento.client.MediaObject;
 import org.kurento.client.MediaPipeline;
+import org.kurento.client.MediaType;
+import org.kurento.client.RTCInboundRTPStreamStats;
+import org.kurento.client.Stats;
+import org.kurento.client.TFuture;
+import org.kurento.client.Transaction;
 import org.kurento.client.WebRtcEndpoint;
+import org.kurento.commons.exception.KurentoException;
 import org.kurento.jsonrpc.JsonUtils;
 
 // Kurento events
@@ -60,18 +81,354 @@ import org.kurento.client.NewCandidatePairSelectedEvent;
 public class Handler extends TextWebSocketHandler
 {
   private static final Logger log = LoggerFactory.getLogger(Handler.class);
-  private static final Gson gson = new GsonBuilder().create();
 
+  // All users of all rooms, by WebSocket session ID
   private final ConcurrentHashMap<String, UserSession> users =
       new ConcurrentHashMap<>();
-  private final ConcurrentHashMap<String, WebRtcEndpoint> webRtcEps =
-      new ConcurrentHashMap<>();
-
-  private MediaPipeline pipeline;
 
   @Autowired
   private KurentoClient kurento;
 
+  @Autowired
+  private RoomManager roomManager;
+
+  @Autowired
+  private EndpointRegistry endpointRegistry;
+
+  @Autowired
+  private PipelineSnapshots pipelineSnapshots;
+
+  @Autowired
+  private SignalingLog signalingLog;
+
+  @Autowired
+  private PendingCandidates pendingCandidates;
+
+  @Autowired
+  private Metrics metrics;
+
+  @Autowired
+  private JoinTimeline joinTimeline;
+
+  @Value("${demo.send-queue.capacity:256}")
+  private int sendQueueCapacity;
+
+  @Value("${demo.send-queue.send-timeout:5000}")
+  private int sendTimeoutMs;
+
+  @Value("${demo.send-queue.threads:0}")
+  private int sendQueueThreads;
+
+  @Value("${demo.send-queue.overflow.candidate:DROP_OLDEST}")
+  private SendQueue.OverflowPolicy candidateOverflowPolicy;
+
+  @Value("${demo.send-queue.overflow.sdp:CLOSE}")
+  private SendQueue.OverflowPolicy sdpOverflowPolicy;
+
+  /**
+   * How incoming WebSocket messages are handled.
+   */
+  public enum DispatchMode
+  {
+    /** In the WebSocket I/O thread; it is blocked by each call to KMS. */
+    INLINE,
+    /** In a worker pool, serially for each session. */
+    ASYNC,
+  }
+
+  @Value("${demo.dispatch.mode:ASYNC}")
+  private DispatchMode dispatchMode;
+
+  @Value("${demo.dispatch.threads:32}")
+  private int dispatchThreads;
+
+  @Value("${demo.endpoints.sweep-period:60}")
+  private int sweepPeriodS;
+
+  @Value("${demo.ice.batch-delay:20}")
+  private int iceBatchDelayMs;
+
+  /**
+   * When the ICE candidate gathering of an endpoint starts.
+   */
+  public enum IceGathering
+  {
+    /** Once the browser has created its WebRTC Peer (WEBRTCPEER_READY). */
+    ON_READY,
+    /** Along with the SDP Offer; the browser holds the early candidates. */
+    EAGER,
+  }
+
+  @Value("${demo.ice.gathering:ON_READY}")
+  private IceGathering iceGathering;
+
+  @Value("${demo.speakers.last-n:0}")
+  private int lastN;
+
+  @Value("${demo.speakers.interval:500}")
+  private int speakersIntervalMs;
+
+  @Value("${demo.speakers.hysteresis:1.5}")
+  private double speakersHysteresis;
+
+  @Value("${demo.speakers.min-hold:2000}")
+  private int speakersMinHoldMs;
+
+  // Profile of the KMS event subscriptions of new endpoints; can be changed
+  // at runtime with setEventProfile()
+  @Value("${demo.events.profile:OPERATIONAL}")
+  private volatile EventSubscriptions.Profile eventProfile;
+
+  // The event subscriptions of all live endpoints, by endpoint ID
+  private final ConcurrentHashMap<String, EventSubscriptions> eventSubscriptions =
+      new ConcurrentHashMap<>();
+
+  @Value("${demo.join.fanout-threads:8}")
+  private int fanoutThreads;
+
+  // Shared by the SendQueue of all users, to write messages to the WebSocket
+  private ExecutorService sendExecutor;
+
+  // Shared by the SerialExecutor of all sessions, to make calls to KMS
+  private ExecutorService dispatchExecutor;
+
+  private final ConcurrentHashMap<String, SerialExecutor> sessionExecutors =
+      new ConcurrentHashMap<>();
+
+  // Checks the EndpointRegistry against KMS
+  private ScheduledExecutorService sweepExecutor;
+
+  // Flushes the CandidateBatcher of all endpoints
+  private ScheduledExecutorService iceExecutor;
+
+  // Sets up the listeners of a joining user with each existing user
+  private ExecutorService fanoutExecutor;
+
+  // Updates the ActiveSpeakers of all rooms
+  private ScheduledExecutorService speakersExecutor;
+
+  // Rooms with an update of their ActiveSpeakers waiting or running
+  private final Set<Room> speakerUpdates = ConcurrentHashMap.newKeySet();
+
+  @PostConstruct
+  private void init()
+  {
+    final int threads = (sendQueueThreads > 0 ? sendQueueThreads
+        : Runtime.getRuntime().availableProcessors());
+    sendExecutor = Executors.newFixedThreadPool(threads,
+        new CustomizableThreadFactory("send-"));
+
+    metrics.addGauge("users", "Users in all rooms.", users::size);
+    metrics.addGauge("endpoints", "Registered WebRtcEndpoints.",
+        endpointRegistry::getEndpointCount);
+    metrics.addGauge("pipelines", "Media Pipelines of the rooms.",
+        this::getPipelineCount);
+
+    if (dispatchMode == DispatchMode.ASYNC) {
+      dispatchExecutor = Executors.newFixedThreadPool(dispatchThreads,
+          new CustomizableThreadFactory("dispatch-"));
+    }
+
+    if (iceBatchDelayMs > 0) {
+      iceExecutor = Executors.newSingleThreadScheduledExecutor(
+          new CustomizableThreadFactory("ice-"));
+    }
+
+    if (fanoutThreads > 0) {
+      fanoutExecutor = Executors.newFixedThreadPool(fanoutThreads,
+          new CustomizableThreadFactory("fanout-"));
+    }
+
+    if (lastN > 0) {
+      speakersExecutor = Executors.newSingleThreadScheduledExecutor(
+          new CustomizableThreadFactory("speakers-"));
+      speakersExecutor.scheduleWithFixedDelay(this::updateActiveSpeakers,
+          speakersIntervalMs, speakersIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    if (sweepPeriodS > 0) {
+      sweepExecutor = Executors.newSingleThreadScheduledExecutor(
+          new CustomizableThreadFactory("sweep-"));
+      sweepExecutor.scheduleWithFixedDelay(this::sweepEndpoints,
+          sweepPeriodS, sweepPeriodS, TimeUnit.SECONDS);
+    }
+  }
+
+  @PreDestroy
+  private void destroy()
+  {
+    sendExecutor.shutdownNow();
+    if (dispatchExecutor != null) {
+      dispatchExecutor.shutdownNow();
+    }
+    if (sweepExecutor != null) {
+      sweepExecutor.shutdownNow();
+    }
+    if (iceExecutor != null) {
+      iceExecutor.shutdownNow();
+    }
+    if (fanoutExecutor != null) {
+      fanoutExecutor.shutdownNow();
+    }
+    if (speakersExecutor != null) {
+      speakersExecutor.shutdownNow();
+    }
+  }
+
+  private void sweepEndpoints()
+  {
+    for (final Room room : roomManager.getRooms()) {
+      if (room.getPipeline() == null) {
+        continue;
+      }
+
+      try {
+        for (final WebRtcEndpoint orphan : endpointRegistry.sweep(room)) {
+          log.warn("[Handler::sweepEndpoints] Release orphaned endpoint, room: {}, id: {}",
+              room.getRoomId(), orphan.getId());
+          releaseWebRtcEp(orphan);
+        }
+      } catch (KurentoException ex) {
+        // The room might have been closed while sweeping it
+        log.debug("[Handler::sweepEndpoints] Skip room: {}, exception: {}",
+            room.getRoomId(), ex.getMessage());
+      }
+    }
+
+    log.info("[Handler::sweepEndpoints] Live endpoints: {}, sessions: {}, nominal heap: {} bytes ({} per endpoint)",
+        endpointRegistry.getEndpointCount(), endpointRegistry.getSessionCount(),
+        endpointRegistry.getNominalHeapBytes(),
+        endpointRegistry.getNominalEntryHeapBytes());
+  }
+
+  private void updateActiveSpeakers()
+  {
+    for (final Room room : roomManager.getRooms()) {
+      final ActiveSpeakers speakers = room.getActiveSpeakers();
+      if (speakers == null || !speakerUpdates.add(room)) {
+        // No last-N, or the previous update is still waiting for its turn
+        continue;
+      }
+
+      dispatchToRoom(room, null, () -> {
+        try {
+          updateActiveSpeakers(room, speakers);
+        } catch (KurentoException ex) {
+          // The room might have been closed while updating it
+          log.debug("[Handler::updateActiveSpeakers] Skip room: {}, exception: {}",
+              room.getRoomId(), ex.getMessage());
+        } finally {
+          speakerUpdates.remove(room);
+        }
+      });
+    }
+  }
+
+  /**
+   * Sample the audio received by all talkers of the room, and if the last N
+   * active speakers changed, switch which talkers are forwarded. Must be
+   * called from dispatchToRoom().
+   */
+  private void updateActiveSpeakers(final Room room,
+      final ActiveSpeakers speakers)
+  {
+    // The stats of all talkers, in a single request to KMS
+    final Map<String, TFuture<Map<String, Stats>>> talkerStats =
+        new HashMap<>();
+    final Transaction tx = kurento.beginTransaction();
+    for (final UserSession user : room.getUsers().values()) {
+      final WebRtcEndpoint talker = user.getTalker();
+      if (talker != null) {
+        talkerStats.put(talker.getId(), talker.getStats(tx, MediaType.AUDIO));
+      }
+    }
+    if (talkerStats.isEmpty()) {
+      return;
+    }
+    final long statsStartNs = System.nanoTime();
+    tx.commit();
+    metrics.recordKmsCall("getStats", "speakers", statsStartNs);
+
+    final long nowMs = System.currentTimeMillis();
+    for (final Map.Entry<String, TFuture<Map<String, Stats>>> entry
+        : talkerStats.entrySet()) {
+      speakers.update(entry.getKey(), getBytesReceived(entry.getValue().get()),
+          nowMs);
+    }
+    if (!speakers.select(nowMs)) {
+      return;
+    }
+
+    final Transaction forwardTx = kurento.beginTransaction();
+    int sinkCount = 0;
+    for (final UserSession user : room.getUsers().values()) {
+      if (user.getTalker() != null) {
+        sinkCount += updateForwarding(forwardTx, room, user);
+      }
+    }
+    if (sinkCount > 0) {
+      final long connectStartNs = System.nanoTime();
+      forwardTx.commit();
+      metrics.recordKmsCall("connect", "speakers", connectStartNs);
+    }
+
+    final List<String> names = new ArrayList<>();
+    for (final String talkerId : speakers.getSelected()) {
+      names.add(endpointRegistry.getName(talkerId));
+    }
+    log.info("[Handler::updateActiveSpeakers] room: {}, speakers: {}, changed sinks: {}",
+        room.getRoomId(), names, sinkCount);
+  }
+
+  private static long getBytesReceived(Map<String, Stats> stats)
+  {
+    long bytesReceived = 0;
+    if (stats == null) {
+      return bytesReceived;
+    }
+    for (final Stats stat : stats.values()) {
+      if (stat instanceof RTCInboundRTPStreamStats) {
+        bytesReceived += ((RTCInboundRTPStreamStats) stat).getBytesReceived();
+      }
+    }
+    return bytesReceived;
+  }
+
+  /**
+   * Connect the user's talker to the listeners that it feeds, or disconnect
+   * it, if it is not already as it should be: forwarded only if it is one of
+   * the last N active speakers. Must be called from dispatchToRoom().
+   *
+   * @return the number of connections changed in the Transaction.
+   */
+  private int updateForwarding(final Transaction tx, final Room room,
+      final UserSession user)
+  {
+    final WebRtcEndpoint talker = user.getTalker();
+    final boolean forwarded =
+        room.getActiveSpeakers().isSelected(talker.getId());
+    if (forwarded == user.isForwarded()) {
+      return 0;
+    }
+    user.setForwarded(forwarded);
+
+    int sinkCount = 0;
+    for (final UserSession remoteUser : room.getUsers().values()) {
+      // Null for this same user
+      final WebRtcEndpoint listener = remoteUser.getListener(talker.getId());
+      if (listener == null) {
+        continue;
+      }
+      if (forwarded) {
+        talker.connect(tx, listener);
+      } else {
+        talker.disconnect(tx, listener);
+      }
+      sinkCount++;
+    }
+    return sinkCount;
+  }
+
   /**
 	 * Invoked after WebSocket negotiation has succeeded and the WebSocket connection is
 	 * opened and ready for use.
@@ -82,6 +439,11 @@ public class Handler extends TextWebSocketHandler
   {
     log.info("[Handler::afterConnectionEstablished] New WebSocket connection, sessionId: {}",
         session.getId());
+
+    if (dispatchExecutor != null) {
+      sessionExecutors.put(session.getId(),
+          new SerialExecutor(dispatchExecutor));
+    }
 	}
 
   /**
@@ -99,63 +461,147 @@ public class Handler extends TextWebSocketHandler
           status, session.getId());
     }
 
-    stop(session);
+    // The socket is gone, discard any messages still pending for it
+    final UserSession user = users.get(session.getId());
+    if (user != null) {
+      user.getSendQueue().close();
+    }
+
+    // Queued after any message that is still being handled for this session
+    dispatch(session, () -> stop(session));
+    sessionExecutors.remove(session.getId());
   }
 
   /**
 	 * Invoked when a new WebSocket message arrives.
 	 */
 	@Override
-  protected void handleTextMessage(WebSocketSession session,
-      TextMessage message) throws Exception
+  protected void handleTextMessage(final WebSocketSession session,
+      final TextMessage message) throws Exception
   {
-    final String sessionId = session.getId();
-    JsonObject jsonMessage = gson.fromJson(message.getPayload(),
-        JsonObject.class);
+    dispatch(session, () -> processMessage(session, message));
+  }
 
-    log.info("[Handler::handleTextMessage] message: {}, sessionId: {}",
-        jsonMessage, sessionId);
+  /**
+   * Run a task for the given session. In ASYNC mode, the task is queued on
+   * the session's SerialExecutor and this method returns immediately.
+   */
+  private void dispatch(final WebSocketSession session, Runnable task)
+  {
+    final SerialExecutor executor = sessionExecutors.get(session.getId());
+    if (executor != null) {
+      executor.execute(task);
+    } else {
+      task.run();
+    }
+  }
+
+  /**
+   * Run a task that changes the media of a room: joins, leaves and
+   * forwarding changes of the same room never overlap, so every pair of
+   * users gets connected exactly once, and released endpoints are never
+   * connected again.
+   *
+   * In ASYNC mode, the task is queued on the room's SerialExecutor and this
+   * method returns immediately: a burst of joins into one room takes a
+   * single dispatch thread, instead of parking all of them on a lock while
+   * each join waits for KMS. In INLINE mode, it runs with the room lock held.
+   *
+   * @param session Gets an ERROR message if the task fails; null for none.
+   */
+  private void dispatchToRoom(final Room room, final WebSocketSession session,
+      Runnable task)
+  {
+    final Runnable guardedTask = () -> {
+      try {
+        task.run();
+      } catch (RuntimeException ex) {
+        log.error("[Handler::dispatchToRoom] Exception: {}, room: {}", ex,
+            room.getRoomId());
+        metrics.recordRoomTaskFailure();
+        if (session != null) {
+          sendError(session, "[Kurento] Exception: " + ex.getMessage());
+        }
+      }
+    };
+
+    if (dispatchExecutor != null) {
+      room.getExecutor(dispatchExecutor).execute(guardedTask);
+    } else {
+      synchronized (room) {
+        guardedTask.run();
+      }
+    }
+  }
+  private void processMessage(final WebSocketSession session,
+      TextMessage textMessage)
+  {
+    final String sessionId = session.getId();
+    final long startNs = System.nanoTime();
+    String messageId = null;
+    Metrics.Outcome outcome = Metrics.Outcome.OK;
 
     try {
-      final String messageId = jsonMessage.get("id").getAsString();
-      switch (messageId) {
+      final SignalingMessage message =
+          SignalingCodec.decode(textMessage.getPayload());
+      messageId = message.getId();
+
+      if (signalingLog.sample(messageId)) {
+        log.info("[Handler::processMessage] id: {}, sessionId: {}", messageId,
+            sessionId);
+        log.debug("[Handler::processMessage] payload: {}",
+            signalingLog.redact(textMessage.getPayload()));
+      }
+
+      switch (String.valueOf(messageId)) {
         case "START":
           // Create WebRtcEndpoint and send to browser.
-          handleStart(session, jsonMessage);
+          if (!handleStart(session, message)) {
+            outcome = Metrics.Outcome.REJECTED;
+          }
           break;
         case "WEBRTCPEER_READY":
           // Browser PeerConnection is ready.
           // Start ICE Gathering, send candidates with 'ADD_ICE_CANDIDATE'.
-          handleWebRtcPeerReady(session, jsonMessage);
+          handleWebRtcPeerReady(session, message);
           break;
         case "PROCESS_SDP_ANSWER":
           // Browser PeerConnection processed our SDP Offer.
           // Pass SDP Answer to WebRtcEndpoint.
-          handleProcessSdpAnswer(session, jsonMessage);
+          handleProcessSdpAnswer(session, message);
           break;
         case "ADD_ICE_CANDIDATE":
           // Browser PeerConnection found some candidate.
           // Pass candidate to WebRtcEndpoint.
-          handleAddIceCandidate(session, jsonMessage);
+          handleAddIceCandidate(session, message);
+          break;
+        case "ADD_ICE_CANDIDATES":
+          // Browser PeerConnection found a batch of candidates.
+          // Pass all of them to WebRtcEndpoint in a single transaction.
+          handleAddIceCandidates(session, message);
           break;
         case "STOP":
           // Not implemented yet.
-          handleStop(session, jsonMessage);
+          handleStop(session, message);
           break;
         case "ERROR":
-          handleError(session, jsonMessage);
+          handleError(session, message);
           break;
         default:
           // Ignore the message
-          log.warn("[Handler::handleTextMessage] Skip, invalid message, id: {}",
+          log.warn("[Handler::processMessage] Skip, invalid message, id: {}",
               messageId);
+          outcome = Metrics.Outcome.REJECTED;
           break;
       }
     } catch (Throwable ex) {
-      log.error("[Handler::handleTextMessage] Exception: {}, sessionId: {}",
+      outcome = Metrics.Outcome.ERROR;
+      log.error("[Handler::processMessage] Exception: {}, sessionId: {}",
           ex, sessionId);
       sendError(session, "[Kurento] Exception: " + ex.getMessage());
     }
+
+    metrics.recordMessage(messageId, outcome, startNs);
   }
 
   /**
@@ -171,10 +617,15 @@ public class Handler extends TextWebSocketHandler
     session.close(CloseStatus.SERVER_ERROR);
   }
 
-  private synchronized void sendMessage(final WebSocketSession session,
-      String message)
+  private void sendMessage(final WebSocketSession session, String message)
   {
-    log.debug("[Handler::sendMessage] {}", message);
+    sendMessage(session, message, sdpOverflowPolicy);
+  }
+
+  private void sendMessage(final WebSocketSession session, String message,
+      SendQueue.OverflowPolicy overflowPolicy)
+  {
+    log.debug("[Handler::sendMessage] {}", signalingLog.redact(message));
 
     if (!session.isOpen()) {
       log.warn("[Handler::sendMessage] Skip, WebSocket session isn't open");
@@ -182,17 +633,15 @@ public class Handler extends TextWebSocketHandler
     }
 
     final String sessionId = session.getId();
-    if (!users.containsKey(sessionId)) {
+    final UserSession user = users.get(sessionId);
+    if (user == null) {
       log.warn("[Handler::sendMessage] Skip, unknown user, id: {}",
           sessionId);
       return;
     }
 
-    try {
-      session.sendMessage(new TextMessage(message));
-    } catch (IOException ex) {
-      log.error("[Handler::sendMessage] Exception: {}", ex.getMessage());
-    }
+    // Non-blocking: the user's SendQueue writes to the socket on its own
+    user.getSendQueue().offer(message, overflowPolicy);
   }
 
   private void sendError(final WebSocketSession session, String errMsg)
@@ -200,277 +649,666 @@ public class Handler extends TextWebSocketHandler
     log.error(errMsg);
 
     if (users.containsKey(session.getId())) {
-      JsonObject message = new JsonObject();
-      message.addProperty("id", "ERROR");
-      message.addProperty("message", errMsg);
-      sendMessage(session, message.toString());
+      sendMessage(session, SignalingCodec.encodeError(errMsg));
     }
   }
 
+  /**
+   * Send an ERROR to a user that was not added yet, for which sendError()
+   * would drop it.
+   */
+  private void rejectStart(final UserSession user, String errMsg)
+  {
+    log.error(errMsg);
+    user.getSendQueue().offer(SignalingCodec.encodeError(errMsg),
+        sdpOverflowPolicy);
+  }
+
+  /**
+   * Find an endpoint in the room of the given session's user.
+   */
+  private WebRtcEndpoint getWebRtcEp(final WebSocketSession session,
+      String webRtcEpId)
+  {
+    return endpointRegistry.get(session.getId(), webRtcEpId);
+  }
+
   // START ---------------------------------------------------------------------
 
   private void initBaseEventListeners(final WebSocketSession session,
-      BaseRtpEndpoint baseRtpEp, final String className)
+      BaseRtpEndpoint baseRtpEp, final String className, final String name,
+      EventSubscriptions subscriptions)
   {
     log.info("[Handler::initBaseEventListeners] name: {}, class: {}, sessionId: {}",
-        baseRtpEp.getName(), className, session.getId());
+        name, className, session.getId());
 
     // Event: Some error happened
-    baseRtpEp.addErrorListener(new EventListener<ErrorEvent>() {
+    subscriptions.add(EventSubscriptions.Profile.MINIMAL,
+        (cont) -> baseRtpEp.addErrorListener(
+        new EventListener<ErrorEvent>() {
       @Override
       public void onEvent(ErrorEvent ev) {
         log.error("[{}::ErrorEvent] Error code {}: '{}', source: {}, timestamp: {}, tags: {}, description: {}",
-            className, ev.getErrorCode(), ev.getType(), ev.getSource().getName(),
+            className, ev.getErrorCode(), ev.getType(), name,
             ev.getTimestamp(), ev.getTags(), ev.getDescription());
 
         sendError(session, "[Kurento] " + ev.getDescription());
-        stop(session);
+        dispatch(session, () -> stop(session));
       }
-    });
+    }, cont), baseRtpEp::removeErrorListener);
 
     // Event: Media is flowing into this sink
-    baseRtpEp.addMediaFlowInStateChangeListener(
+    subscriptions.add(EventSubscriptions.Profile.OPERATIONAL,
+        (cont) -> baseRtpEp.addMediaFlowInStateChangeListener(
         new EventListener<MediaFlowInStateChangeEvent>() {
       @Override
       public void onEvent(MediaFlowInStateChangeEvent ev) {
         log.info("[{}::{}] source: {}, timestamp: {}, tags: {}, state: {}, padName: {}, mediaType: {}",
-            className, ev.getType(), ev.getSource().getName(), ev.getTimestamp(),
+            className, ev.getType(), name, ev.getTimestamp(),
             ev.getTags(), ev.getState(), ev.getPadName(), ev.getMediaType());
+
+        if (ev.getState() == MediaFlowState.FLOWING) {
+          final String sessionId =
+              endpointRegistry.getSessionId(ev.getSource().getId());
+          if (sessionId != null) {
+            metrics.recordMediaFlowing(sessionId);
+            joinTimeline.record(sessionId, ev.getSource().getId(),
+                JoinTimeline.Phase.MEDIA_FLOWING);
+          }
+        }
       }
-    });
+    }, cont), baseRtpEp::removeMediaFlowInStateChangeListener);
 
     // Event: Media is flowing out of this source
-    baseRtpEp.addMediaFlowOutStateChangeListener(
+    subscriptions.add(EventSubscriptions.Profile.OPERATIONAL,
+        (cont) -> baseRtpEp.addMediaFlowOutStateChangeListener(
         new EventListener<MediaFlowOutStateChangeEvent>() {
       @Override
       public void onEvent(MediaFlowOutStateChangeEvent ev) {
         log.info("[{}::{}] source: {}, timestamp: {}, tags: {}, state: {}, padName: {}, mediaType: {}",
-            className, ev.getType(), ev.getSource().getName(), ev.getTimestamp(),
+            className, ev.getType(), name, ev.getTimestamp(),
             ev.getTags(), ev.getState(), ev.getPadName(), ev.getMediaType());
       }
-    });
+    }, cont), baseRtpEp::removeMediaFlowOutStateChangeListener);
 
     // Event: [TODO write meaning of this event]
-    baseRtpEp.addConnectionStateChangedListener(
+    subscriptions.add(EventSubscriptions.Profile.OPERATIONAL,
+        (cont) -> baseRtpEp.addConnectionStateChangedListener(
         new EventListener<ConnectionStateChangedEvent>() {
       @Override
       public void onEvent(ConnectionStateChangedEvent ev) {
         log.info("[{}::{}] source: {}, timestamp: {}, tags: {}, oldState: {}, newState: {}",
-            className, ev.getType(), ev.getSource().getName(), ev.getTimestamp(),
+            className, ev.getType(), name, ev.getTimestamp(),
             ev.getTags(), ev.getOldState(), ev.getNewState());
+        if (ev.getNewState() == ConnectionState.CONNECTED) {
+          logTimeToConnected(ev.getSource().getId());
+        }
       }
-    });
+    }, cont), baseRtpEp::removeConnectionStateChangedListener);
 
     // Event: [TODO write meaning of this event]
-    baseRtpEp.addMediaStateChangedListener(
+    subscriptions.add(EventSubscriptions.Profile.OPERATIONAL,
+        (cont) -> baseRtpEp.addMediaStateChangedListener(
         new EventListener<MediaStateChangedEvent>() {
       @Override
       public void onEvent(MediaStateChangedEvent ev) {
         log.info("[{}::{}] source: {}, timestamp: {}, tags: {}, oldState: {}, newState: {}",
-            className, ev.getType(), ev.getSource().getName(), ev.getTimestamp(),
+            className, ev.getType(), name, ev.getTimestamp(),
             ev.getTags(), ev.getOldState(), ev.getNewState());
       }
-    });
+    }, cont), baseRtpEp::removeMediaStateChangedListener);
 
     // Event: This element will (or will not) perform media transcoding
-    baseRtpEp.addMediaTranscodingStateChangeListener(
+    subscriptions.add(EventSubscriptions.Profile.DEBUG,
+        (cont) -> baseRtpEp.addMediaTranscodingStateChangeListener(
         new EventListener<MediaTranscodingStateChangeEvent>() {
       @Override
       public void onEvent(MediaTranscodingStateChangeEvent ev) {
         log.info("[{}::{}] source: {}, timestamp: {}, tags: {}, state: {}, binName: {}, mediaType: {}",
-            className, ev.getType(), ev.getSource().getName(), ev.getTimestamp(),
+            className, ev.getType(), name, ev.getTimestamp(),
             ev.getTags(), ev.getState(), ev.getBinName(), ev.getMediaType());
       }
-    });
+    }, cont), baseRtpEp::removeMediaTranscodingStateChangeListener);
   }
 
   private void initWebRtcEventListeners(final WebSocketSession session,
-      final WebRtcEndpoint webRtcEp)
+      final WebRtcEndpoint webRtcEp, final String name,
+      EventSubscriptions subscriptions)
   {
     log.info("[Handler::initWebRtcEventListeners] name: {}, sessionId: {}",
-        webRtcEp.getName(), session.getId());
+        name, session.getId());
 
     // Event: A WebRTC Data Channel has been closed.
-    webRtcEp.addDataChannelClosedListener(
-        new EventListener<DataChannelCloseEvent>() {
+    subscriptions.add(EventSubscriptions.Profile.OPERATIONAL,
+        (cont) -> webRtcEp.addDataChannelClosedListener(
+        new EventListener<DataChannelClosedEvent>() {
       @Override
       public void onEvent(DataChannelClosedEvent ev) {
         log.info("[WebRtcEndpoint::{}] source: {}, timestamp: {}, tags: {}, channelId: {}",
-            ev.getType(), ev.getSource().getName(), ev.getTimestamp(),
+            ev.getType(), name, ev.getTimestamp(),
             ev.getTags(), ev.getChannelId());
       }
-    });
+    }, cont), webRtcEp::removeDataChannelClosedListener);
 
     // Event: A WebRTC Data Channel has been opened.
-    webRtcEp.addDataChannelOpenedListener(
-        new EventListener<DataChannelOpenEvent>() {
+    subscriptions.add(EventSubscriptions.Profile.OPERATIONAL,
+        (cont) -> webRtcEp.addDataChannelOpenedListener(
+        new EventListener<DataChannelOpenedEvent>() {
       @Override
-      public void onEvent(DataChannelOpenEvent ev) {
+      public void onEvent(DataChannelOpenedEvent ev) {
         log.info("[WebRtcEndpoint::{}] source: {}, timestamp: {}, tags: {}, channelId: {}",
-            ev.getType(), ev.getSource().getName(), ev.getTimestamp(),
+            ev.getType(), name, ev.getTimestamp(),
             ev.getTags(), ev.getChannelId());
       }
-    });
+    }, cont), webRtcEp::removeDataChannelOpenedListener);
+
+    // Local candidates are sent in batches with 'ADD_ICE_CANDIDATES', unless
+    // batching is disabled
+    final CandidateBatcher iceBatcher = (iceExecutor == null ? null
+        : new CandidateBatcher(iceExecutor, iceBatchDelayMs,
+            (candidates) -> sendIceCandidates(session, webRtcEp, candidates)));
 
     // Event: The ICE backend found a local candidate during Trickle ICE
-    webRtcEp.addIceCandidateFoundListener(
+    subscriptions.add(EventSubscriptions.Profile.MINIMAL,
+        (cont) -> webRtcEp.addIceCandidateFoundListener(
         new EventListener<IceCandidateFoundEvent>() {
+      private final AtomicBoolean firstCandidate = new AtomicBoolean(true);
+
       @Override
       public void onEvent(IceCandidateFoundEvent ev) {
-        log.debug("[WebRtcEndpoint::{}] source: {}, timestamp: {}, tags: {}, candidate: {}",
-            ev.getType(), ev.getSource().getName(), ev.getTimestamp(),
-            ev.getTags(), JsonUtils.toJson(ev.getCandidate()));
-
-        JsonObject message = new JsonObject();
-        message.addProperty("id", "ADD_ICE_CANDIDATE");
-        message.addProperty("webRtcEpId", webRtcEp.getId());
-        message.add("candidate", JsonUtils.toJsonObject(ev.getCandidate()));
-        sendMessage(session, message.toString());
+        if (firstCandidate.compareAndSet(true, false)) {
+          recordPhase(webRtcEp.getId(), JoinTimeline.Phase.CANDIDATE_OUT);
+        }
+
+        if (log.isDebugEnabled() && signalingLog.sample(ev.getType())) {
+          log.debug("[WebRtcEndpoint::{}] source: {}, timestamp: {}, tags: {}, candidate: {}",
+              ev.getType(), name, ev.getTimestamp(),
+              ev.getTags(), JsonUtils.toJson(ev.getCandidate()));
+        }
+
+        if (iceBatcher != null) {
+          iceBatcher.add(ev.getCandidate());
+          return;
+        }
+
+        sendMessage(session, SignalingCodec.encodeIceCandidate(
+            webRtcEp.getId(), ev.getCandidate()), candidateOverflowPolicy);
       }
-    });
+    }, cont), webRtcEp::removeIceCandidateFoundListener);
 
     // Event: The ICE backend changed state
-    webRtcEp.addIceComponentStateChangedListener(
+    subscriptions.add(EventSubscriptions.Profile.DEBUG,
+        (cont) -> webRtcEp.addIceComponentStateChangedListener(
         new EventListener<IceComponentStateChangedEvent>() {
       @Override
       public void onEvent(IceComponentStateChangedEvent ev) {
         log.debug("[WebRtcEndpoint::{}] source: {}, timestamp: {}, tags: {}, streamId: {}, componentId: {}, state: {}",
-            ev.getType(), ev.getSource().getName(), ev.getTimestamp(),
+            ev.getType(), name, ev.getTimestamp(),
             ev.getTags(), ev.getStreamId(), ev.getComponentId(), ev.getState());
       }
-    });
+    }, cont), webRtcEp::removeIceComponentStateChangedListener);
 
     // Event: The ICE backend finished gathering ICE candidates
-    webRtcEp.addIceGatheringDoneListener(
+    subscriptions.add(EventSubscriptions.Profile.OPERATIONAL,
+        (cont) -> webRtcEp.addIceGatheringDoneListener(
         new EventListener<IceGatheringDoneEvent>() {
       @Override
       public void onEvent(IceGatheringDoneEvent ev) {
         log.info("[WebRtcEndpoint::{}] source: {}, timestamp: {}, tags: {}",
-            ev.getType(), ev.getSource().getName(), ev.getTimestamp(),
+            ev.getType(), name, ev.getTimestamp(),
             ev.getTags());
+
+        // No more candidates will come, don't wait for the batch delay.
+        // Without this event (MINIMAL profile), batches wait for the delay
+        if (iceBatcher != null) {
+          iceBatcher.flush();
+        }
       }
-    });
+    }, cont), webRtcEp::removeIceGatheringDoneListener);
 
     // Event: The ICE backend selected a new pair of ICE candidates for use
-    webRtcEp.addNewCandidatePairSelectedListener(
+    subscriptions.add(EventSubscriptions.Profile.OPERATIONAL,
+        (cont) -> webRtcEp.addNewCandidatePairSelectedListener(
         new EventListener<NewCandidatePairSelectedEvent>() {
       @Override
       public void onEvent(NewCandidatePairSelectedEvent ev) {
+        recordPhase(webRtcEp.getId(),
+            JoinTimeline.Phase.CANDIDATE_PAIR_SELECTED);
+
         log.info("[WebRtcEndpoint::{}] name: {}, timestamp: {}, tags: {}, streamId: {}, local: {}, remote: {}",
-            ev.getType(), ev.getSource().getName(), ev.getTimestamp(),
+            ev.getType(), name, ev.getTimestamp(),
             ev.getTags(), ev.getCandidatePair().getStreamID(),
             ev.getCandidatePair().getLocalCandidate(),
             ev.getCandidatePair().getRemoteCandidate());
       }
-    });
+    }, cont), webRtcEp::removeNewCandidatePairSelectedListener);
+  }
+
+  /**
+   * Change the profile of the event subscriptions, for new endpoints and for
+   * all live ones. Returns without waiting for KMS.
+   */
+  public void setEventProfile(EventSubscriptions.Profile profile)
+  {
+    log.info("[Handler::setEventProfile] profile: {}, live endpoints: {}",
+        profile, eventSubscriptions.size());
+    eventProfile = profile;
+    for (final EventSubscriptions subscriptions : eventSubscriptions.values()) {
+      subscriptions.apply(profile);
+    }
+  }
+
+  /**
+   * Change the profile of the event subscriptions of the live endpoints of
+   * one room, e.g. to debug it. New endpoints still get the default profile.
+   *
+   * @return false if the room does not exist.
+   */
+  public boolean setEventProfile(String roomId,
+      EventSubscriptions.Profile profile)
+  {
+    final Room room = roomManager.getRoom(roomId);
+    if (room == null || room.getPipeline() == null) {
+      return false;
+    }
+
+    final String prefix = room.getPipeline().getId() + "/";
+    int count = 0;
+    for (final Map.Entry<String, EventSubscriptions> entry
+        : eventSubscriptions.entrySet()) {
+      if (entry.getKey().startsWith(prefix)) {
+        entry.getValue().apply(profile);
+        count++;
+      }
+    }
+    log.info("[Handler::setEventProfile] room: {}, profile: {}, endpoints: {}",
+        roomId, profile, count);
+    return true;
   }
 
-  private void initWebRtcEndpoint(final WebSocketSession session,
-      final WebRtcEndpoint webRtcEp, String baseName, String msgId)
+  public EventSubscriptions.Profile getEventProfile()
+  { return this.eventProfile; }
+
+  private long getPipelineCount()
   {
-    initBaseEventListeners(session, webRtcEp, "WebRtcEndpoint");
-    initWebRtcEventListeners(session, webRtcEp);
+    long count = 0;
+    for (final Room room : roomManager.getRooms()) {
+      if (room.getPipeline() != null) {
+        count++;
+      }
+    }
+    return count;
+  }
 
+  /**
+   * Record a join phase of an endpoint, for its owner session.
+   */
+  private void recordPhase(String webRtcEpId, JoinTimeline.Phase phase)
+  {
+    final String sessionId = endpointRegistry.getSessionId(webRtcEpId);
+    if (sessionId != null) {
+      joinTimeline.record(sessionId, webRtcEpId, phase);
+    }
+  }
+
+  /**
+   * Record only the first ICE candidate from the browser for each endpoint;
+   * the rest would push older phases out of the timeline.
+   */
+  private void recordCandidateIn(final WebSocketSession session,
+      String webRtcEpId)
+  {
+    final UserSession user = users.get(session.getId());
+    if (user != null && user.firstCandidateIn(webRtcEpId)) {
+      joinTimeline.record(session.getId(), webRtcEpId,
+          JoinTimeline.Phase.CANDIDATE_IN);
+    }
+  }
+
+  private void sendIceCandidates(final WebSocketSession session,
+      final WebRtcEndpoint webRtcEp, List<IceCandidate> candidates)
+  {
+    sendMessage(session, SignalingCodec.encodeIceCandidates(webRtcEp.getId(),
+        candidates), candidateOverflowPolicy);
+  }
+
+  /**
+   * Subscribe to the events of a new WebRtcEndpoint, register it, and start
+   * its SDP Negotiation. The SDP Offer is returned instead of sent, so the
+   * caller decides the order of the messages to each browser.
+   *
+   * @return null if the endpoint didn't fit in the registry. It was released
+   *     then, so the caller must not keep it.
+   */
+  private String initWebRtcEndpoint(final Room room,
+      final WebSocketSession session, final WebRtcEndpoint webRtcEp,
+      EndpointRegistry.Role role)
+  {
     final String sessionId = session.getId();
-    final String name = baseName + sessionId + "_webrtcendpoint" + webRtcEps.size();
+    final String name = endpointRegistry.nextName(role, sessionId);
+
+    // The browser starts ICE after the SDP Offer, so the subscriptions must
+    // be confirmed by KMS first
+    final EventSubscriptions subscriptions = new EventSubscriptions();
+    initBaseEventListeners(session, webRtcEp, "WebRtcEndpoint", name,
+        subscriptions);
+    initWebRtcEventListeners(session, webRtcEp, name, subscriptions);
+    eventSubscriptions.put(webRtcEp.getId(), subscriptions);
+    final long subscribeStartNs = System.nanoTime();
+    subscriptions.apply(eventProfile).join();
+    metrics.recordKmsCall("subscribe", subscribeStartNs);
+
     webRtcEp.setName(name);
-    webRtcEps.put(webRtcEp.getId(), webRtcEp);
+    if (!endpointRegistry.register(webRtcEp, name, role, sessionId, room)) {
+      releaseWebRtcEp(webRtcEp);
+      sendError(session, "[Kurento] Too many endpoints, name: " + name);
+      return null;
+    }
 
-    // Start an SDP Negotiation
-    final String sdpOffer = webRtcEp.generateOffer();
+    // Start an SDP Negotiation, along with any ICE candidates that arrived
+    // before the registration, and the ICE gathering if it is eager
+    final Transaction tx = kurento.beginTransaction();
+    final TFuture<String> sdpOfferFuture = webRtcEp.generateOffer(tx);
+    addPendingCandidates(tx, session, webRtcEp);
+    if (iceGathering == IceGathering.EAGER) {
+      webRtcEp.gatherCandidates(tx);
+    }
+    final long offerStartNs = System.nanoTime();
+    tx.commit();
+    final String sdpOffer = sdpOfferFuture.get();
+    metrics.recordKmsCall("generateOffer", offerStartNs);
 
     log.info("[Handler::initWebRtcEndpoint] name: {}, SDP Offer from KMS to browser:\n{}",
-        name, sdpOffer);
+        name, signalingLog.redact(sdpOffer));
 
-    JsonObject message = new JsonObject();
-    message.addProperty("id", msgId);
-    message.addProperty("webRtcEpId", webRtcEp.getId());
-    message.addProperty("sdpOffer", sdpOffer);
-    sendMessage(session, message.toString());
+    return sdpOffer;
   }
 
-  private void handleStart(final WebSocketSession session,
-      JsonObject jsonMessage)
+  private void sendSdpOffer(final WebSocketSession session, String msgId,
+      final WebRtcEndpoint webRtcEp, String sdpOffer)
+  {
+    if (sdpOffer != null) {
+      sendMessage(session, SignalingCodec.encodeSdpOffer(msgId,
+          webRtcEp.getId(), sdpOffer));
+      joinTimeline.record(session.getId(), webRtcEp.getId(),
+          JoinTimeline.Phase.OFFER_SENT);
+    }
+  }
+
+  /**
+   * @return false if the START was turned away, and the user didn't join.
+   */
+  private boolean handleStart(final WebSocketSession session,
+      SignalingMessage message)
   {
     final String sessionId = session.getId();
     if (users.containsKey(sessionId)) {
       log.warn("[Handler::handleStart] Skip, user already exists, id: {}",
           sessionId);
-      return;
+      return false;
     }
 
-    if (pipeline == null) {
-      log.info("[Handler::handleStart] Create Media Pipeline");
-      pipeline = kurento.createMediaPipeline();
-    }
-    else {
-      log.info("[Handler::handleStart] Media Pipeline already exists");
-    }
+    final String roomId = (message.getRoomId() != null
+        ? message.getRoomId() : RoomManager.DEFAULT_ROOM_ID);
 
-    log.info("[Handler::handleStart] User count: {}", users.size());
-    log.info("[Handler::handleStart] New user, id: {}", sessionId);
+    log.info("[Handler::handleStart] New user, room: {}, id: {}", roomId,
+        sessionId);
 
     final UserSession user = new UserSession();
     user.setWsSession(session);
+    user.setSendQueue(new SendQueue(session, sendQueueCapacity, sendTimeoutMs,
+        sendExecutor));
+
+    // Checked again when each endpoint is registered, but most joins that
+    // would not fit are turned away here, before building anything
+    if (endpointRegistry.isFull()) {
+      rejectStart(user, "[Kurento] Too many endpoints, try again later");
+      return false;
+    }
+
+    final Room room = roomManager.joinRoom(roomId, user);
+    user.setRoom(room);
     users.put(sessionId, user);
+    metrics.startMedia(sessionId);
+    joinTimeline.record(sessionId, null, JoinTimeline.Phase.START);
+
+    // Joins are serialized in each room, so every pair of users gets
+    // connected exactly once; joins to different rooms run in parallel
+    dispatchToRoom(room, session, () -> {
+      // Left already, e.g. its WebSocket was closed meanwhile; don't build
+      // endpoints that nobody would release
+      if (room.getUsers().get(sessionId) != user) {
+        log.info("[Handler::handleStart] Skip, user left before joining, id: {}",
+            sessionId);
+        return;
+      }
+      joinRoomMedia(room, session, user);
+    });
+    return true;
+  }
 
-    // Use 'recvonly' because this Ep is to receive audio from the browser
-    final WebRtcEndpoint webRtcEpTalker = new WebRtcEndpoint.Builder(pipeline)
-        .recvonly().useDataChannels().build();
-    user.setTalker(webRtcEpTalker);
-    initWebRtcEndpoint(session, webRtcEpTalker, "talker", "MAKE_TALKER");
+  /**
+   * The two listeners that connect a joining user with an existing one, and
+   * their SDP Offers. A listener is null if it wasn't built, or was released
+   * because it didn't fit in the registry.
+   */
+  private static class ListenerPair
+  {
+    final UserSession remoteUser;
+    WebRtcEndpoint remoteListener;
+    String remoteSdpOffer;
+    WebRtcEndpoint localListener;
+    String localSdpOffer;
+
+    ListenerPair(UserSession remoteUser)
+    {
+      this.remoteUser = remoteUser;
+    }
+  }
 
-    log.info("[Handler::handleStart] New local talker: {}",
-        webRtcEpTalker.getName());
+  /**
+   * Each listener is added to its user only once it is registered and has
+   * an SDP Offer, so forwarding changes and mutes never reach one that
+   * isn't negotiated yet.
+   */
+  private void connectRemoteUser(final Room room,
+      final WebSocketSession session, final UserSession user,
+      final ListenerPair pair)
+  {
+    final MediaPipeline pipeline = room.getPipeline();
+    final WebRtcEndpoint webRtcEpTalker = user.getTalker();
+    final UserSession remoteUser = pair.remoteUser;
+
+    // Connect our talker to a new listener on the remote user's side
+    // Use 'sendonly' because this Ep is to send audio to the browser
+    long startNs = System.nanoTime();
+    pair.remoteListener =
+        new WebRtcEndpoint.Builder(pipeline).sendonly().useDataChannels()
+        .build();
+    metrics.recordKmsCall("build", startNs);
+    joinTimeline.record(session.getId(), pair.remoteListener.getId(),
+        JoinTimeline.Phase.ENDPOINT_BUILT);
+    if (user.isForwarded()) {
+      startNs = System.nanoTime();
+      webRtcEpTalker.connect(pair.remoteListener);
+      metrics.recordKmsCall("connect", startNs);
+    }
+    pair.remoteSdpOffer = initWebRtcEndpoint(room, remoteUser.getWsSession(),
+        pair.remoteListener, EndpointRegistry.Role.LISTENER);
+    if (pair.remoteSdpOffer != null) {
+      remoteUser.addListener(webRtcEpTalker.getId(), pair.remoteListener);
+      log.info("[Handler::connectRemoteUser] New remote listener: {}",
+          endpointRegistry.getName(pair.remoteListener.getId()));
+    } else {
+      pair.remoteListener = null;
+    }
 
-    for (final String remoteSessionId : users.keySet()) {
-      if (!users.containsKey(remoteSessionId)) {
-        // Skip users that might have left while this loop is running
-        continue;
-      }
+    // Conect user's talker to a new listener on our side
+    // Use 'sendonly' because this Ep is to send audio to the browser
+    startNs = System.nanoTime();
+    pair.localListener =
+        new WebRtcEndpoint.Builder(pipeline).sendonly().useDataChannels()
+        .build();
+    metrics.recordKmsCall("build", startNs);
+    joinTimeline.record(session.getId(), pair.localListener.getId(),
+        JoinTimeline.Phase.ENDPOINT_BUILT);
+    // The listener of a talker that isn't one of the last N active speakers
+    // is left unconnected
+    if (remoteUser.isForwarded()) {
+      startNs = System.nanoTime();
+      remoteUser.getTalker().connect(pair.localListener);
+      metrics.recordKmsCall("connect", startNs);
+    }
+    pair.localSdpOffer = initWebRtcEndpoint(room, session,
+        pair.localListener, EndpointRegistry.Role.LISTENER);
+    if (pair.localSdpOffer != null) {
+      user.addListener(remoteUser.getTalker().getId(), pair.localListener);
+      log.info("[Handler::connectRemoteUser] New local listener: {}",
+          endpointRegistry.getName(pair.localListener.getId()));
+    } else {
+      pair.localListener = null;
+    }
+  }
+
+  /**
+   * Release the listeners of a pair whose setup failed, and remove them from
+   * both users.
+   */
+  private void releaseListenerPair(final UserSession user,
+      final ListenerPair pair)
+  {
+    if (pair.remoteListener != null) {
+      pair.remoteUser.removeListener(user.getTalker().getId());
+      releaseWebRtcEp(pair.remoteListener);
+    }
+    if (pair.localListener != null) {
+      user.removeListener(pair.remoteUser.getTalker().getId());
+      releaseWebRtcEp(pair.localListener);
+    }
+  }
+
+  private void connectSfu(final Room room, final WebSocketSession session,
+      final UserSession user)
+  {
+    final String sessionId = session.getId();
+
+    // The listeners with each existing user are set up in parallel, because
+    // each one takes several requests to KMS
+    final List<ListenerPair> pairs = new ArrayList<>();
+    final List<CompletableFuture<Throwable>> failures = new ArrayList<>();
+    for (final String remoteSessionId : room.getUsers().keySet()) {
       if (remoteSessionId.equals(sessionId)) {
         // Skip itself
         continue;
       }
 
-      UserSession remoteUser = users.get(remoteSessionId);
+      final UserSession remoteUser = room.getUsers().get(remoteSessionId);
+      if (remoteUser == null || remoteUser.getTalker() == null) {
+        // Skip users that have left, or that are still waiting to join;
+        // these will connect with us once their join runs
+        continue;
+      }
 
-      // Connect our talker to a new listener on the remote user's side
-      // Use 'sendonly' because this Ep is to send audio to the browser
-      final WebRtcEndpoint webRtcEpRemoteListener =
-          new WebRtcEndpoint.Builder(pipeline).sendonly().useDataChannels()
-          .build();
-      remoteUser.addListener(webRtcEpRemoteListener);
-      webRtcEpTalker.connect(webRtcEpRemoteListener);
-      initWebRtcEndpoint(remoteUser.getWsSession(), webRtcEpRemoteListener,
-          "listener", "MAKE_LISTENER");
+      final ListenerPair pair = new ListenerPair(remoteUser);
+      pairs.add(pair);
+      failures.add(CompletableFuture.runAsync(
+          () -> connectRemoteUser(room, session, user, pair),
+          fanoutExecutor != null ? fanoutExecutor : Runnable::run)
+          .handle((result, ex) -> ex));
+    }
 
-      log.info("[Handler::handleStart] New remote listener: {}",
-          webRtcEpRemoteListener.getName());
+    // Wait for all of them, so no setup is still running once the join
+    // ends; one that failed doesn't keep the others from being offered.
+    // The SDP Offers are sent in the same order as with a sequential setup
+    for (int i = 0; i < pairs.size(); i++) {
+      final ListenerPair pair = pairs.get(i);
+      final Throwable failure = failures.get(i).join();
+      if (failure != null) {
+        final Throwable cause = (failure instanceof CompletionException
+            ? failure.getCause() : failure);
+        log.error("[Handler::connectSfu] Exception: {}, remote user: {}",
+            cause, pair.remoteUser.getWsSession().getId());
+        releaseListenerPair(user, pair);
+        sendError(session, "[Kurento] Exception: " + cause.getMessage());
+        continue;
+      }
+      sendSdpOffer(pair.remoteUser.getWsSession(), "MAKE_LISTENER",
+          pair.remoteListener, pair.remoteSdpOffer);
+      sendSdpOffer(session, "MAKE_LISTENER", pair.localListener,
+          pair.localSdpOffer);
+    }
+  }
 
-      // Conect user's talker to a new listener on our side
-      // Use 'sendonly' because this Ep is to send audio to the browser
-      final WebRtcEndpoint webRtcEpLocalListener =
-          new WebRtcEndpoint.Builder(pipeline).sendonly().useDataChannels()
-          .build();
-      user.addListener(webRtcEpLocalListener);
-      remoteUser.getTalker().connect(webRtcEpLocalListener);
-      initWebRtcEndpoint(session, webRtcEpLocalListener, "listener",
-          "MAKE_LISTENER");
+  // Must be called from dispatchToRoom().
+  private void joinRoomMedia(final Room room, final WebSocketSession session,
+      final UserSession user)
+  {
+    final String roomId = room.getRoomId();
+
+    if (room.getPipeline() == null) {
+      log.info("[Handler::joinRoomMedia] Create Media Pipeline, room: {}",
+          roomId);
+      final long pipelineStartNs = System.nanoTime();
+      room.setPipeline(kurento.createMediaPipeline());
+      metrics.recordKmsCall("createMediaPipeline", pipelineStartNs);
+      if (lastN > 0) {
+        room.setActiveSpeakers(new ActiveSpeakers(lastN, speakersHysteresis,
+            speakersMinHoldMs));
+      }
+    }
+    else {
+      log.info("[Handler::joinRoomMedia] Media Pipeline already exists, room: {}",
+          roomId);
+    }
 
-      log.info("[Handler::handleStart] New local listener: {}",
-          webRtcEpLocalListener.getName());
+    final MediaPipeline pipeline = room.getPipeline();
+
+    log.info("[Handler::joinRoomMedia] Room: {}, user count: {}", roomId,
+        room.getUsers().size());
+
+    // Use 'recvonly' because this Ep is to receive audio from the browser
+    final long buildStartNs = System.nanoTime();
+    final WebRtcEndpoint webRtcEpTalker = new WebRtcEndpoint.Builder(pipeline)
+        .recvonly().useDataChannels().build();
+    metrics.recordKmsCall("build", buildStartNs);
+    joinTimeline.record(session.getId(), webRtcEpTalker.getId(),
+        JoinTimeline.Phase.ENDPOINT_BUILT);
+    user.setTalker(webRtcEpTalker);
+
+    // With last-N, the new talker is forwarded only if there is a free slot
+    final ActiveSpeakers speakers = room.getActiveSpeakers();
+    user.setForwarded(speakers == null
+        || speakers.add(webRtcEpTalker.getId(), System.currentTimeMillis()));
+    final String sdpOffer = initWebRtcEndpoint(room, session, webRtcEpTalker,
+        EndpointRegistry.Role.TALKER);
+    if (sdpOffer == null) {
+      // Released already, because it didn't fit in the registry
+      user.setTalker(null);
+      if (speakers != null) {
+        speakers.remove(webRtcEpTalker.getId());
+      }
+      return;
     }
+    sendSdpOffer(session, "MAKE_TALKER", webRtcEpTalker, sdpOffer);
+
+    log.info("[Handler::joinRoomMedia] New local talker: {}",
+        endpointRegistry.getName(webRtcEpTalker.getId()));
 
+    connectSfu(room, session, user);
+  }
 
-    //J
-    // ---- Debug
-    final String pipelineDot = pipeline.getGstreamerDot();
-    try (PrintWriter out = new PrintWriter("pipeline.dot")) {
-      out.println(pipelineDot);
-    } catch (IOException ex) {
-      log.error("[Handler::handleStart] Exception: {}", ex.getMessage());
+  /**
+   * Log the time from the SDP Offer of an endpoint until it gets connected,
+   * to compare the ICE gathering modes.
+   */
+  private void logTimeToConnected(String webRtcEpId)
+  {
+    final long ageMs = endpointRegistry.getAgeMs(webRtcEpId);
+    if (ageMs < 0) {
+      return;
     }
+    log.info("[Handler::logTimeToConnected] name: {}, gathering: {}, time to connected: {} ms",
+        endpointRegistry.getName(webRtcEpId), iceGathering, ageMs);
   }
 
   // WEBRTCPEER_READY ----------------------------------------------------------
@@ -480,75 +1318,231 @@ public class Handler extends TextWebSocketHandler
     // Calling gatherCandidates() is when the Endpoint actually starts working.
     // That is emphasized for demonstration purposes in this code, by launching
     // the ICE candidate gathering in its own method.
+    final long startNs = System.nanoTime();
     webRtcEp.gatherCandidates();
+    metrics.recordKmsCall("gatherCandidates", startNs);
   }
 
   private void handleWebRtcPeerReady(final WebSocketSession session,
-      JsonObject jsonMessage)
+      SignalingMessage message)
   {
-    final String webRtcEpId = jsonMessage.get("webRtcEpId").getAsString();
-    if (!webRtcEps.containsKey(webRtcEpId)) {
+    final String webRtcEpId = message.getWebRtcEpId();
+    final WebRtcEndpoint webRtcEp = getWebRtcEp(session, webRtcEpId);
+    if (webRtcEp == null) {
       log.warn("[Handler::handleWebRtcPeerReady] Skip, unknown endpoint, id: {}",
           webRtcEpId);
       return;
     }
+    joinTimeline.record(session.getId(), webRtcEpId,
+        JoinTimeline.Phase.WEBRTCPEER_READY);
+
+    if (iceGathering == IceGathering.EAGER) {
+      // Started already, along with the SDP Offer
+      return;
+    }
 
-    WebRtcEndpoint webRtcEp = webRtcEps.get(webRtcEpId);
     startWebRtcEndpoint(webRtcEp);
   }
 
   // PROCESS_SDP_ANSWER --------------------------------------------------------
 
   private void handleProcessSdpAnswer(final WebSocketSession session,
-      JsonObject jsonMessage)
+      SignalingMessage message)
   {
-    final String webRtcEpId = jsonMessage.get("webRtcEpId").getAsString();
-    if (!webRtcEps.containsKey(webRtcEpId)) {
+    final String webRtcEpId = message.getWebRtcEpId();
+    final WebRtcEndpoint webRtcEp = getWebRtcEp(session, webRtcEpId);
+    if (webRtcEp == null) {
       log.warn("[Handler::handleProcessSdpAnswer] Skip, unknown endpoint, id: {}",
           webRtcEpId);
       return;
     }
 
-    final String sdpAnswer = jsonMessage.get("sdpAnswer").getAsString();
+    final String sdpAnswer = message.getSdpAnswer();
 
-    WebRtcEndpoint webRtcEp = webRtcEps.get(webRtcEpId);
     log.info("[Handler::handleProcessSdpAnswer] name: {}, SDP Answer from browser to KMS:\n{}",
-        webRtcEp.getName(), sdpAnswer);
+        endpointRegistry.getName(webRtcEpId), signalingLog.redact(sdpAnswer));
+    final long startNs = System.nanoTime();
     webRtcEp.processAnswer(sdpAnswer);
+    metrics.recordKmsCall("processAnswer", startNs);
+    joinTimeline.record(session.getId(), webRtcEpId,
+        JoinTimeline.Phase.ANSWER_PROCESSED);
   }
 
   // ADD_ICE_CANDIDATE ---------------------------------------------------------
 
   private void handleAddIceCandidate(final WebSocketSession session,
-      JsonObject jsonMessage)
+      SignalingMessage message)
   {
-    final String webRtcEpId = jsonMessage.get("webRtcEpId").getAsString();
-    if (!webRtcEps.containsKey(webRtcEpId)) {
-      log.warn("[Handler::handleAddIceCandidate] Skip, unknown endpoint, id: {}",
-          webRtcEpId);
+    final String webRtcEpId = message.getWebRtcEpId();
+    recordCandidateIn(session, webRtcEpId);
+    final WebRtcEndpoint webRtcEp = getWebRtcEp(session, webRtcEpId);
+    if (webRtcEp == null) {
+      holdIceCandidates(session, webRtcEpId,
+          Collections.singletonList(message.getCandidate()));
+      return;
+    }
+
+    final long startNs = System.nanoTime();
+    webRtcEp.addIceCandidate(message.getCandidate());
+    metrics.recordKmsCall("addIceCandidate", startNs);
+  }
+
+  // ADD_ICE_CANDIDATES --------------------------------------------------------
+
+  private void handleAddIceCandidates(final WebSocketSession session,
+      SignalingMessage message)
+  {
+    final String webRtcEpId = message.getWebRtcEpId();
+    recordCandidateIn(session, webRtcEpId);
+    final WebRtcEndpoint webRtcEp = getWebRtcEp(session, webRtcEpId);
+    if (webRtcEp == null) {
+      holdIceCandidates(session, webRtcEpId, message.getCandidates());
       return;
     }
 
-    final JsonObject jsonCandidate =
-        jsonMessage.get("candidate").getAsJsonObject();
-    final IceCandidate candidate =
-        new IceCandidate(jsonCandidate.get("candidate").getAsString(),
-        jsonCandidate.get("sdpMid").getAsString(),
-        jsonCandidate.get("sdpMLineIndex").getAsInt());
+    // One request to KMS for the whole batch
+    final Transaction tx = kurento.beginTransaction();
+    for (final IceCandidate candidate : message.getCandidates()) {
+      webRtcEp.addIceCandidate(tx, candidate);
+    }
+    final long startNs = System.nanoTime();
+    tx.commit();
+    metrics.recordKmsCall("addIceCandidate", startNs);
+  }
 
-    WebRtcEndpoint webRtcEp = webRtcEps.get(webRtcEpId);
-    webRtcEp.addIceCandidate(candidate);
+  /**
+   * Hold the candidates of an endpoint that isn't registered yet, until it
+   * is. Candidates of endpoints that never get registered (e.g. released
+   * already) are dropped after a while.
+   */
+  private void holdIceCandidates(final WebSocketSession session,
+      String webRtcEpId, List<IceCandidate> candidates)
+  {
+    final int held = pendingCandidates.add(session.getId(), webRtcEpId,
+        candidates);
+    if (held < candidates.size()) {
+      log.warn("[Handler::holdIceCandidates] Drop candidates of unknown endpoint, id: {}, dropped: {}",
+          webRtcEpId, candidates.size() - held);
+    } else {
+      log.debug("[Handler::holdIceCandidates] Hold candidates of unknown endpoint, id: {}, count: {}",
+          webRtcEpId, held);
+    }
+  }
+
+  /**
+   * Add the candidates that were held for a newly registered endpoint. KMS
+   * keeps them until the SDP Answer is processed.
+   *
+   * @return the number of candidates added in the Transaction.
+   */
+  private int addPendingCandidates(final Transaction tx,
+      final WebSocketSession session, final WebRtcEndpoint webRtcEp)
+  {
+    final List<IceCandidate> candidates =
+        pendingCandidates.take(session.getId(), webRtcEp.getId());
+    for (final IceCandidate candidate : candidates) {
+      webRtcEp.addIceCandidate(tx, candidate);
+    }
+    if (!candidates.isEmpty()) {
+      log.info("[Handler::addPendingCandidates] name: {}, candidates: {}",
+          endpointRegistry.getName(webRtcEp.getId()), candidates.size());
+    }
+    return candidates.size();
   }
 
   // STOP ----------------------------------------------------------------------
 
   private void stop(final WebSocketSession session)
   {
-    log.warn("[Handler::stop] NOT IMPLEMENTED YET");
+    final String sessionId = session.getId();
+    pendingCandidates.forgetSession(sessionId);
+    metrics.forgetSession(sessionId);
+    final UserSession user = users.remove(sessionId);
+    if (user == null) {
+      log.debug("[Handler::stop] Skip, unknown user, id: {}", sessionId);
+      return;
+    }
+
+    user.getSendQueue().close();
+
+    final Room room = user.getRoom();
+    log.info("[Handler::stop] Remove user, room: {}, id: {}",
+        room.getRoomId(), sessionId);
+
+    // Joins and forwarding changes work on the listeners of the whole room,
+    // so the user leaves in turn with them: no join can build new listeners
+    // for it, or for its talker, once they are released here
+    dispatchToRoom(room, null, () -> leaveRoom(room, user));
+  }
+
+  // Must be called from dispatchToRoom().
+  private void leaveRoom(final Room room, final UserSession user)
+  {
+    final String sessionId = user.getWsSession().getId();
+
+    if (room.leave(sessionId)) {
+      // This was the last user; releasing the Media Pipeline also releases
+      // all of its elements in KMS
+      log.info("[Handler::leaveRoom] Room is empty, release the Media Pipeline, room: {}",
+          room.getRoomId());
+      roomManager.removeRoom(room);
+      pipelineSnapshots.forget(room.getRoomId());
+      endpointRegistry.unregisterSession(sessionId);
+      if (room.getPipeline() != null) {
+        final String pipelineId = room.getPipeline().getId();
+        endpointRegistry.forgetPipeline(pipelineId);
+        eventSubscriptions.keySet().removeIf(
+            id -> id.startsWith(pipelineId + "/"));
+        release(room.getPipeline());
+      }
+      return;
+    }
+
+    // Release the listeners that the other users had for this user's talker
+    final WebRtcEndpoint talker = user.getTalker();
+    if (talker != null && room.getActiveSpeakers() != null) {
+      // Its slot gets taken by the next update
+      room.getActiveSpeakers().remove(talker.getId());
+    }
+    if (talker != null) {
+      for (final UserSession remoteUser : room.getUsers().values()) {
+        releaseWebRtcEp(remoteUser.removeListener(talker.getId()));
+      }
+    }
+
+    // Release this user's own endpoints
+    for (final WebRtcEndpoint listener : user.getListeners()) {
+      releaseWebRtcEp(listener);
+    }
+    releaseWebRtcEp(talker);
+  }
+
+  private void releaseWebRtcEp(final WebRtcEndpoint webRtcEp)
+  {
+    if (webRtcEp == null) {
+      return;
+    }
+    endpointRegistry.unregister(webRtcEp.getId());
+    eventSubscriptions.remove(webRtcEp.getId());
+    release(webRtcEp);
+  }
+
+  private void release(final MediaObject mediaObject)
+  {
+    if (mediaObject == null) {
+      return;
+    }
+    final long startNs = System.nanoTime();
+    try {
+      mediaObject.release();
+      metrics.recordKmsCall("release", startNs);
+    } catch (KurentoException ex) {
+      log.warn("[Handler::release] Exception: {}", ex.getMessage());
+    }
   }
 
   private void handleStop(final WebSocketSession session,
-      JsonObject jsonMessage)
+      SignalingMessage message)
   {
     stop(session);
   }
@@ -556,9 +1550,9 @@ public class Handler extends TextWebSocketHandler
   // ERROR ---------------------------------------------------------------------
 
   private void handleError(final WebSocketSession session,
-      JsonObject jsonMessage)
+      SignalingMessage message)
   {
-    final String errMsg = jsonMessage.get("message").getAsString();
+    final String errMsg = message.getMessage();
     log.error("Browser error: " + errMsg);
 
     log.info("Assume that the other side stops after an error...");
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.kurento.demo;
+
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Kurento Java Demo - Timers, counters and gauges of the signaling and of
+ * the calls to KMS, kept in the Micrometer registry of Spring Boot and
+ * served to Prometheus by "/actuator/prometheus".
+ *
+ * - demo.signaling.messages{type,outcome}: time to handle a message from a
+ *   browser. The outcome is "ok", "rejected" (e.g. an unknown type, or a
+ *   START that doesn't fit) or "error" (it failed).
+ * - demo.kms.calls{method,batch}: time of each call to KMS. Calls on one
+ *   element that are sent together, e.g. generateOffer with the held ICE
+ *   candidates, are timed as their main method, with batch "none". Calls
+ *   on many elements that are sent together are timed once, with the batch
+ *   tag saying what they are for: "stats" and "speakers" (getStats), or
+ *   "speakers" and "mute" (connect). sfu-audio-mute sends each join to KMS
+ *   in a single Transaction, so it has no "build" or "generateOffer" series
+ *   for joins; it has "transaction" and "subscribe" with batch "join", and
+ *   "transaction" with batch "start" for the held ICE candidates and the
+ *   eager gathering of all endpoints of the join.
+ * - demo.time.to.media: from START until media first flows into one of the
+ *   user's endpoints.
+ * - demo.room.task.failures: joins, leaves and forwarding changes that
+ *   failed in the background, after their message was handled.
+ * - demo.{name}: gauges, e.g. users, endpoints and pipelines.
+ *
+ * Meters are looked up in local maps, so recording doesn't allocate once
+ * a series exists. Message types come from the browsers, so only a max.
+ * number of them get their own series and the rest are folded into "other".
+ */
+public class Metrics
+{
+  public enum Outcome
+  {
+    OK, REJECTED, ERROR;
+
+    private final String tag = name().toLowerCase(Locale.ROOT);
+  }
+
+  private static final int MAX_LABEL_VALUES = 64;
+  private static final String OTHER_LABEL_VALUE = "other";
+  private static final String NO_BATCH = "none";
+
+  private final MeterRegistry registry;
+
+  // Timers by message type and outcome, and by KMS method and batch
+  private final ConcurrentHashMap<String, Timer> messages =
+      new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Timer> kmsCalls =
+      new ConcurrentHashMap<>();
+  private final Set<String> messageTypes = ConcurrentHashMap.newKeySet();
+  private final Timer timeToMedia;
+  private final Counter roomTaskFailures;
+
+  // Start time of the users that are still waiting for media, by session ID
+  private final ConcurrentHashMap<String, Long> mediaStarts =
+      new ConcurrentHashMap<>();
+
+  public Metrics(MeterRegistry registry)
+  {
+    this.registry = registry;
+    this.timeToMedia = Timer.builder("demo.time.to.media")
+        .description("Time from START until media first flows into an endpoint of the user.")
+        .publishPercentileHistogram()
+        .register(registry);
+    this.roomTaskFailures = Counter.builder("demo.room.task.failures")
+        .description("Room media changes that failed after their message was handled.")
+        .register(registry);
+  }
+
+  /**
+   * Record a message from a browser, handled since the given System.nanoTime().
+   */
+  public void recordMessage(String type, Outcome outcome, long startNs)
+  {
+    final String typeTag = messageType(type);
+    messages.computeIfAbsent(typeTag + "/" + outcome.tag,
+        (k) -> Timer.builder("demo.signaling.messages")
+            .description("Time to handle a message from a browser.")
+            .tag("type", typeTag)
+            .tag("outcome", outcome.tag)
+            .publishPercentileHistogram()
+            .register(registry))
+        .record(System.nanoTime() - startNs, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Record a call to KMS, made since the given System.nanoTime().
+   */
+  public void recordKmsCall(String method, long startNs)
+  {
+    recordKmsCall(method, NO_BATCH, startNs);
+  }
+
+  /**
+   * Record calls to KMS on many elements, sent together since the given
+   * System.nanoTime().
+   *
+   * @param batch What the calls are for, e.g. "join".
+   */
+  public void recordKmsCall(String method, String batch, long startNs)
+  {
+    kmsCalls.computeIfAbsent(method + "/" + batch,
+        (k) -> Timer.builder("demo.kms.calls")
+            .description("Time of a call to KMS.")
+            .tag("method", method)
+            .tag("batch", batch)
+            .publishPercentileHistogram()
+            .register(registry))
+        .record(System.nanoTime() - startNs, TimeUnit.NANOSECONDS);
+  }
+
+  public void recordRoomTaskFailure()
+  {
+    roomTaskFailures.increment();
+  }
+
+  /**
+   * Start the time to media of a user.
+   */
+  public void startMedia(String sessionId)
+  {
+    mediaStarts.put(sessionId, System.nanoTime());
+  }
+
+  /**
+   * Media flows into an endpoint of a user; only the first time counts.
+   */
+  public void recordMediaFlowing(String sessionId)
+  {
+    final Long startNs = mediaStarts.remove(sessionId);
+    if (startNs != null) {
+      timeToMedia.record(System.nanoTime() - startNs, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  public void forgetSession(String sessionId)
+  {
+    mediaStarts.remove(sessionId);
+  }
+
+  /**
+   * Add a gauge, read on each scrape.
+   *
+   * @param name Lowercase, with dots; it gets the "demo." prefix.
+   */
+  public void addGauge(String name, String help, LongSupplier value)
+  {
+    // The registry holds gauge objects weakly, and nothing else holds this
+    // supplier
+    Gauge.builder("demo." + name, value, LongSupplier::getAsLong)
+        .description(help)
+        .strongReference(true)
+        .register(registry);
+  }
+
+  private String messageType(String type)
+  {
+    final String value = String.valueOf(type);
+    if (messageTypes.contains(value)) {
+      return value;
+    }
+    if (messageTypes.size() < MAX_LABEL_VALUES) {
+      messageTypes.add(value);
+      return value;
+    }
+    return OTHER_LABEL_VALUE;
+  }
+}
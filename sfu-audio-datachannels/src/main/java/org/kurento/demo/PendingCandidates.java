@@ -0,0 +1,170 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.kurento.demo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kurento.client.IceCandidate;
+
+/**
+ * Kurento Java Demo - ICE candidates that a browser sent for a WebRtcEndpoint
+ * that isn't registered yet, held until it is.
+ *
+ * Each session holds the candidates of a few endpoints, up to a max. number
+ * of candidates each, for a limited time; anything beyond that is dropped.
+ * Counters tell how often candidates were buffered, flushed to their endpoint,
+ * and dropped.
+ */
+public class PendingCandidates
+{
+  // Endpoints with pending candidates, in each session
+  private static final int MAX_ENDPOINTS = 8;
+
+  private static class Pending
+  {
+    final long createdNs = System.nanoTime();
+    final List<IceCandidate> candidates = new ArrayList<>();
+  }
+
+  private final long ttlNs;
+  private final int maxCandidates;
+
+  // Pending candidates by session ID, then by endpoint ID
+  private final ConcurrentHashMap<String, Map<String, Pending>> sessions =
+      new ConcurrentHashMap<>();
+
+  private final AtomicLong bufferedCount = new AtomicLong(0);
+  private final AtomicLong flushedCount = new AtomicLong(0);
+  private final AtomicLong droppedCount = new AtomicLong(0);
+
+  /**
+   * @param ttlMs How long the candidates of an endpoint are held.
+   * @param maxCandidates Max. candidates held for each endpoint.
+   */
+  public PendingCandidates(int ttlMs, int maxCandidates)
+  {
+    this.ttlNs = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+    this.maxCandidates = maxCandidates;
+  }
+
+  /**
+   * Hold candidates of an endpoint that isn't registered yet.
+   *
+   * @return the number of candidates that were held; the rest were dropped.
+   */
+  public int add(String sessionId, String webRtcEpId,
+      List<IceCandidate> candidates)
+  {
+    final Map<String, Pending> endpoints = sessions.computeIfAbsent(sessionId,
+        (id) -> new LinkedHashMap<>());
+    int added = 0;
+    synchronized (endpoints) {
+      expire(endpoints);
+
+      Pending pending = endpoints.get(webRtcEpId);
+      if (pending == null && endpoints.size() < MAX_ENDPOINTS) {
+        pending = new Pending();
+        endpoints.put(webRtcEpId, pending);
+      }
+      if (pending != null) {
+        added = Math.min(candidates.size(),
+            maxCandidates - pending.candidates.size());
+        pending.candidates.addAll(candidates.subList(0, added));
+      }
+    }
+
+    bufferedCount.addAndGet(added);
+    droppedCount.addAndGet(candidates.size() - added);
+    return added;
+  }
+
+  /**
+   * Take the candidates held for an endpoint that has just been registered.
+   *
+   * @return an empty list if there are none.
+   */
+  public List<IceCandidate> take(String sessionId, String webRtcEpId)
+  {
+    final Map<String, Pending> endpoints = sessions.get(sessionId);
+    if (endpoints == null) {
+      return Collections.emptyList();
+    }
+
+    final Pending pending;
+    synchronized (endpoints) {
+      expire(endpoints);
+      pending = endpoints.remove(webRtcEpId);
+    }
+    if (pending == null) {
+      return Collections.emptyList();
+    }
+
+    flushedCount.addAndGet(pending.candidates.size());
+    return pending.candidates;
+  }
+
+  /**
+   * Drop all candidates held for a session that has been closed.
+   */
+  public void forgetSession(String sessionId)
+  {
+    final Map<String, Pending> endpoints = sessions.remove(sessionId);
+    if (endpoints == null) {
+      return;
+    }
+    synchronized (endpoints) {
+      for (final Pending pending : endpoints.values()) {
+        droppedCount.addAndGet(pending.candidates.size());
+      }
+      endpoints.clear();
+    }
+  }
+
+  public long getBufferedCount()
+  { return this.bufferedCount.get(); }
+
+  public long getFlushedCount()
+  { return this.flushedCount.get(); }
+
+  public long getDroppedCount()
+  { return this.droppedCount.get(); }
+
+  // Must be called with the lock of the map held.
+  private void expire(Map<String, Pending> endpoints)
+  {
+    final long now = System.nanoTime();
+    final Iterator<Pending> it = endpoints.values().iterator();
+    while (it.hasNext()) {
+      final Pending pending = it.next();
+      // Insertion order is creation order, so the rest are newer
+      if (now - pending.createdNs < ttlNs) {
+        break;
+      }
+      droppedCount.addAndGet(pending.candidates.size());
+      it.remove();
+    }
+  }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.demo;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.websocket.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.adapter.NativeWebSocketSession;
+
+/**
+ * Kurento Java Demo - Per-user outbound WebSocket message queue.
+ *
+ * Messages are queued without blocking the caller, and written to the socket
+ * by a drain task that runs on a shared executor. A slow client only delays
+ * its own messages, instead of stalling the signaling of the whole server.
+ *
+ * Each write to the socket is limited by a send timeout, so a client that
+ * stops reading holds a drain thread only for that long; then its session is
+ * closed. The session is only ever closed by the drain task, so a close
+ * never overlaps a write.
+ */
+public class SendQueue
+{
+  private static final Logger log = LoggerFactory.getLogger(SendQueue.class);
+
+  /**
+   * Max. number of messages sent by one drain task run, before yielding the
+   * executor thread to other sessions.
+   */
+  private static final int DRAIN_BATCH = 64;
+
+  /**
+   * User property of the Tomcat WebSocket sessions with the max. time, in
+   * milliseconds, that a blocking write may take.
+   */
+  private static final String TOMCAT_SEND_TIMEOUT =
+      "org.apache.tomcat.websocket.BLOCKING_SEND_TIMEOUT";
+
+  /**
+   * What to do when a message is offered to a full queue.
+   */
+  public enum OverflowPolicy
+  {
+    /**
+     * Discard the oldest queued message that has this same policy.
+     * If there is none, the new message is discarded instead.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Close the WebSocket session, because the client cannot keep up and
+     * losing this message would leave it in an inconsistent state.
+     */
+    CLOSE,
+  }
+
+  private static class Entry
+  {
+    final String message;
+    final OverflowPolicy policy;
+
+    Entry(String message, OverflowPolicy policy)
+    {
+      this.message = message;
+      this.policy = policy;
+    }
+  }
+
+  private final WebSocketSession wsSession;
+  private final Executor executor;
+  private final int capacity;
+
+  private final Deque<Entry> queue = new ArrayDeque<>();
+  private final AtomicBoolean draining = new AtomicBoolean(false);
+  private final AtomicLong droppedCount = new AtomicLong(0);
+  private volatile boolean closed = false;
+
+  // The socket must be closed by the next drain task
+  private final AtomicBoolean closeRequested = new AtomicBoolean(false);
+
+  /**
+   * @param sendTimeoutMs Max. time that writing one message may block, before
+   *     the session is closed.
+   */
+  public SendQueue(WebSocketSession wsSession, int capacity,
+      long sendTimeoutMs, Executor executor)
+  {
+    this.wsSession = wsSession;
+    this.capacity = capacity;
+    this.executor = executor;
+
+    if (wsSession instanceof NativeWebSocketSession) {
+      final Session nativeSession = ((NativeWebSocketSession) wsSession)
+          .getNativeSession(Session.class);
+      if (nativeSession != null) {
+        nativeSession.getUserProperties().put(TOMCAT_SEND_TIMEOUT,
+            Long.valueOf(sendTimeoutMs));
+      }
+    }
+  }
+
+  public int size()
+  {
+    synchronized (queue) {
+      return queue.size();
+    }
+  }
+
+  public long getDroppedCount()
+  { return this.droppedCount.get(); }
+
+  /**
+   * Queue a message for sending. Never blocks on network I/O.
+   *
+   * @return false if the message was discarded.
+   */
+  public boolean offer(String message, OverflowPolicy policy)
+  {
+    if (closed) {
+      return false;
+    }
+
+    boolean overflow = false;
+    synchronized (queue) {
+      if (queue.size() >= capacity && !evictOldest(OverflowPolicy.DROP_OLDEST)) {
+        overflow = true;
+      } else {
+        queue.addLast(new Entry(message, policy));
+      }
+    }
+
+    if (overflow) {
+      droppedCount.incrementAndGet();
+
+      if (policy == OverflowPolicy.CLOSE) {
+        log.warn("[SendQueue::offer] Queue full, close session, id: {}",
+            wsSession.getId());
+        // Closing writes a close frame, which can block like any other
+        // write; leave it to the drain task
+        close();
+        closeRequested.set(true);
+        scheduleDrain();
+      } else {
+        log.debug("[SendQueue::offer] Queue full, drop message, id: {}",
+            wsSession.getId());
+      }
+      return false;
+    }
+
+    scheduleDrain();
+    return true;
+  }
+
+  /**
+   * Discard all pending messages and reject any new ones.
+   */
+  public void close()
+  {
+    closed = true;
+    synchronized (queue) {
+      queue.clear();
+    }
+  }
+
+  // Must be called with the queue lock held.
+  private boolean evictOldest(OverflowPolicy policy)
+  {
+    final Iterator<Entry> it = queue.iterator();
+    while (it.hasNext()) {
+      if (it.next().policy == policy) {
+        it.remove();
+        droppedCount.incrementAndGet();
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private Entry poll()
+  {
+    synchronized (queue) {
+      return queue.pollFirst();
+    }
+  }
+
+  private void scheduleDrain()
+  {
+    if (!draining.compareAndSet(false, true)) {
+      // A drain task is already running or scheduled
+      return;
+    }
+
+    try {
+      executor.execute(this::drain);
+    } catch (RejectedExecutionException ex) {
+      draining.set(false);
+      log.warn("[SendQueue::scheduleDrain] Executor rejected the drain task, id: {}",
+          wsSession.getId());
+    }
+  }
+
+  private void drain()
+  {
+    try {
+      for (int i = 0; i < DRAIN_BATCH && !closed; i++) {
+        final Entry entry = poll();
+        if (entry == null) {
+          break;
+        }
+        send(entry.message);
+      }
+    } finally {
+      draining.set(false);
+    }
+
+    if (closeRequested.compareAndSet(true, false)) {
+      closeSession(CloseStatus.SESSION_NOT_RELIABLE);
+      return;
+    }
+
+    // Messages could have been queued after the last poll()
+    if (!closed && size() > 0) {
+      scheduleDrain();
+    }
+  }
+
+  private void send(String message)
+  {
+    if (!wsSession.isOpen()) {
+      log.warn("[SendQueue::send] Skip, WebSocket session isn't open, id: {}",
+          wsSession.getId());
+      close();
+      return;
+    }
+
+    try {
+      wsSession.sendMessage(new TextMessage(message));
+    } catch (IOException ex) {
+      // Also when the send timeout expires; the client is stalled or gone
+      log.warn("[SendQueue::send] Exception: {}, close session, id: {}",
+          ex.getMessage(), wsSession.getId());
+      close();
+      closeSession(CloseStatus.SESSION_NOT_RELIABLE);
+    }
+  }
+
+  // Must be called from the drain task.
+  private void closeSession(CloseStatus status)
+  {
+    try {
+      wsSession.close(status);
+    } catch (IOException ex) {
+      log.error("[SendQueue::closeSession] Exception: {}", ex.getMessage());
+    }
+  }
+}
@@ -27,6 +27,7 @@ const talker = new StateVars();
 const listener1 = new StateVars();
 const listener2 = new StateVars();
 
+// Only the WebRTC Peers that have processed their SDP Offer
 const peers = new Map();  // Map<(String)WebRtcEndpoint.Id, (Object)WebRtcPeer>
 
 // UI
@@ -100,6 +101,95 @@ function sendMessage(message)
   ws.send(jsonMessage);
 }
 
+// Local ICE candidates are sent in batches: each burst is held for this long
+// after its first candidate, and then sent as a single message
+const ICE_BATCH_DELAY_MS = 20;
+
+function makeIceCandidateSender(webRtcEpId)
+{
+  let pending = [];
+
+  return (candidate) => {
+    pending.push(candidate);
+    if (pending.length > 1) {
+      return;
+    }
+
+    setTimeout(() => {
+      sendMessage({
+        id: 'ADD_ICE_CANDIDATES',
+        webRtcEpId: webRtcEpId,
+        candidates: pending,
+      });
+      pending = [];
+    }, ICE_BATCH_DELAY_MS);
+  };
+}
+
+// ICE candidates from KMS can arrive before their WebRTC Peer has processed
+// the SDP Offer; these are held until it has. Each endpoint holds up to
+// PENDING_ICE_MAX candidates, for up to PENDING_ICE_TTL_MS
+const PENDING_ICE_TTL_MS = 10000;
+const PENDING_ICE_MAX = 64;
+
+// Map<(String)WebRtcEndpoint.Id, { created: (Number)ms, candidates: [] }>
+const pendingIce = new Map();
+const iceStats = { buffered: 0, flushed: 0, dropped: 0 };
+
+function holdIceCandidates(webRtcEpId, candidates)
+{
+  const now = Date.now();
+  for (const [id, pending] of pendingIce) {
+    if (now - pending.created >= PENDING_ICE_TTL_MS) {
+      iceStats.dropped += pending.candidates.length;
+      pendingIce.delete(id);
+    }
+  }
+
+  if (!pendingIce.has(webRtcEpId)) {
+    pendingIce.set(webRtcEpId, { created: now, candidates: [] });
+  }
+  const pending = pendingIce.get(webRtcEpId);
+  const held = Math.min(candidates.length,
+      PENDING_ICE_MAX - pending.candidates.length);
+  pending.candidates.push(...candidates.slice(0, held));
+  iceStats.buffered += held;
+  iceStats.dropped += candidates.length - held;
+
+  if (held < candidates.length) {
+    console.warn("[holdIceCandidates] Drop candidates, webRtcEpId: "
+        + webRtcEpId + ", dropped: " + (candidates.length - held));
+  }
+}
+
+function takeIceCandidates(webRtcEpId)
+{
+  const pending = pendingIce.get(webRtcEpId);
+  if (!pending) {
+    return [];
+  }
+  pendingIce.delete(webRtcEpId);
+
+  if (Date.now() - pending.created >= PENDING_ICE_TTL_MS) {
+    iceStats.dropped += pending.candidates.length;
+    return [];
+  }
+  iceStats.flushed += pending.candidates.length;
+  return pending.candidates;
+}
+
+function dropIceCandidates()
+{
+  for (const pending of pendingIce.values()) {
+    iceStats.dropped += pending.candidates.length;
+  }
+  pendingIce.clear();
+
+  console.log("[dropIceCandidates] Remote ICE candidates, buffered: "
+      + iceStats.buffered + ", flushed: " + iceStats.flushed
+      + ", dropped: " + iceStats.dropped);
+}
+
 function makePeer(sdpOffer, webRtcEpId)
 {
   console.log("[makePeer] Make WebRtcPeerSendonly, webRtcEpId: " + webRtcEpId);
@@ -108,11 +198,7 @@ function makePeer(sdpOffer, webRtcEpId)
     localVideo: talker.tag,
     remoteVideo: null,
     mediaConstraints: { audio: true, video: false },
-    onicecandidate: (candidate) => sendMessage({
-      id: 'ADD_ICE_CANDIDATE',
-      webRtcEpId: webRtcEpId,
-      candidate: candidate,
-    }),
+    onicecandidate: makeIceCandidateSender(webRtcEpId),
     onnegotiationneeded: (ev) => console.log("[talker.WebRtcPeer.onnegotiationneeded] NOOP, webRtcEpId: "
         + webRtcEpId),
     dataChannels: true,
@@ -145,7 +231,6 @@ function makePeer(sdpOffer, webRtcEpId)
 
     console.log("[talker.WebRtcPeer] Created");
 
-    peers.set(webRtcEpId, talker.peer);
     talker.pc = talker.peer.peerConnection;
 
     sendMessage({
@@ -161,6 +246,9 @@ function makePeer(sdpOffer, webRtcEpId)
         return;
       }
 
+      peers.set(webRtcEpId, talker.peer);
+      addIceCandidates(webRtcEpId, takeIceCandidates(webRtcEpId));
+
       sendMessage({
         id: 'PROCESS_SDP_ANSWER',
         webRtcEpId: webRtcEpId,
@@ -194,6 +282,9 @@ ws.onmessage = function(message)
     case 'ADD_ICE_CANDIDATE':
       handleAddIceCandidate(jsonMessage);
       break;
+    case 'ADD_ICE_CANDIDATES':
+      handleAddIceCandidates(jsonMessage);
+      break;
     case 'ERROR':
       handleError(jsonMessage);
       break;
@@ -225,11 +316,7 @@ function handleMakeListener(jsonMessage)
     localVideo: null,
     remoteVideo: listener.tag,
     mediaConstraints: { audio: true, video: false },
-    onicecandidate: (candidate) => sendMessage({
-      id: 'ADD_ICE_CANDIDATE',
-      webRtcEpId: webRtcEpId,
-      candidate: candidate,
-    }),
+    onicecandidate: makeIceCandidateSender(webRtcEpId),
     onnegotiationneeded: (ev) => console.log("[listener.WebRtcPeer.onnegotiationneeded] NOOP, webRtcEpId: "
         + webRtcEpId),
     dataChannels: true,
@@ -263,7 +350,6 @@ function handleMakeListener(jsonMessage)
 
     console.log("[listener.WebRtcPeer] Created");
 
-    peers.set(webRtcEpId, listener.peer);
     listener.pc = listener.peer.peerConnection;
     listener.pc.ontrack = (trackEv) => {
       if (trackEv.track.kind === 'audio') {
@@ -286,6 +372,9 @@ function handleMakeListener(jsonMessage)
         return;
       }
 
+      peers.set(webRtcEpId, listener.peer);
+      addIceCandidates(webRtcEpId, takeIceCandidates(webRtcEpId));
+
       sendMessage({
         id: 'PROCESS_SDP_ANSWER',
         webRtcEpId: webRtcEpId,
@@ -301,20 +390,32 @@ function handleMakeListener(jsonMessage)
 
 function handleAddIceCandidate(jsonMessage)
 {
-  const webRtcEpId = jsonMessage.webRtcEpId;
+  addIceCandidates(jsonMessage.webRtcEpId, [jsonMessage.candidate]);
+}
+
+// ADD_ICE_CANDIDATES ----------------------------------------------------------
+
+function handleAddIceCandidates(jsonMessage)
+{
+  addIceCandidates(jsonMessage.webRtcEpId, jsonMessage.candidates);
+}
+
+function addIceCandidates(webRtcEpId, candidates)
+{
   if (!peers.has(webRtcEpId)) {
-    console.warn("[handleAddIceCandidate] Skip, unknown endpoint, id: "
-        + webRtcEpId);
+    holdIceCandidates(webRtcEpId, candidates);
     return;
   }
 
   const peer = peers.get(webRtcEpId);
-  peer.addIceCandidate(jsonMessage.candidate, (err) => {
-    if (err) {
-      console.error("[handleAddIceCandidate] Error: " + err);
-      return;
-    }
-  });
+  for (const candidate of candidates) {
+    peer.addIceCandidate(candidate, (err) => {
+      if (err) {
+        console.error("[addIceCandidates] Error: " + err);
+        return;
+      }
+    });
+  }
 }
 
 // STOP ------------------------------------------------------------------------
@@ -329,6 +430,7 @@ function stop()
   console.warn("[stop] NOT IMPLEMENTED YET");
 
   uiSetState(UI_IDLE);
+  dropIceCandidates();
 
   sendMessage({
     id: 'STOP',
@@ -361,6 +463,7 @@ function uiStart()
 
   sendMessage({
     id: 'START',
+    roomId: uiRoomTxt.value,
   });
 }
 
@@ -391,16 +494,19 @@ function uiSetState(newState)
       uiEnableElement('#uiStartBtn', 'uiStart()');
       uiDisableElement('#uiStopBtn');
       uiDisableElement('#uiSendBtn');
+      uiEnableElement('#uiRoomTxt');
       break;
     case UI_STARTING:
       uiDisableElement('#uiStartBtn');
       uiDisableElement('#uiStopBtn');
       uiDisableElement('#uiSendBtn');
+      uiDisableElement('#uiRoomTxt');
       break;
     case UI_STARTED:
       uiDisableElement('#uiStartBtn');
       uiEnableElement('#uiStopBtn', 'uiStop()');
       uiEnableElement('#uiSendBtn', 'uiSend()');
+      uiDisableElement('#uiRoomTxt');
       break;
     default:
       console.warn("[setState] Skip, invalid state: " + newState);
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.kurento.demo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Kurento Java Demo - Audio activity of the talkers of a room, to forward
+ * only the last N active speakers.
+ *
+ * The activity of each talker is the bitrate that it receives from its
+ * browser, smoothed over time: Opus sends much less while the user is
+ * silent, and nothing while muted. The N talkers with the highest activity
+ * are selected. To not switch back and forth, a selected talker is only
+ * replaced by one that is clearly more active (hysteresis), and after it has
+ * been selected for a minimum time.
+ *
+ * Not thread-safe; the Handler only uses it from the media changes of its
+ * room, which run one at a time.
+ */
+public class ActiveSpeakers
+{
+  // Weight of each new bitrate sample in the activity
+  private static final double SMOOTHING = 0.5;
+
+  private static class Talker
+  {
+    long lastBytes = -1;
+    long lastSampleMs = 0;
+    double activity = 0.0;
+    // 0 if not selected
+    long selectedSinceMs = 0;
+  }
+
+  private final int lastN;
+  private final double hysteresis;
+  private final long minHoldMs;
+
+  private final Map<String, Talker> talkers = new HashMap<>();
+  private final Set<String> selected = new HashSet<>();
+
+  /**
+   * @param hysteresis How many times more active a talker has to be, to
+   *     replace one that is selected.
+   * @param minHoldMs Min. time that a talker stays selected.
+   */
+  public ActiveSpeakers(int lastN, double hysteresis, long minHoldMs)
+  {
+    this.lastN = lastN;
+    this.hysteresis = hysteresis;
+    this.minHoldMs = minHoldMs;
+  }
+
+  /**
+   * @return true if a new talker would be selected right away.
+   */
+  public boolean hasFreeSlot()
+  {
+    return selected.size() < lastN;
+  }
+
+  /**
+   * Add the talker of a joining user; it takes a free slot, if any.
+   *
+   * @return true if it was selected.
+   */
+  public boolean add(String talkerId, long nowMs)
+  {
+    final Talker talker = new Talker();
+    talkers.put(talkerId, talker);
+    if (!hasFreeSlot()) {
+      return false;
+    }
+    talker.selectedSinceMs = nowMs;
+    selected.add(talkerId);
+    return true;
+  }
+
+  public void remove(String talkerId)
+  {
+    talkers.remove(talkerId);
+    selected.remove(talkerId);
+  }
+
+  public boolean isSelected(String talkerId)
+  {
+    return selected.contains(talkerId);
+  }
+
+  public Set<String> getSelected()
+  {
+    return Collections.unmodifiableSet(selected);
+  }
+
+  /**
+   * Update the activity of a talker with its total received bytes.
+   */
+  public void update(String talkerId, long bytesReceived, long nowMs)
+  {
+    final Talker talker = talkers.get(talkerId);
+    if (talker == null) {
+      return;
+    }
+
+    if (talker.lastBytes >= 0 && nowMs > talker.lastSampleMs) {
+      final double bitrate = Math.max(0, bytesReceived - talker.lastBytes)
+          * 8000.0 / (nowMs - talker.lastSampleMs);
+      talker.activity = SMOOTHING * bitrate
+          + (1 - SMOOTHING) * talker.activity;
+    }
+    talker.lastBytes = bytesReceived;
+    talker.lastSampleMs = nowMs;
+  }
+
+  /**
+   * Fill the free slots with the most active talkers, then replace the least
+   * active selected talkers with more active ones, if allowed.
+   *
+   * @return true if the selection changed.
+   */
+  public boolean select(long nowMs)
+  {
+    final List<String> candidates = new ArrayList<>();
+    for (final String talkerId : talkers.keySet()) {
+      if (!selected.contains(talkerId)) {
+        candidates.add(talkerId);
+      }
+    }
+    // Most active first
+    candidates.sort((a, b) -> Double.compare(
+        talkers.get(b).activity, talkers.get(a).activity));
+
+    boolean changed = false;
+    for (final String candidateId : candidates) {
+      final Talker candidate = talkers.get(candidateId);
+
+      if (hasFreeSlot()) {
+        candidate.selectedSinceMs = nowMs;
+        selected.add(candidateId);
+        changed = true;
+        continue;
+      }
+
+      // The least active of the selected talkers that can be replaced
+      String weakestId = null;
+      for (final String selectedId : selected) {
+        final Talker talker = talkers.get(selectedId);
+        if (nowMs - talker.selectedSinceMs < minHoldMs) {
+          continue;
+        }
+        if (weakestId == null
+            || talker.activity < talkers.get(weakestId).activity) {
+          weakestId = selectedId;
+        }
+      }
+      if (weakestId == null) {
+        break;
+      }
+
+      final Talker weakest = talkers.get(weakestId);
+      if (candidate.activity <= weakest.activity * hysteresis
+          || candidate.activity == 0) {
+        // Candidates are sorted, so the rest are not more active
+        break;
+      }
+
+      selected.remove(weakestId);
+      weakest.selectedSinceMs = 0;
+      selected.add(candidateId);
+      candidate.selectedSinceMs = nowMs;
+      changed = true;
+    }
+    return changed;
+  }
+}
@@ -16,7 +16,9 @@
 
 package org.kurento.demo;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import org.kurento.client.KurentoClient;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
@@ -43,6 +45,72 @@ public class Application implements WebSocketConfigurer
     return KurentoClient.create();
   }
 
+  @Bean
+  public RoomManager roomManager()
+  {
+    return new RoomManager();
+  }
+
+  @Bean
+  public EndpointRegistry endpointRegistry(
+      @Value("${demo.endpoints.max:10000}") int capacity)
+  {
+    return new EndpointRegistry(capacity);
+  }
+
+  @Bean(destroyMethod = "close")
+  public PipelineSnapshots pipelineSnapshots(
+      @Value("${demo.debug.snapshots.keep:5}") int keep,
+      @Value("${demo.debug.snapshots.min-interval:10}") int minIntervalS)
+  {
+    return new PipelineSnapshots(keep, minIntervalS);
+  }
+
+  @Bean
+  public SignalingLog signalingLog(
+      @Value("${demo.log.sdp-mode:TRUNCATE}") SignalingLog.SdpMode sdpMode,
+      @Value("${demo.log.sdp-max-length:256}") int maxLength,
+      @Value("${demo.log.sampling:ADD_ICE_CANDIDATE:20,ADD_ICE_CANDIDATES:5,IceCandidateFound:20}")
+      String sampling)
+  {
+    return new SignalingLog(sdpMode, maxLength, sampling);
+  }
+
+  @Bean
+  public PendingCandidates pendingCandidates(
+      @Value("${demo.ice.pending.ttl:10000}") int ttlMs,
+      @Value("${demo.ice.pending.max:64}") int maxCandidates)
+  {
+    return new PendingCandidates(ttlMs, maxCandidates);
+  }
+
+  @Bean
+  public Metrics metrics(MeterRegistry meterRegistry)
+  {
+    return new Metrics(meterRegistry);
+  }
+
+  @Bean
+  public JoinTimeline joinTimeline(
+      @Value("${demo.debug.timeline.capacity:4096}") int capacity)
+  {
+    return new JoinTimeline(capacity);
+  }
+
+  @Bean(destroyMethod = "close")
+  public StatsCollector statsCollector(KurentoClient kurento,
+      EndpointRegistry endpointRegistry, Metrics metrics,
+      @Value("${demo.stats.interval:5000}") int intervalMs,
+      @Value("${demo.stats.max-interval:60000}") int maxIntervalMs,
+      @Value("${demo.stats.room-endpoints:16}") int roomEndpoints,
+      @Value("${demo.stats.batch-size:16}") int batchSize,
+      @Value("${demo.stats.concurrency:2}") int concurrency,
+      @Value("${demo.stats.samples:60}") int samples)
+  {
+    return new StatsCollector(kurento, endpointRegistry, metrics, intervalMs,
+        maxIntervalMs, roomEndpoints, batchSize, concurrency, samples);
+  }
+
   @Override
   public void registerWebSocketHandlers(WebSocketHandlerRegistry registry)
   {
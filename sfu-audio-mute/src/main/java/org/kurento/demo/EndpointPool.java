@@ -0,0 +1,320 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.kurento.demo;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.Transaction;
+import org.kurento.client.WebRtcEndpoint;
+import org.kurento.commons.exception.KurentoException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Kurento Java Demo - Idle WebRtcEndpoints of a Media Pipeline, ready to be
+ * handed out to joining users.
+ *
+ * Endpoints are built and subscribed to their events in the background, so a
+ * join only has to connect them and generate their SDP Offers. Talkers are
+ * recvonly and listeners are sendonly, so each role has its own idle set;
+ * sendrecv peers are not pooled.
+ *
+ * The number of idle endpoints of each role follows the number that was taken
+ * in the recent past, between a configured minimum and maximum. Taken
+ * endpoints belong to the caller, and get released like any other endpoint;
+ * the idle ones get released when the pool shrinks or is closed.
+ */
+public class EndpointPool
+{
+  private static final Logger log =
+      LoggerFactory.getLogger(EndpointPool.class);
+
+  private static final EndpointRegistry.Role[] ROLES = {
+      EndpointRegistry.Role.TALKER, EndpointRegistry.Role.LISTENER };
+
+  /**
+   * Endpoints taken in the current and in the previous window of time.
+   */
+  private static class Demand
+  {
+    long windowStart = System.nanoTime();
+    int current = 0;
+    int previous = 0;
+
+    void rotate(long now, long windowNs)
+    {
+      final long elapsed = now - windowStart;
+      if (elapsed < windowNs) {
+        return;
+      }
+      previous = (elapsed < 2 * windowNs ? current : 0);
+      current = 0;
+      windowStart = now;
+    }
+  }
+
+  private final KurentoClient kurento;
+  private final MediaPipeline pipeline;
+  private final ScheduledExecutorService executor;
+  private final Consumer<List<WebRtcEndpoint>> subscriber;
+  private final Consumer<WebRtcEndpoint> releaser;
+  private final int minSize;
+  private final int maxSize;
+  private final long windowNs;
+
+  private final Map<EndpointRegistry.Role, ArrayDeque<WebRtcEndpoint>> idle =
+      new EnumMap<>(EndpointRegistry.Role.class);
+  private final Map<EndpointRegistry.Role, Demand> demand =
+      new EnumMap<>(EndpointRegistry.Role.class);
+  private boolean closed = false;
+
+  // Refills are serialized, and at most one is waiting to run
+  private final Object refillLock = new Object();
+  private final AtomicBoolean refillQueued = new AtomicBoolean(false);
+  private ScheduledFuture<?> periodicRefill;
+
+  /**
+   * @param subscriber Subscribes to the events of new endpoints, and returns
+   *     once KMS has confirmed all subscriptions.
+   * @param releaser Releases the idle endpoints that are left over when the
+   *     pool shrinks.
+   */
+  public EndpointPool(KurentoClient kurento, MediaPipeline pipeline,
+      ScheduledExecutorService executor,
+      Consumer<List<WebRtcEndpoint>> subscriber,
+      Consumer<WebRtcEndpoint> releaser, int minSize, int maxSize,
+      int windowS)
+  {
+    this.kurento = kurento;
+    this.pipeline = pipeline;
+    this.executor = executor;
+    this.subscriber = subscriber;
+    this.releaser = releaser;
+    this.minSize = minSize;
+    this.maxSize = Math.max(minSize, maxSize);
+    this.windowNs = TimeUnit.SECONDS.toNanos(windowS);
+
+    for (final EndpointRegistry.Role role : ROLES) {
+      idle.put(role, new ArrayDeque<>());
+      demand.put(role, new Demand());
+    }
+  }
+
+  /**
+   * Build a new endpoint for the given role in a Transaction. The pool uses
+   * this too, so pooled and fresh endpoints are the same.
+   */
+  public static WebRtcEndpoint build(final Transaction tx,
+      MediaPipeline pipeline, EndpointRegistry.Role role)
+  {
+    // Talkers receive audio from the browser, listeners send audio to it,
+    // and peers do both
+    final WebRtcEndpoint.Builder builder = new WebRtcEndpoint.Builder(pipeline);
+    if (role == EndpointRegistry.Role.TALKER) {
+      builder.recvonly();
+    } else if (role == EndpointRegistry.Role.LISTENER) {
+      builder.sendonly();
+    }
+    return builder.build(tx);
+  }
+
+  /**
+   * Fill the pool for the first time, and keep it sized from then on.
+   */
+  public void start()
+  {
+    final long windowMs = TimeUnit.NANOSECONDS.toMillis(windowNs);
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      periodicRefill = executor.scheduleWithFixedDelay(this::refill,
+          windowMs, windowMs, TimeUnit.MILLISECONDS);
+    }
+    queueRefill();
+  }
+
+  /**
+   * Take an idle endpoint, already subscribed to its events.
+   *
+   * @return null if there is none, or if this role is not pooled; the
+   *     caller must build a new one.
+   */
+  public WebRtcEndpoint take(EndpointRegistry.Role role)
+  {
+    final WebRtcEndpoint webRtcEp;
+    synchronized (this) {
+      if (closed || !idle.containsKey(role)) {
+        return null;
+      }
+      final Demand roleDemand = demand.get(role);
+      roleDemand.rotate(System.nanoTime(), windowNs);
+      roleDemand.current++;
+      webRtcEp = idle.get(role).pollFirst();
+    }
+
+    queueRefill();
+
+    if (webRtcEp == null) {
+      log.debug("[EndpointPool::take] Pool is empty, role: {}", role);
+    }
+    return webRtcEp;
+  }
+
+  /**
+   * @return true if the endpoint is idle in this pool.
+   */
+  public synchronized boolean contains(String webRtcEpId)
+  {
+    for (final ArrayDeque<WebRtcEndpoint> webRtcEps : idle.values()) {
+      for (final WebRtcEndpoint webRtcEp : webRtcEps) {
+        if (webRtcEp.getId().equals(webRtcEpId)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  public synchronized int getIdleCount(EndpointRegistry.Role role)
+  { return this.idle.get(role).size(); }
+
+  /**
+   * Stop refilling. Idle endpoints are not released, because this is meant
+   * to be called right before releasing the whole Media Pipeline.
+   */
+  public void close()
+  {
+    synchronized (this) {
+      closed = true;
+      for (final ArrayDeque<WebRtcEndpoint> webRtcEps : idle.values()) {
+        webRtcEps.clear();
+      }
+      if (periodicRefill != null) {
+        periodicRefill.cancel(false);
+      }
+    }
+  }
+
+  private void queueRefill()
+  {
+    if (!refillQueued.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      executor.execute(this::refill);
+    } catch (RejectedExecutionException ex) {
+      refillQueued.set(false);
+      log.debug("[EndpointPool::queueRefill] Executor is shut down");
+    }
+  }
+
+  private synchronized int targetSize(EndpointRegistry.Role role)
+  {
+    final Demand roleDemand = demand.get(role);
+    roleDemand.rotate(System.nanoTime(), windowNs);
+    final int recent = Math.max(roleDemand.current, roleDemand.previous);
+    return Math.min(maxSize, Math.max(minSize, recent));
+  }
+
+  private void refill()
+  {
+    synchronized (refillLock) {
+      refillQueued.set(false);
+      try {
+        for (final EndpointRegistry.Role role : ROLES) {
+          resize(role);
+        }
+      } catch (KurentoException ex) {
+        // The Media Pipeline might have been released meanwhile
+        log.warn("[EndpointPool::refill] Exception: {}", ex.getMessage());
+      }
+    }
+  }
+
+  private void resize(EndpointRegistry.Role role)
+  {
+    final int target = targetSize(role);
+    final List<WebRtcEndpoint> excess = new ArrayList<>();
+    final int missing;
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      final ArrayDeque<WebRtcEndpoint> webRtcEps = idle.get(role);
+      while (webRtcEps.size() > target) {
+        excess.add(webRtcEps.pollLast());
+      }
+      missing = target - webRtcEps.size();
+    }
+
+    for (final WebRtcEndpoint webRtcEp : excess) {
+      releaser.accept(webRtcEp);
+    }
+    if (missing <= 0) {
+      return;
+    }
+
+    log.debug("[EndpointPool::resize] role: {}, target: {}, new endpoints: {}",
+        role, target, missing);
+
+    // All endpoints are built in a single request to KMS
+    final Transaction tx = kurento.beginTransaction();
+    final List<WebRtcEndpoint> built = new ArrayList<>(missing);
+    for (int i = 0; i < missing; i++) {
+      built.add(build(tx, pipeline, role));
+    }
+    tx.commit();
+
+    // The client keeps the objects created in a Transaction under their
+    // temporary reference, so their events would be lost; use new proxies
+    // with the actual IDs instead
+    final List<WebRtcEndpoint> webRtcEps = new ArrayList<>(missing);
+    for (final WebRtcEndpoint webRtcEp : built) {
+      webRtcEps.add(kurento.getById(webRtcEp.getId(), WebRtcEndpoint.class));
+    }
+    subscriber.accept(webRtcEps);
+
+    synchronized (this) {
+      if (!closed) {
+        idle.get(role).addAll(webRtcEps);
+        return;
+      }
+    }
+
+    // Closed while building; the Media Pipeline is being released already,
+    // but the releaser also forgets what the subscriber kept of them
+    log.debug("[EndpointPool::resize] Pool closed, drop new endpoints, role: {}",
+        role);
+    for (final WebRtcEndpoint webRtcEp : webRtcEps) {
+      releaser.accept(webRtcEp);
+    }
+  }
+}
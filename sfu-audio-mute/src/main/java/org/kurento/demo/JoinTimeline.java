@@ -0,0 +1,287 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.kurento.demo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Kurento Java Demo - Timestamped phases of each user's join, to tell
+ * whether slow joins are bound by KMS, by ICE, or by the browser.
+ *
+ * Phases are kept in a fixed-size ring that overwrites the oldest ones;
+ * recording is a single atomic increment and store. Queries copy the ring
+ * and measure each phase from the START of its join. Only the first
+ * occurrence of a phase counts for each endpoint, so e.g. CANDIDATE_IN is the
+ * first ICE candidate that the browser sent for it.
+ *
+ * An endpoint belongs to the join that built it: ENDPOINT_BUILT is recorded
+ * with the session that is joining, which for the listeners that an SFU room
+ * adds to the other users is not their owner. The rest of its phases follow
+ * it, whichever session records them.
+ */
+public class JoinTimeline
+{
+  public enum Phase
+  {
+    /** START received from the browser. */
+    START,
+    /** Endpoint built in KMS, or taken from a pool. */
+    ENDPOINT_BUILT,
+    /** SDP Offer sent to the browser. */
+    OFFER_SENT,
+    /** WEBRTCPEER_READY received from the browser. */
+    WEBRTCPEER_READY,
+    /** SDP Answer processed by KMS. */
+    ANSWER_PROCESSED,
+    /** ICE candidate received from the browser. */
+    CANDIDATE_IN,
+    /** ICE candidate found by KMS. */
+    CANDIDATE_OUT,
+    /** NewCandidatePairSelected from KMS. */
+    CANDIDATE_PAIR_SELECTED,
+    /** MediaFlowInStateChange to FLOWING from KMS. */
+    MEDIA_FLOWING
+  }
+
+  public static class Entry
+  {
+    private final String sessionId;
+    private final String webRtcEpId;
+    private final Phase phase;
+    private final long nanos;
+    private final long timeMs;
+
+    Entry(String sessionId, String webRtcEpId, Phase phase)
+    {
+      this.sessionId = sessionId;
+      this.webRtcEpId = webRtcEpId;
+      this.phase = phase;
+      this.nanos = System.nanoTime();
+      this.timeMs = System.currentTimeMillis();
+    }
+
+    /** The session that recorded this phase. */
+    public String getSessionId()
+    { return this.sessionId; }
+
+    /** Null for the phases of the session, like START. */
+    public String getWebRtcEpId()
+    { return this.webRtcEpId; }
+
+    public Phase getPhase()
+    { return this.phase; }
+
+    public long getTimeMs()
+    { return this.timeMs; }
+
+    /** Milliseconds since another entry, e.g. the START of the session. */
+    public double getMsSince(Entry other)
+    { return (this.nanos - other.nanos) / 1e6; }
+  }
+
+  /**
+   * Percentiles of the time from START to a phase, in milliseconds.
+   */
+  public static class Rollup
+  {
+    private final int count;
+    private final double p50;
+    private final double p90;
+    private final double p99;
+    private final double max;
+
+    Rollup(double[] sortedMs)
+    {
+      this.count = sortedMs.length;
+      this.p50 = percentile(sortedMs, 50);
+      this.p90 = percentile(sortedMs, 90);
+      this.p99 = percentile(sortedMs, 99);
+      this.max = sortedMs[sortedMs.length - 1];
+    }
+
+    public int getCount()
+    { return this.count; }
+
+    public double getP50()
+    { return this.p50; }
+
+    public double getP90()
+    { return this.p90; }
+
+    public double getP99()
+    { return this.p99; }
+
+    public double getMax()
+    { return this.max; }
+
+    // Nearest rank
+    private static double percentile(double[] sortedMs, int percent)
+    {
+      final int rank = (int) Math.ceil(percent / 100.0 * sortedMs.length);
+      return sortedMs[Math.max(0, rank - 1)];
+    }
+  }
+
+  private final AtomicReferenceArray<Entry> ring;
+  private final AtomicLong next = new AtomicLong(0);
+
+  /**
+   * @param capacity Max. entries kept, from all sessions.
+   */
+  public JoinTimeline(int capacity)
+  {
+    this.ring = new AtomicReferenceArray<>(Math.max(1, capacity));
+  }
+
+  public void record(String sessionId, String webRtcEpId, Phase phase)
+  {
+    final int index = (int) (next.getAndIncrement() % ring.length());
+    ring.set(index, new Entry(sessionId, webRtcEpId, phase));
+  }
+
+  /**
+   * Get the kept entries of the join of a session, oldest first; only the
+   * first of each phase, for each endpoint.
+   */
+  public List<Entry> getSession(String sessionId)
+  {
+    final List<Entry> entries = snapshot();
+    final Map<String, String> joins = getJoins(entries);
+
+    final List<Entry> result = new ArrayList<>();
+    for (final Entry entry : entries) {
+      if (getJoin(joins, entry).equals(sessionId)) {
+        result.add(entry);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Get the START of a session, from the given entries.
+   *
+   * @return null if it was overwritten already.
+   */
+  public static Entry getStart(List<Entry> entries)
+  {
+    for (final Entry entry : entries) {
+      if (entry.phase == Phase.START) {
+        return entry;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Get the percentiles of the time from START to each phase, over all the
+   * joins whose START is still kept.
+   */
+  public Map<Phase, Rollup> getRollups()
+  {
+    final List<Entry> entries = snapshot();
+    final Map<String, String> joins = getJoins(entries);
+
+    final Map<String, Entry> starts = new HashMap<>();
+    for (final Entry entry : entries) {
+      if (entry.phase == Phase.START) {
+        starts.put(entry.sessionId, entry);
+      }
+    }
+
+    final Map<Phase, List<Double>> samples = new EnumMap<>(Phase.class);
+    for (final Entry entry : entries) {
+      final Entry start = starts.get(getJoin(joins, entry));
+      if (entry.phase == Phase.START || start == null) {
+        continue;
+      }
+      samples.computeIfAbsent(entry.phase, (p) -> new ArrayList<>())
+          .add(entry.getMsSince(start));
+    }
+
+    final Map<Phase, Rollup> result = new EnumMap<>(Phase.class);
+    for (final Map.Entry<Phase, List<Double>> phaseSamples
+        : samples.entrySet()) {
+      final double[] sortedMs = new double[phaseSamples.getValue().size()];
+      for (int i = 0; i < sortedMs.length; i++) {
+        sortedMs[i] = phaseSamples.getValue().get(i);
+      }
+      Arrays.sort(sortedMs);
+      result.put(phaseSamples.getKey(), new Rollup(sortedMs));
+    }
+    return result;
+  }
+
+  /**
+   * Get the session that built each endpoint.
+   */
+  private static Map<String, String> getJoins(List<Entry> entries)
+  {
+    final Map<String, String> joins = new HashMap<>();
+    for (final Entry entry : entries) {
+      if (entry.phase == Phase.ENDPOINT_BUILT) {
+        joins.put(entry.webRtcEpId, entry.sessionId);
+      }
+    }
+    return joins;
+  }
+
+  // The recording session, if the build of the endpoint was overwritten
+  private static String getJoin(Map<String, String> joins, Entry entry)
+  {
+    final String join = (entry.webRtcEpId != null
+        ? joins.get(entry.webRtcEpId) : null);
+    return (join != null ? join : entry.sessionId);
+  }
+
+  /**
+   * Copy the ring, oldest first, without the repeated phases of an endpoint.
+   */
+  private List<Entry> snapshot()
+  {
+    final List<Entry> entries = new ArrayList<>(ring.length());
+    for (int i = 0; i < ring.length(); i++) {
+      final Entry entry = ring.get(i);
+      if (entry != null) {
+        entries.add(entry);
+      }
+    }
+    Collections.sort(entries, Comparator.comparingLong((e) -> e.nanos));
+
+    final Set<String> seen = new HashSet<>();
+    final List<Entry> result = new ArrayList<>(entries.size());
+    for (final Entry entry : entries) {
+      final String key = (entry.webRtcEpId != null
+          ? entry.webRtcEpId : entry.sessionId) + "/" + entry.phase;
+      if (seen.add(key)) {
+        result.add(entry);
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.kurento.demo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.kurento.client.MediaPipeline;
+import org.kurento.commons.exception.KurentoException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Kurento Java Demo - Recent Graphviz DOT snapshots of the Media Pipeline of
+ * each room, for debugging.
+ *
+ * getGstreamerDot() of a big pipeline is a large response from KMS, so
+ * snapshots are only taken on request, in the background, and at most once
+ * per room in each minimum interval. The last few snapshots of each room are
+ * kept gzip-compressed in memory, until the room is closed.
+ */
+public class PipelineSnapshots
+{
+  private static final Logger log =
+      LoggerFactory.getLogger(PipelineSnapshots.class);
+
+  public static class Snapshot
+  {
+    private final long takenAt;
+    private final int dotLength;
+    private final byte[] gzipDot;
+
+    Snapshot(long takenAt, int dotLength, byte[] gzipDot)
+    {
+      this.takenAt = takenAt;
+      this.dotLength = dotLength;
+      this.gzipDot = gzipDot;
+    }
+
+    /** Milliseconds since the epoch. */
+    public long getTakenAt()
+    { return this.takenAt; }
+
+    public int getDotLength()
+    { return this.dotLength; }
+
+    public int getGzipLength()
+    { return this.gzipDot.length; }
+
+    public String getDot()
+    {
+      try (InputStream in =
+          new GZIPInputStream(new ByteArrayInputStream(gzipDot))) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(dotLength);
+        final byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+          out.write(buffer, 0, count);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+      } catch (IOException ex) {
+        throw new UncheckedIOException(ex);
+      }
+    }
+  }
+
+  private static class RoomSnapshots
+  {
+    // Newest first
+    final ArrayDeque<Snapshot> snapshots = new ArrayDeque<>();
+    long lastRequestAt = 0;
+    boolean requested = false;
+  }
+
+  private final int keep;
+  private final long minIntervalNs;
+
+  private final ConcurrentHashMap<String, RoomSnapshots> byRoomId =
+      new ConcurrentHashMap<>();
+
+  private final ExecutorService executor = Executors.newSingleThreadExecutor(
+      new CustomizableThreadFactory("snapshot-"));
+
+  public PipelineSnapshots(int keep, int minIntervalS)
+  {
+    this.keep = keep;
+    this.minIntervalNs = TimeUnit.SECONDS.toNanos(minIntervalS);
+  }
+
+  public void close()
+  {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Take a new snapshot of a room in the background.
+   *
+   * @return false if a snapshot of this room was requested too recently.
+   */
+  public boolean request(final String roomId, final MediaPipeline pipeline)
+  {
+    final RoomSnapshots room =
+        byRoomId.computeIfAbsent(roomId, k -> new RoomSnapshots());
+
+    synchronized (room) {
+      final long now = System.nanoTime();
+      if (room.requested && now - room.lastRequestAt < minIntervalNs) {
+        log.debug("[PipelineSnapshots::request] Skip, rate limited, room: {}",
+            roomId);
+        return false;
+      }
+      room.requested = true;
+      room.lastRequestAt = now;
+    }
+
+    try {
+      executor.execute(() -> take(roomId, pipeline, room));
+    } catch (RejectedExecutionException ex) {
+      log.debug("[PipelineSnapshots::request] Executor is shut down");
+      return false;
+    }
+    return true;
+  }
+
+  private void take(String roomId, final MediaPipeline pipeline,
+      final RoomSnapshots room)
+  {
+    final long takenAt = System.currentTimeMillis();
+    final String dot;
+    try {
+      dot = pipeline.getGstreamerDot();
+    } catch (KurentoException ex) {
+      // The room might have been closed meanwhile
+      log.warn("[PipelineSnapshots::take] Skip, room: {}, exception: {}",
+          roomId, ex.getMessage());
+      return;
+    }
+
+    final byte[] bytes = dot.getBytes(StandardCharsets.UTF_8);
+    final ByteArrayOutputStream gzipDot = new ByteArrayOutputStream();
+    try (GZIPOutputStream out = new GZIPOutputStream(gzipDot)) {
+      out.write(bytes);
+    } catch (IOException ex) {
+      log.error("[PipelineSnapshots::take] Exception: {}", ex.getMessage());
+      return;
+    }
+    final Snapshot snapshot =
+        new Snapshot(takenAt, bytes.length, gzipDot.toByteArray());
+
+    synchronized (room) {
+      room.snapshots.addFirst(snapshot);
+      while (room.snapshots.size() > keep) {
+        room.snapshots.removeLast();
+      }
+    }
+
+    log.info("[PipelineSnapshots::take] room: {}, size: {} bytes, compressed: {} bytes",
+        roomId, snapshot.getDotLength(), snapshot.getGzipLength());
+  }
+
+  /**
+   * @return the snapshots of a room, newest first.
+   */
+  public List<Snapshot> get(String roomId)
+  {
+    final RoomSnapshots room = byRoomId.get(roomId);
+    if (room == null) {
+      return new ArrayList<>();
+    }
+    synchronized (room) {
+      return new ArrayList<>(room.snapshots);
+    }
+  }
+
+  public Collection<String> getRoomIds()
+  { return this.byRoomId.keySet(); }
+
+  /**
+   * Drop the snapshots of a closed room.
+   */
+  public void forget(String roomId)
+  {
+    byRoomId.remove(roomId);
+  }
+}
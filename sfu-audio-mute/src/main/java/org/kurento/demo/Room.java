@@ -0,0 +1,149 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kurento.demo;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import org.kurento.client.Composite;
+import org.kurento.client.MediaPipeline;
+
+/**
+ * Kurento Java Demo - Per-room state: Media Pipeline, users and endpoints.
+ */
+public class Room
+{
+  /**
+   * How the audio of each talker is delivered to the other users.
+   */
+  public enum Topology
+  {
+    /**
+     * One sendonly listener per remote talker: N + N(N-1) endpoints.
+     */
+    SFU,
+    /**
+     * The talkers are mixed by a Composite, and each user gets a single
+     * sendonly listener with the mix of all other talkers: 2N endpoints.
+     */
+    MIXED,
+  }
+
+  private final String roomId;
+  private final ConcurrentHashMap<String, UserSession> users =
+      new ConcurrentHashMap<>();
+  private volatile MediaPipeline pipeline;
+  private boolean closed = false;
+
+  // Chosen by the first user that joins, for as long as the pipeline lives
+  private Topology topology;
+  private Composite composite;
+
+  // Idle endpoints of the Media Pipeline; null if pooling is disabled
+  private EndpointPool endpointPool;
+
+  // Talkers forwarded to the other users; null if last-N is disabled
+  private ActiveSpeakers activeSpeakers;
+
+  // Runs the media changes of the room one at a time; created on first use
+  private SerialExecutor executor;
+
+  public Room(String roomId)
+  {
+    this.roomId = roomId;
+  }
+
+  /**
+   * Add a user to the room.
+   *
+   * @return false if the room was already closed by its last user leaving;
+   *     the caller must get a new room from the RoomManager.
+   */
+  public synchronized boolean join(UserSession user)
+  {
+    if (closed) {
+      return false;
+    }
+    users.put(user.getWsSession().getId(), user);
+    return true;
+  }
+
+  /**
+   * Remove a user from the room. Rooms are reference counted by their users:
+   * when the last one leaves, the room gets closed and its Media Pipeline
+   * must be released.
+   *
+   * @return true if this user was the last one, and the room is now closed.
+   */
+  public synchronized boolean leave(String sessionId)
+  {
+    if (users.remove(sessionId) == null) {
+      return false;
+    }
+    if (users.isEmpty()) {
+      closed = true;
+    }
+    return closed;
+  }
+
+  /**
+   * Get the SerialExecutor that runs the media changes of this room (joins,
+   * leaves, forwarding changes) one at a time, on top of a shared executor.
+   */
+  public synchronized SerialExecutor getExecutor(Executor sharedExecutor)
+  {
+    if (executor == null) {
+      executor = new SerialExecutor(sharedExecutor);
+    }
+    return executor;
+  }
+
+  public String getRoomId()
+  { return this.roomId; }
+
+  public ConcurrentHashMap<String, UserSession> getUsers()
+  { return this.users; }
+
+  public MediaPipeline getPipeline()
+  { return this.pipeline; }
+
+  public void setPipeline(MediaPipeline pipeline)
+  { this.pipeline = pipeline; }
+
+  public Topology getTopology()
+  { return this.topology; }
+
+  public void setTopology(Topology topology)
+  { this.topology = topology; }
+
+  public Composite getComposite()
+  { return this.composite; }
+
+  public void setComposite(Composite composite)
+  { this.composite = composite; }
+
+  public EndpointPool getEndpointPool()
+  { return this.endpointPool; }
+
+  public void setEndpointPool(EndpointPool endpointPool)
+  { this.endpointPool = endpointPool; }
+
+  public ActiveSpeakers getActiveSpeakers()
+  { return this.activeSpeakers; }
+
+  public void setActiveSpeakers(ActiveSpeakers activeSpeakers)
+  { this.activeSpeakers = activeSpeakers; }
+}
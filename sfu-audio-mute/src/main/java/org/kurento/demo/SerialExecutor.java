@@ -0,0 +1,82 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.demo;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Kurento Java Demo - Runs tasks one at a time, in submission order, on top
+ * of a shared executor.
+ *
+ * Each WebSocket session gets its own SerialExecutor, so messages from one
+ * browser are handled in order, while different browsers are handled in
+ * parallel and never wait for each other's KMS calls.
+ */
+public class SerialExecutor implements Executor
+{
+  private static final Logger log =
+      LoggerFactory.getLogger(SerialExecutor.class);
+
+  private final Queue<Runnable> tasks = new ArrayDeque<>();
+  private final Executor executor;
+  private Runnable active;
+
+  public SerialExecutor(Executor executor)
+  {
+    this.executor = executor;
+  }
+
+  @Override
+  public synchronized void execute(final Runnable task)
+  {
+    tasks.add(() -> {
+      try {
+        task.run();
+      } catch (Throwable ex) {
+        log.error("[SerialExecutor::execute] Exception: {}", ex.toString());
+      } finally {
+        scheduleNext();
+      }
+    });
+
+    if (active == null) {
+      scheduleNext();
+    }
+  }
+
+  private synchronized void scheduleNext()
+  {
+    active = tasks.poll();
+    if (active == null) {
+      return;
+    }
+
+    try {
+      executor.execute(active);
+    } catch (RejectedExecutionException ex) {
+      log.warn("[SerialExecutor::scheduleNext] Executor is shut down, drop {} tasks",
+          tasks.size() + 1);
+      tasks.clear();
+      active = null;
+    }
+  }
+}
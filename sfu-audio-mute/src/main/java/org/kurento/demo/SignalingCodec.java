@@ -0,0 +1,274 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.demo;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.List;
+
+import org.kurento.client.IceCandidate;
+
+/**
+ * Kurento Java Demo - Streaming JSON codec for the WebSocket signaling.
+ *
+ * Incoming messages are read field by field into a SignalingMessage, without
+ * building an intermediate JSON tree. Outgoing messages are written straight
+ * into a text buffer. Both the SignalingMessage and the buffer are reused by
+ * each thread, so the only allocations left are the strings themselves.
+ */
+public final class SignalingCodec
+{
+  private static final ThreadLocal<SignalingMessage> inbound =
+      ThreadLocal.withInitial(SignalingMessage::new);
+
+  private static final ThreadLocal<StringWriter> outbound =
+      ThreadLocal.withInitial(() -> new StringWriter(4096));
+
+  private SignalingCodec() {}
+
+  // Decoding ------------------------------------------------------------------
+
+  /**
+   * Decode a message from the browser.
+   *
+   * @return a SignalingMessage that is reused by the calling thread, so it is
+   *     only valid until the next call to decode() from the same thread.
+   * @throws IOException if the payload is not a valid JSON object.
+   */
+  public static SignalingMessage decode(String payload) throws IOException
+  {
+    final SignalingMessage message = inbound.get();
+    message.clear();
+
+    final JsonReader reader = new JsonReader(new StringReader(payload));
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "id":
+          message.setId(nextString(reader));
+          break;
+        case "webRtcEpId":
+          message.setWebRtcEpId(nextString(reader));
+          break;
+        case "roomId":
+          message.setRoomId(nextString(reader));
+          break;
+        case "topology":
+          message.setTopology(nextString(reader));
+          break;
+        case "sdpOffer":
+          message.setSdpOffer(nextString(reader));
+          break;
+        case "sdpAnswer":
+          message.setSdpAnswer(nextString(reader));
+          break;
+        case "candidate":
+          message.setCandidate(nextCandidate(reader));
+          break;
+        case "candidates":
+          nextCandidates(reader, message.getCandidates());
+          break;
+        case "message":
+          message.setMessage(nextString(reader));
+          break;
+        default:
+          reader.skipValue();
+          break;
+      }
+    }
+    reader.endObject();
+
+    return message;
+  }
+
+  private static String nextString(JsonReader reader) throws IOException
+  {
+    if (reader.peek() == JsonToken.NULL) {
+      reader.nextNull();
+      return null;
+    }
+    return reader.nextString();
+  }
+
+  // Gson left a primitive field at its default when the value was null
+  private static int nextInt(JsonReader reader, int defaultValue)
+      throws IOException
+  {
+    if (reader.peek() == JsonToken.NULL) {
+      reader.nextNull();
+      return defaultValue;
+    }
+    return reader.nextInt();
+  }
+
+  private static IceCandidate nextCandidate(JsonReader reader)
+      throws IOException
+  {
+    String candidate = null;
+    String sdpMid = null;
+    int sdpMLineIndex = 0;
+
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "candidate":
+          candidate = nextString(reader);
+          break;
+        case "sdpMid":
+          sdpMid = nextString(reader);
+          break;
+        case "sdpMLineIndex":
+          sdpMLineIndex = nextInt(reader, 0);
+          break;
+        default:
+          reader.skipValue();
+          break;
+      }
+    }
+    reader.endObject();
+
+    return new IceCandidate(candidate, sdpMid, sdpMLineIndex);
+  }
+
+  private static void nextCandidates(JsonReader reader,
+      List<IceCandidate> candidates) throws IOException
+  {
+    reader.beginArray();
+    while (reader.hasNext()) {
+      candidates.add(nextCandidate(reader));
+    }
+    reader.endArray();
+  }
+
+  // Encoding ------------------------------------------------------------------
+
+  /**
+   * Encode a message with an SDP Offer, like MAKE_TALKER or MAKE_LISTENER.
+   */
+  public static String encodeSdpOffer(String id, String webRtcEpId,
+      String sdpOffer)
+  {
+    try {
+      final JsonWriter writer = beginMessage(id);
+      writer.name("webRtcEpId").value(webRtcEpId);
+      writer.name("sdpOffer").value(sdpOffer);
+      return endMessage(writer);
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+  }
+
+  /**
+   * Encode a message with an SDP Answer, like PROCESS_SDP_REANSWER.
+   */
+  public static String encodeSdpAnswer(String id, String webRtcEpId,
+      String sdpAnswer)
+  {
+    try {
+      final JsonWriter writer = beginMessage(id);
+      writer.name("webRtcEpId").value(webRtcEpId);
+      writer.name("sdpAnswer").value(sdpAnswer);
+      return endMessage(writer);
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+  }
+
+  /**
+   * Encode an ADD_ICE_CANDIDATE message.
+   */
+  public static String encodeIceCandidate(String webRtcEpId,
+      IceCandidate candidate)
+  {
+    try {
+      final JsonWriter writer = beginMessage("ADD_ICE_CANDIDATE");
+      writer.name("webRtcEpId").value(webRtcEpId);
+      writer.name("candidate");
+      writeCandidate(writer, candidate);
+      return endMessage(writer);
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+  }
+
+  /**
+   * Encode an ADD_ICE_CANDIDATES message.
+   */
+  public static String encodeIceCandidates(String webRtcEpId,
+      List<IceCandidate> candidates)
+  {
+    try {
+      final JsonWriter writer = beginMessage("ADD_ICE_CANDIDATES");
+      writer.name("webRtcEpId").value(webRtcEpId);
+      writer.name("candidates").beginArray();
+      for (final IceCandidate candidate : candidates) {
+        writeCandidate(writer, candidate);
+      }
+      writer.endArray();
+      return endMessage(writer);
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+  }
+
+  /**
+   * Encode an ERROR message.
+   */
+  public static String encodeError(String errMsg)
+  {
+    try {
+      final JsonWriter writer = beginMessage("ERROR");
+      writer.name("message").value(errMsg);
+      return endMessage(writer);
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+  }
+
+  private static JsonWriter beginMessage(String id) throws IOException
+  {
+    final StringWriter buffer = outbound.get();
+    buffer.getBuffer().setLength(0);
+
+    final JsonWriter writer = new JsonWriter(buffer);
+    writer.beginObject();
+    writer.name("id").value(id);
+    return writer;
+  }
+
+  private static String endMessage(JsonWriter writer) throws IOException
+  {
+    writer.endObject();
+    writer.flush();
+    return outbound.get().toString();
+  }
+
+  private static void writeCandidate(JsonWriter writer,
+      IceCandidate candidate) throws IOException
+  {
+    writer.beginObject();
+    writer.name("candidate").value(candidate.getCandidate());
+    writer.name("sdpMid").value(candidate.getSdpMid());
+    writer.name("sdpMLineIndex").value(candidate.getSdpMLineIndex());
+    writer.endObject();
+  }
+}
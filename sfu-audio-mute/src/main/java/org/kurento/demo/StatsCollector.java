@@ -0,0 +1,426 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.kurento.demo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kurento.client.KurentoClient;
+import org.kurento.client.RTCIceCandidatePairStats;
+import org.kurento.client.RTCInboundRTPStreamStats;
+import org.kurento.client.RTCOutboundRTPStreamStats;
+import org.kurento.client.Stats;
+import org.kurento.client.TFuture;
+import org.kurento.client.Transaction;
+import org.kurento.client.WebRtcEndpoint;
+import org.kurento.commons.exception.KurentoException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Kurento Java Demo - Recent media quality of each live WebRtcEndpoint,
+ * sampled from its WebRTC stats: packet loss, jitter, RTT and bitrate.
+ *
+ * Each endpoint is due on its own jittered schedule, so endpoints built
+ * together don't get sampled together. The interval grows with the number
+ * of endpoints in the room, which keeps the stats requests of a big SFU room
+ * from growing with the square of its users. Due endpoints are sampled in
+ * batches, one Transaction each, and only a few batches are in flight at any
+ * time; endpoints that don't fit stay due for the next tick.
+ *
+ * The last samples of each endpoint are kept in primitive arrays, used as
+ * rings, until the endpoint is unregistered.
+ */
+public class StatsCollector
+{
+  private static final Logger log =
+      LoggerFactory.getLogger(StatsCollector.class);
+
+  private static final long TICK_MS = 250;
+
+  // Each interval is randomly stretched or shrunk by up to this fraction
+  private static final double JITTER = 0.1;
+
+  /**
+   * The kept samples of an endpoint, oldest first.
+   */
+  public static class Samples
+  {
+    private final long[] timesMs;
+    private final float[] lossPct;
+    private final float[] jitterMs;
+    private final float[] rttMs;
+    private final float[] bitrateKbps;
+
+    Samples(int size)
+    {
+      this.timesMs = new long[size];
+      this.lossPct = new float[size];
+      this.jitterMs = new float[size];
+      this.rttMs = new float[size];
+      this.bitrateKbps = new float[size];
+    }
+
+    /** Milliseconds since the epoch. */
+    public long[] getTimesMs()
+    { return this.timesMs; }
+
+    /** Packets lost over packets expected, in both directions. */
+    public float[] getLossPct()
+    { return this.lossPct; }
+
+    /** Max. jitter of the received streams. */
+    public float[] getJitterMs()
+    { return this.jitterMs; }
+
+    /** Max. round trip time of the sent streams, or of the ICE pair. */
+    public float[] getRttMs()
+    { return this.rttMs; }
+
+    /** Sent plus received. */
+    public float[] getBitrateKbps()
+    { return this.bitrateKbps; }
+  }
+
+  private static class Series
+  {
+    final WebRtcEndpoint webRtcEp;
+    final String roomId;
+
+    // Ring of samples; 'next' is where the next one goes
+    final Samples ring;
+    int next = 0;
+    int size = 0;
+
+    // Counters of the previous collection, for the deltas
+    long lastTimeMs = -1;
+    long lastBytes;
+    long lastExpected;
+    long lastLost;
+
+    // Scheduling; only touched by the tick thread, and by the batch of this
+    // endpoint while it is in flight
+    volatile long nextDueMs;
+    volatile long intervalMs;
+    volatile boolean inFlight = false;
+
+    Series(WebRtcEndpoint webRtcEp, String roomId, int capacity)
+    {
+      this.webRtcEp = webRtcEp;
+      this.roomId = roomId;
+      this.ring = new Samples(capacity);
+    }
+
+    synchronized void add(long timeMs, long bytes, long expected, long lost,
+        double jitterS, double rttS)
+    {
+      final boolean hasLast = (lastTimeMs >= 0 && timeMs > lastTimeMs
+          && bytes >= lastBytes && expected >= lastExpected
+          && lost >= lastLost);
+      if (hasLast) {
+        final long expectedDelta = expected - lastExpected;
+        ring.timesMs[next] = timeMs;
+        ring.lossPct[next] = (expectedDelta > 0
+            ? 100f * (lost - lastLost) / expectedDelta : 0f);
+        ring.jitterMs[next] = (float) (jitterS * 1000);
+        ring.rttMs[next] = (float) (rttS * 1000);
+        ring.bitrateKbps[next] =
+            (float) (bytes - lastBytes) * 8 / (timeMs - lastTimeMs);
+        next = (next + 1) % ring.timesMs.length;
+        size = Math.min(size + 1, ring.timesMs.length);
+      }
+
+      // The first collection, or counters that were reset, only set a new
+      // baseline
+      lastTimeMs = timeMs;
+      lastBytes = bytes;
+      lastExpected = expected;
+      lastLost = lost;
+    }
+
+    synchronized Samples copy()
+    {
+      final Samples samples = new Samples(size);
+      final int capacity = ring.timesMs.length;
+      final int first = (next - size + capacity) % capacity;
+      for (int i = 0; i < size; i++) {
+        final int j = (first + i) % capacity;
+        samples.timesMs[i] = ring.timesMs[j];
+        samples.lossPct[i] = ring.lossPct[j];
+        samples.jitterMs[i] = ring.jitterMs[j];
+        samples.rttMs[i] = ring.rttMs[j];
+        samples.bitrateKbps[i] = ring.bitrateKbps[j];
+      }
+      return samples;
+    }
+  }
+
+  private final KurentoClient kurento;
+  private final EndpointRegistry endpointRegistry;
+  private final Metrics metrics;
+  private final long intervalMs;
+  private final long maxIntervalMs;
+  private final int roomEndpoints;
+  private final int batchSize;
+  private final int capacity;
+
+  private final ConcurrentHashMap<String, Series> byEndpointId =
+      new ConcurrentHashMap<>();
+
+  private final ScheduledExecutorService scheduler;
+  private final ExecutorService batchExecutor;
+  private final Semaphore batchSlots;
+
+  private final AtomicLong sampledCount = new AtomicLong(0);
+  private final AtomicLong failedCount = new AtomicLong(0);
+  private final AtomicLong deferredCount = new AtomicLong(0);
+
+  /**
+   * @param intervalMs Interval of each endpoint in a small room; 0 to not
+   *     collect at all.
+   * @param maxIntervalMs Interval of each endpoint in the biggest rooms.
+   * @param roomEndpoints Endpoints that a room can have before the interval
+   *     grows; it grows proportionally beyond that.
+   * @param batchSize Max. endpoints sampled in one Transaction.
+   * @param concurrency Max. Transactions in flight.
+   * @param capacity Samples kept for each endpoint.
+   */
+  public StatsCollector(KurentoClient kurento,
+      EndpointRegistry endpointRegistry, Metrics metrics, int intervalMs,
+      int maxIntervalMs, int roomEndpoints, int batchSize, int concurrency,
+      int capacity)
+  {
+    this.kurento = kurento;
+    this.endpointRegistry = endpointRegistry;
+    this.metrics = metrics;
+    this.intervalMs = intervalMs;
+    this.maxIntervalMs = Math.max(intervalMs, maxIntervalMs);
+    this.roomEndpoints = Math.max(1, roomEndpoints);
+    this.batchSize = Math.max(1, batchSize);
+    this.capacity = Math.max(1, capacity);
+    this.batchSlots = new Semaphore(Math.max(1, concurrency));
+
+    if (intervalMs > 0) {
+      scheduler = Executors.newSingleThreadScheduledExecutor(
+          new CustomizableThreadFactory("stats-"));
+      batchExecutor = Executors.newFixedThreadPool(Math.max(1, concurrency),
+          new CustomizableThreadFactory("stats-batch-"));
+      scheduler.scheduleWithFixedDelay(this::tick, TICK_MS, TICK_MS,
+          TimeUnit.MILLISECONDS);
+    } else {
+      scheduler = null;
+      batchExecutor = null;
+    }
+  }
+
+  /**
+   * Get the samples of all endpoints of a room, by endpoint ID.
+   */
+  public Map<String, Samples> getRoom(String roomId)
+  {
+    final Map<String, Samples> result = new HashMap<>();
+    for (final Map.Entry<String, Series> entry : byEndpointId.entrySet()) {
+      if (entry.getValue().roomId.equals(roomId)) {
+        result.put(entry.getKey(), entry.getValue().copy());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return the current interval of an endpoint, or -1 if it isn't sampled.
+   */
+  public long getIntervalMs(String webRtcEpId)
+  {
+    final Series series = byEndpointId.get(webRtcEpId);
+    return (series != null ? series.intervalMs : -1);
+  }
+
+  public int getEndpointCount()
+  { return this.byEndpointId.size(); }
+
+  public long getSampledCount()
+  { return this.sampledCount.get(); }
+
+  public long getFailedCount()
+  { return this.failedCount.get(); }
+
+  /** Due endpoints that had to wait for a free batch slot. */
+  public long getDeferredCount()
+  { return this.deferredCount.get(); }
+
+  public void close()
+  {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      batchExecutor.shutdownNow();
+    }
+  }
+
+  private long intervalFor(int endpointCount)
+  {
+    final long steps = (endpointCount + roomEndpoints - 1) / roomEndpoints;
+    return Math.min(maxIntervalMs, intervalMs * Math.max(1, steps));
+  }
+
+  private static long jittered(long intervalMs)
+  {
+    final double factor =
+        1 + JITTER * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+    return Math.round(intervalMs * factor);
+  }
+
+  private void tick()
+  {
+    try {
+      final long nowMs = System.currentTimeMillis();
+      final Set<String> live = new HashSet<>();
+      final List<Series> due = new ArrayList<>();
+
+      for (final Map.Entry<Room, List<WebRtcEndpoint>> entry
+          : endpointRegistry.getEndpointsByRoom().entrySet()) {
+        final String roomId = entry.getKey().getRoomId();
+        final long roomIntervalMs = intervalFor(entry.getValue().size());
+
+        for (final WebRtcEndpoint webRtcEp : entry.getValue()) {
+          live.add(webRtcEp.getId());
+          final Series series = byEndpointId.computeIfAbsent(
+              webRtcEp.getId(), (id) -> {
+            // New endpoints start at a random point of their interval
+            final Series newSeries = new Series(webRtcEp, roomId, capacity);
+            newSeries.nextDueMs = nowMs
+                + ThreadLocalRandom.current().nextLong(roomIntervalMs);
+            return newSeries;
+          });
+          series.intervalMs = roomIntervalMs;
+          if (!series.inFlight && nowMs >= series.nextDueMs) {
+            due.add(series);
+          }
+        }
+      }
+
+      byEndpointId.keySet().retainAll(live);
+
+      for (int i = 0; i < due.size(); i += batchSize) {
+        if (!batchSlots.tryAcquire()) {
+          deferredCount.addAndGet(due.size() - i);
+          break;
+        }
+        final List<Series> batch =
+            new ArrayList<>(due.subList(i, Math.min(due.size(), i + batchSize)));
+        for (final Series series : batch) {
+          series.inFlight = true;
+        }
+        batchExecutor.execute(() -> collect(batch));
+      }
+    } catch (RejectedExecutionException ex) {
+      log.debug("[StatsCollector::tick] Executor is shut down");
+    } catch (RuntimeException ex) {
+      // Keep the schedule alive
+      log.warn("[StatsCollector::tick] Exception: {}", ex.getMessage());
+    }
+  }
+
+  private void collect(List<Series> batch)
+  {
+    try {
+      final List<TFuture<Map<String, Stats>>> futures =
+          new ArrayList<>(batch.size());
+      final Transaction tx = kurento.beginTransaction();
+      for (final Series series : batch) {
+        futures.add(series.webRtcEp.getStats(tx));
+      }
+      final long startNs = System.nanoTime();
+      tx.commit();
+      metrics.recordKmsCall("getStats", "stats", startNs);
+
+      final long nowMs = System.currentTimeMillis();
+      for (int i = 0; i < batch.size(); i++) {
+        try {
+          addSample(batch.get(i), futures.get(i).get(), nowMs);
+          sampledCount.incrementAndGet();
+        } catch (KurentoException ex) {
+          // Released meanwhile; it is dropped on the next tick
+          failedCount.incrementAndGet();
+        }
+      }
+    } catch (KurentoException ex) {
+      failedCount.addAndGet(batch.size());
+      log.warn("[StatsCollector::collect] Exception: {}, endpoints: {}",
+          ex.getMessage(), batch.size());
+    } finally {
+      final long nowMs = System.currentTimeMillis();
+      for (final Series series : batch) {
+        series.nextDueMs = nowMs + jittered(series.intervalMs);
+        series.inFlight = false;
+      }
+      batchSlots.release();
+    }
+  }
+
+  private static void addSample(Series series, Map<String, Stats> stats,
+      long nowMs)
+  {
+    long bytes = 0;
+    long expected = 0;
+    long lost = 0;
+    double jitterS = 0;
+    double rttS = 0;
+    double pairRttS = 0;
+
+    for (final Stats stat : stats.values()) {
+      if (stat instanceof RTCInboundRTPStreamStats) {
+        final RTCInboundRTPStreamStats inbound =
+            (RTCInboundRTPStreamStats) stat;
+        bytes += inbound.getBytesReceived();
+        expected += inbound.getPacketsReceived() + inbound.getPacketsLost();
+        lost += inbound.getPacketsLost();
+        jitterS = Math.max(jitterS, inbound.getJitter());
+      } else if (stat instanceof RTCOutboundRTPStreamStats) {
+        // Losses of the sent packets, as reported by the browser
+        final RTCOutboundRTPStreamStats outbound =
+            (RTCOutboundRTPStreamStats) stat;
+        bytes += outbound.getBytesSent();
+        expected += outbound.getPacketsSent();
+        lost += outbound.getPacketsLost();
+        rttS = Math.max(rttS, outbound.getRoundTripTime());
+      } else if (stat instanceof RTCIceCandidatePairStats) {
+        pairRttS = Math.max(pairRttS,
+            ((RTCIceCandidatePairStats) stat).getRoundTripTime());
+      }
+    }
+
+    // A receive-only endpoint has no RTCP timing of its own
+    series.add(nowMs, bytes, expected, lost, jitterS,
+        (rttS > 0 ? rttS : pairRttS));
+  }
+}
@@ -16,9 +16,11 @@
 
 package org.kurento.demo;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.kurento.client.HubPort;
 import org.kurento.client.WebRtcEndpoint;
 import org.springframework.web.socket.WebSocketSession;
 
@@ -27,9 +29,27 @@ import org.springframework.web.socket.WebSocketSession;
  */
 public class UserSession
 {
+  // Endpoint IDs in ICE candidates come from the browser, so only this many
+  // are tracked
+  private static final int MAX_CANDIDATE_IN_ENDPOINTS = 256;
+
   WebSocketSession wsSession;
+  private SendQueue sendQueue;
+  private Room room;
   private WebRtcEndpoint wEpTalker;
-  private final List<WebRtcEndpoint> wEpListeners = new ArrayList<>();
+  // Listeners, by ID of the element that feeds them (a remote talker, or the
+  // HubPort in a MIXED room)
+  private final ConcurrentHashMap<String, WebRtcEndpoint> wEpListeners =
+      new ConcurrentHashMap<>();
+  private HubPort hubPort;
+  // Audio of the talker is not forwarded to the rest of the room
+  private volatile boolean muted = false;
+  // The talker is connected to the listeners of the other users; false
+  // while muted, or while not one of the last N active speakers
+  private volatile boolean forwarded = true;
+  // Endpoints for which the browser already sent an ICE candidate
+  private final Set<String> candidateInEndpoints =
+      ConcurrentHashMap.newKeySet();
 
   public UserSession()
   {}
@@ -40,15 +60,62 @@ public class UserSession
   public void setWsSession(WebSocketSession wsSession)
   { this.wsSession = wsSession; }
 
+  public SendQueue getSendQueue()
+  { return this.sendQueue; }
+
+  public void setSendQueue(SendQueue sendQueue)
+  { this.sendQueue = sendQueue; }
+
+  public Room getRoom()
+  { return this.room; }
+
+  public void setRoom(Room room)
+  { this.room = room; }
+
   public WebRtcEndpoint getTalker()
   { return this.wEpTalker; }
 
   public void setTalker(WebRtcEndpoint wEpTalker)
   { this.wEpTalker = wEpTalker; }
 
-  public List<WebRtcEndpoint> getListeners()
-  { return this.wEpListeners; }
+  public Collection<WebRtcEndpoint> getListeners()
+  { return this.wEpListeners.values(); }
+
+  public void addListener(String sourceId, WebRtcEndpoint wEpListener)
+  { this.wEpListeners.put(sourceId, wEpListener); }
+
+  public WebRtcEndpoint getListener(String sourceId)
+  { return this.wEpListeners.get(sourceId); }
+
+  public WebRtcEndpoint removeListener(String sourceId)
+  { return this.wEpListeners.remove(sourceId); }
+
+  public HubPort getHubPort()
+  { return this.hubPort; }
+
+  public void setHubPort(HubPort hubPort)
+  { this.hubPort = hubPort; }
+
+  public boolean isMuted()
+  { return this.muted; }
+
+  public void setMuted(boolean muted)
+  { this.muted = muted; }
+
+  public boolean isForwarded()
+  { return this.forwarded; }
+
+  public void setForwarded(boolean forwarded)
+  { this.forwarded = forwarded; }
 
-  public void addListener(WebRtcEndpoint wEpListener)
-  { this.wEpListeners.add(wEpListener); }
+  /**
+   * @return true only for the first ICE candidate from the browser for an
+   *     endpoint, as long as fewer than MAX_CANDIDATE_IN_ENDPOINTS have been
+   *     seen.
+   */
+  public boolean firstCandidateIn(String webRtcEpId)
+  {
+    return (candidateInEndpoints.size() < MAX_CANDIDATE_IN_ENDPOINTS
+        && candidateInEndpoints.add(webRtcEpId));
+  }
 }
@@ -30,6 +30,7 @@ const talker = new StateVars();
 const listener1 = new StateVars();
 const listener2 = new StateVars();
 
+// Only the WebRTC Peers that have processed their SDP Offer
 const peers = new Map();  // Map<(String)WebRtcEndpoint.Id, (Object)WebRtcPeer>
 
 // UI
@@ -100,25 +101,115 @@ function sendMessage(message)
   ws.send(jsonMessage);
 }
 
-function makePeer(sdpOffer, webRtcEpId)
+// Local ICE candidates are sent in batches: each burst is held for this long
+// after its first candidate, and then sent as a single message
+const ICE_BATCH_DELAY_MS = 20;
+
+function makeIceCandidateSender(webRtcEpId)
+{
+  let pending = [];
+
+  return (candidate) => {
+    pending.push(candidate);
+    if (pending.length > 1) {
+      return;
+    }
+
+    setTimeout(() => {
+      sendMessage({
+        id: 'ADD_ICE_CANDIDATES',
+        webRtcEpId: webRtcEpId,
+        candidates: pending,
+      });
+      pending = [];
+    }, ICE_BATCH_DELAY_MS);
+  };
+}
+
+// ICE candidates from KMS can arrive before their WebRTC Peer has processed
+// the SDP Offer; these are held until it has. Each endpoint holds up to
+// PENDING_ICE_MAX candidates, for up to PENDING_ICE_TTL_MS
+const PENDING_ICE_TTL_MS = 10000;
+const PENDING_ICE_MAX = 64;
+
+// Map<(String)WebRtcEndpoint.Id, { created: (Number)ms, candidates: [] }>
+const pendingIce = new Map();
+const iceStats = { buffered: 0, flushed: 0, dropped: 0 };
+
+function holdIceCandidates(webRtcEpId, candidates)
 {
-  console.log("[makePeer] Make WebRtcPeerSendonly, webRtcEpId: " + webRtcEpId);
+  const now = Date.now();
+  for (const [id, pending] of pendingIce) {
+    if (now - pending.created >= PENDING_ICE_TTL_MS) {
+      iceStats.dropped += pending.candidates.length;
+      pendingIce.delete(id);
+    }
+  }
+
+  if (!pendingIce.has(webRtcEpId)) {
+    pendingIce.set(webRtcEpId, { created: now, candidates: [] });
+  }
+  const pending = pendingIce.get(webRtcEpId);
+  const held = Math.min(candidates.length,
+      PENDING_ICE_MAX - pending.candidates.length);
+  pending.candidates.push(...candidates.slice(0, held));
+  iceStats.buffered += held;
+  iceStats.dropped += candidates.length - held;
+
+  if (held < candidates.length) {
+    console.warn("[holdIceCandidates] Drop candidates, webRtcEpId: "
+        + webRtcEpId + ", dropped: " + (candidates.length - held));
+  }
+}
+
+function takeIceCandidates(webRtcEpId)
+{
+  const pending = pendingIce.get(webRtcEpId);
+  if (!pending) {
+    return [];
+  }
+  pendingIce.delete(webRtcEpId);
+
+  if (Date.now() - pending.created >= PENDING_ICE_TTL_MS) {
+    iceStats.dropped += pending.candidates.length;
+    return [];
+  }
+  iceStats.flushed += pending.candidates.length;
+  return pending.candidates;
+}
+
+function dropIceCandidates()
+{
+  for (const pending of pendingIce.values()) {
+    iceStats.dropped += pending.candidates.length;
+  }
+  pendingIce.clear();
+
+  console.log("[dropIceCandidates] Remote ICE candidates, buffered: "
+      + iceStats.buffered + ", flushed: " + iceStats.flushed
+      + ", dropped: " + iceStats.dropped);
+}
+
+// With 'sendrecv', the talker also plays the mix of a MIXED room, so there is
+// no separate listener
+function makePeer(sdpOffer, webRtcEpId, sendrecv)
+{
+  console.log("[makePeer] Make WebRtcPeer" + (sendrecv ? "Sendrecv" : "Sendonly")
+      + ", webRtcEpId: " + webRtcEpId);
 
   const options = {
     localVideo: talker.tag,
-    remoteVideo: null,
+    remoteVideo: (sendrecv ? listener1.tag : null),
     mediaConstraints: { audio: true, video: false },
-    onicecandidate: (candidate) => sendMessage({
-      id: 'ADD_ICE_CANDIDATE',
-      webRtcEpId: webRtcEpId,
-      candidate: candidate,
-    }),
+    onicecandidate: makeIceCandidateSender(webRtcEpId),
     onnegotiationneeded: (ev) => console.log("[talker.WebRtcPeer.onnegotiationneeded] NOOP, webRtcEpId: "
         + webRtcEpId),
   };
 
-  talker.peer = new kurentoUtils.WebRtcPeer.WebRtcPeerSendonly(options,
-      function(err)
+  const WebRtcPeer = (sendrecv ? kurentoUtils.WebRtcPeer.WebRtcPeerSendrecv
+      : kurentoUtils.WebRtcPeer.WebRtcPeerSendonly);
+
+  talker.peer = new WebRtcPeer(options, function(err)
   {
     if (err) {
       sendError("[talker.WebRtcPeer] Error: " + explainUserMediaError(err));
@@ -128,13 +219,23 @@ function makePeer(sdpOffer, webRtcEpId)
 
     console.log("[talker.WebRtcPeer] Created");
 
-    peers.set(webRtcEpId, talker.peer);
     talker.pc = talker.peer.peerConnection;
     talker.stream = talker.tag.srcObject;
     talker.track = talker.stream.getAudioTracks()[0];
     talker.rtpSender = talker.pc.getSenders().find(
         (s) => s.track === talker.track);
 
+    if (sendrecv) {
+      listener1.peer = talker.peer;
+      listener1.pc = talker.pc;
+      listener1.pc.ontrack = (trackEv) => {
+        if (trackEv.track.kind === 'audio') {
+          console.log("[talker.WebRtcPeer.ontrack] Set incoming stream");
+          listener1.tag.srcObject = trackEv.streams[0];
+        }
+      };
+    }
+
     sendMessage({
       id: 'WEBRTCPEER_READY',
       webRtcEpId: webRtcEpId,
@@ -148,6 +249,9 @@ function makePeer(sdpOffer, webRtcEpId)
         return;
       }
 
+      peers.set(webRtcEpId, talker.peer);
+      addIceCandidates(webRtcEpId, takeIceCandidates(webRtcEpId));
+
       // Only after setting the new track, add a handler for onnegotiationneeded
       talker.pc.onnegotiationneeded = (ev) => {
         console.log("[handleMakeTalker.WebRtcPeerSendonly.onnegotiationneeded] Generate SDP Offer");
@@ -197,9 +301,15 @@ ws.onmessage = function(message)
     case 'MAKE_LISTENER':
       handleMakeListener(jsonMessage);
       break;
+    case 'MAKE_PEER':
+      handleMakePeer(jsonMessage);
+      break;
     case 'ADD_ICE_CANDIDATE':
       handleAddIceCandidate(jsonMessage);
       break;
+    case 'ADD_ICE_CANDIDATES':
+      handleAddIceCandidates(jsonMessage);
+      break;
     case 'PROCESS_SDP_REANSWER':
       handleProcessSdpReAnswer(jsonMessage);
       break;
@@ -216,7 +326,14 @@ ws.onmessage = function(message)
 
 function handleMakeTalker(jsonMessage)
 {
-  makePeer(jsonMessage.sdpOffer, jsonMessage.webRtcEpId);
+  makePeer(jsonMessage.sdpOffer, jsonMessage.webRtcEpId, false);
+}
+
+// MAKE_PEER -------------------------------------------------------------------
+
+function handleMakePeer(jsonMessage)
+{
+  makePeer(jsonMessage.sdpOffer, jsonMessage.webRtcEpId, true);
 }
 
 // MAKE_LISTENER ---------------------------------------------------------------
@@ -234,11 +351,7 @@ function handleMakeListener(jsonMessage)
     localVideo: null,
     remoteVideo: listener.tag,
     mediaConstraints: { audio: true, video: false },
-    onicecandidate: (candidate) => sendMessage({
-      id: 'ADD_ICE_CANDIDATE',
-      webRtcEpId: webRtcEpId,
-      candidate: candidate,
-    }),
+    onicecandidate: makeIceCandidateSender(webRtcEpId),
     onnegotiationneeded: (ev) => console.log("[listener.WebRtcPeer.onnegotiationneeded] NOOP, webRtcEpId: "
         + webRtcEpId),
   };
@@ -255,7 +368,6 @@ function handleMakeListener(jsonMessage)
 
     console.log("[listener.WebRtcPeer] Created");
 
-    peers.set(webRtcEpId, listener.peer);
     listener.pc = listener.peer.peerConnection;
     listener.pc.ontrack = (trackEv) => {
       if (trackEv.track.kind === 'audio') {
@@ -282,6 +394,9 @@ function handleMakeListener(jsonMessage)
         return;
       }
 
+      peers.set(webRtcEpId, listener.peer);
+      addIceCandidates(webRtcEpId, takeIceCandidates(webRtcEpId));
+
       sendMessage({
         id: 'PROCESS_SDP_ANSWER',
         webRtcEpId: webRtcEpId,
@@ -297,20 +412,32 @@ function handleMakeListener(jsonMessage)
 
 function handleAddIceCandidate(jsonMessage)
 {
-  const webRtcEpId = jsonMessage.webRtcEpId;
+  addIceCandidates(jsonMessage.webRtcEpId, [jsonMessage.candidate]);
+}
+
+// ADD_ICE_CANDIDATES ----------------------------------------------------------
+
+function handleAddIceCandidates(jsonMessage)
+{
+  addIceCandidates(jsonMessage.webRtcEpId, jsonMessage.candidates);
+}
+
+function addIceCandidates(webRtcEpId, candidates)
+{
   if (!peers.has(webRtcEpId)) {
-    console.warn("[handleAddIceCandidate] Skip, unknown endpoint, id: "
-        + webRtcEpId);
+    holdIceCandidates(webRtcEpId, candidates);
     return;
   }
 
   const peer = peers.get(webRtcEpId);
-  peer.addIceCandidate(jsonMessage.candidate, (err) => {
-    if (err) {
-      console.error("[handleAddIceCandidate] Error: " + err);
-      return;
-    }
-  });
+  for (const candidate of candidates) {
+    peer.addIceCandidate(candidate, (err) => {
+      if (err) {
+        console.error("[addIceCandidates] Error: " + err);
+        return;
+      }
+    });
+  }
 }
 
 // PROCESS_SDP_REANSWER --------------------------------------------------------
@@ -325,7 +452,7 @@ function handleProcessSdpReAnswer(jsonMessage)
   }
 
   const peer = peers.get(webRtcEpId);
-  peer.processAnswer(message.sdpAnswer, (err) => {
+  peer.processAnswer(jsonMessage.sdpAnswer, (err) => {
     if (err) {
       console.error("[handleProcessSdpReAnswer] " + err);
       return;
@@ -345,6 +472,7 @@ function stop()
   console.warn("[stop] NOT IMPLEMENTED YET");
 
   uiSetState(UI_IDLE);
+  dropIceCandidates();
 
   sendMessage({
     id: 'STOP',
@@ -375,8 +503,11 @@ function uiStart()
   console.log("[start]");
   uiSetState(UI_STARTING);
 
+  // The topology is only used by the first user that joins the room
   sendMessage({
     id: 'START',
+    roomId: uiRoomTxt.value,
+    topology: uiTopologySel.value,
   });
 }
 
@@ -463,6 +594,11 @@ function uiMute()
   // Choose method for audio mute (uncomment only one!):
   replaceTrack(isActive);
   //removeTrack(isActive)
+
+  // The server stops forwarding our talker to the other users, too
+  sendMessage({
+    id: (isActive ? 'MUTE' : 'UNMUTE'),
+  });
 }
 
 // State handling --------------------------------------------------------------
@@ -474,16 +610,22 @@ function uiSetState(newState)
       uiEnableElement('#uiStartBtn', 'uiStart()');
       uiDisableElement('#uiStopBtn');
       uiDisableElement('#uiMuteChk');
+      uiEnableElement('#uiTopologySel');
+      uiEnableElement('#uiRoomTxt');
       break;
     case UI_STARTING:
       uiDisableElement('#uiStartBtn');
       uiDisableElement('#uiStopBtn');
       uiDisableElement('#uiMuteChk');
+      uiDisableElement('#uiTopologySel');
+      uiDisableElement('#uiRoomTxt');
       break;
     case UI_STARTED:
       uiDisableElement('#uiStartBtn');
       uiEnableElement('#uiStopBtn', 'uiStop()');
       uiEnableElement('#uiMuteChk', 'uiMute()');
+      uiDisableElement('#uiTopologySel');
+      uiDisableElement('#uiRoomTxt');
       break;
     default:
       console.warn("[setState] Skip, invalid state: " + newState);